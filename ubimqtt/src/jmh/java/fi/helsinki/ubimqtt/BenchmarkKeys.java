@@ -0,0 +1,45 @@
+package fi.helsinki.ubimqtt;
+
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Generates throwaway key pairs in .pem format for the benchmarks, so that they do not depend on
+ * the keys in ~/.private used by the tests
+ */
+public class BenchmarkKeys {
+    private final String privateKey;
+    private final String publicKey;
+
+    public BenchmarkKeys() throws Exception {
+        java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp521r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+
+        this.privateKey = toPem(keyPair);
+        this.publicKey = toPem(keyPair.getPublic());
+    }
+
+    private static String toPem(Object object) throws IOException {
+        StringWriter writer = new StringWriter();
+        JcaPEMWriter pemWriter = new JcaPEMWriter(writer);
+        pemWriter.writeObject(object);
+        pemWriter.close();
+        return writer.toString();
+    }
+
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    public String getPublicKey() {
+        return publicKey;
+    }
+}
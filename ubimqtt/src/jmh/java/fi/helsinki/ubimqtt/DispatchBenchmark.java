@@ -0,0 +1,79 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures delivering a message through UbiMqtt to its listeners when the client has N per-device
+ * subscriptions. Subscriptions are only registered locally, no Mqtt server is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int subscriptionCount;
+
+    private UbiMqtt ubiMqtt;
+    private MqttMessage mqttMessage;
+    private String exactTopic;
+    private String wildcardTopic;
+
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws Exception {
+        this.blackhole = blackhole;
+
+        ubiMqtt = new UbiMqtt("localhost:1883");
+
+        IUbiMessageListener listener = new IUbiMessageListener() {
+            @Override
+            public void messageArrived(String topic, MqttMessage mqttMessage, String listenerId) {
+                DispatchBenchmark.this.blackhole.consume(mqttMessage);
+            }
+        };
+
+        // Half of the filters are exact device topics, the other half match all readings of a device
+        for (int i = 0; i < subscriptionCount; i++) {
+            String filter = (i % 2 == 0) ? "devices/device" + i + "/temperature" : "devices/device" + i + "/+";
+            ubiMqtt.registerSubscription(filter, new Subscription(filter, listener, null));
+        }
+
+        exactTopic = "devices/device" + (subscriptionCount / 2 * 2 - 2) + "/temperature";
+        wildcardTopic = "devices/device" + (subscriptionCount - 1) + "/humidity";
+        mqttMessage = new MqttMessage("{\"value\":21.5}".getBytes());
+    }
+
+    @Benchmark
+    public void dispatchToExactFilter() throws Exception {
+        ubiMqtt.messageArrived(exactTopic, mqttMessage);
+    }
+
+    @Benchmark
+    public void dispatchToWildcardFilter() throws Exception {
+        ubiMqtt.messageArrived(wildcardTopic, mqttMessage);
+    }
+
+    @Benchmark
+    public void dispatchToNoFilter() throws Exception {
+        ubiMqtt.messageArrived("devices/unknown/temperature", mqttMessage);
+    }
+}
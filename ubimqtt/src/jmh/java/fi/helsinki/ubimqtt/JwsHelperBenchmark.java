@@ -0,0 +1,89 @@
+package fi.helsinki.ubimqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.interfaces.ECPublicKey;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwsHelperBenchmark {
+
+    private static final String MESSAGE = "{\"sensor\":\"room1/temperature\",\"value\":21.5}";
+
+    private String privateKey;
+    private String publicKey;
+    private UbiSigningKey signingKey;
+    private ECPublicKey ecPublicKey;
+
+    private String signedMessage;
+    private String signedCompactMessage;
+    private String encryptedMessage;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys keys = new BenchmarkKeys();
+
+        privateKey = keys.getPrivateKey();
+        publicKey = keys.getPublicKey();
+        signingKey = new UbiSigningKey(privateKey);
+        ecPublicKey = JwsHelper.createEcPublicKey(publicKey);
+
+        signedMessage = JwsHelper.signMessage(MESSAGE, signingKey);
+        signedCompactMessage = JwsHelper.signMessage(MESSAGE, signingKey, SignatureFormat.COMPACT);
+        encryptedMessage = JwsHelper.encryptMessage(MESSAGE, ecPublicKey);
+    }
+
+    @Benchmark
+    public String signMessageWithPem() throws Exception {
+        return JwsHelper.signMessage(MESSAGE, privateKey);
+    }
+
+    @Benchmark
+    public String signMessageWithSigningKey() throws Exception {
+        return JwsHelper.signMessage(MESSAGE, signingKey);
+    }
+
+    @Benchmark
+    public String signMessageToCompact() throws Exception {
+        return JwsHelper.signMessage(MESSAGE, signingKey, SignatureFormat.COMPACT);
+    }
+
+    @Benchmark
+    public boolean verifySignature() throws Exception {
+        return JwsHelper.verifySignature(signedMessage, ecPublicKey);
+    }
+
+    @Benchmark
+    public boolean verifyCompactSignature() throws Exception {
+        return SignedMessage.parse(signedCompactMessage).isSignedBy(ecPublicKey);
+    }
+
+    @Benchmark
+    public boolean verifyJsonSignature() throws Exception {
+        return SignedMessage.parse(signedMessage).isSignedBy(ecPublicKey);
+    }
+
+    @Benchmark
+    public String encryptMessage() throws Exception {
+        return JwsHelper.encryptMessage(MESSAGE, ecPublicKey);
+    }
+
+    @Benchmark
+    public String decryptMessage() throws Exception {
+        return JwsHelper.decryptMessage(encryptedMessage, privateKey);
+    }
+}
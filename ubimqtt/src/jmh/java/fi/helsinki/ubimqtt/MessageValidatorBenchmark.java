@@ -0,0 +1,73 @@
+package fi.helsinki.ubimqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.interfaces.ECPublicKey;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageValidatorBenchmark {
+
+    private String signedMessage;
+    private String largeSignedMessage;
+    private ECPublicKey ecPublicKey;
+    private MessageValidator messageValidator;
+    private ReplayDetector replayDetector;
+
+    private final AtomicLong messageCounter = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys keys = new BenchmarkKeys();
+
+        ecPublicKey = JwsHelper.createEcPublicKey(keys.getPublicKey());
+        UbiSigningKey signingKey = new UbiSigningKey(keys.getPrivateKey());
+        signedMessage = JwsHelper.signMessage("{\"value\":21.5}", signingKey);
+
+        StringBuilder largePayload = new StringBuilder("[");
+        for (int i = 0; i < 4096; i++)
+            largePayload.append(i > 0 ? "," : "").append("{\"value\":").append(i).append("}");
+        largeSignedMessage = JwsHelper.signMessage(largePayload.append("]").toString(), signingKey);
+
+        messageValidator = new MessageValidator(UbiMqtt.DEFAULT_BUFFER_WINDOW_IN_SECONDS);
+        replayDetector = new ReplayDetector(UbiMqtt.DEFAULT_BUFFER_WINDOW_IN_SECONDS, Integer.MAX_VALUE);
+    }
+
+    // Parses and verifies the message, after the first call the replay check rejects it
+    @Benchmark
+    public boolean validateMessage() throws Exception {
+        return messageValidator.validateMessage(signedMessage, ecPublicKey);
+    }
+
+    @Benchmark
+    public SignedMessage parseLargeSignedMessage() throws Exception {
+        return SignedMessage.parse(largeSignedMessage);
+    }
+
+    @Benchmark
+    public boolean replayDetectorUniqueMessages() {
+        return replayDetector.isValid(System.currentTimeMillis(), Long.toString(messageCounter.incrementAndGet()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean replayDetectorUniqueMessagesContended() {
+        return replayDetector.isValid(System.currentTimeMillis(), Long.toString(messageCounter.incrementAndGet()));
+    }
+}
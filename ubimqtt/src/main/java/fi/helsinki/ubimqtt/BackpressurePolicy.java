@@ -0,0 +1,23 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * Defines what UbiMqtt.publishAsync does when the maximum number of messages are already waiting for
+ * acknowledgement from the Mqtt server
+ */
+public enum BackpressurePolicy {
+    /**
+     * The message is queued and published when an earlier message is acknowledged, the caller is not blocked
+     */
+    QUEUE,
+
+    /**
+     * The calling thread is blocked until an earlier message is acknowledged. Must not be used from
+     * listener callbacks, which would block the acknowledgements.
+     */
+    BLOCK,
+
+    /**
+     * The returned future fails immediately
+     */
+    FAIL
+}
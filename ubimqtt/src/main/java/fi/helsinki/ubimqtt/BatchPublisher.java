@@ -0,0 +1,221 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Publishes a batch of messages and reports the results of all of them at once.
+ *
+ * Messages are encoded, signed or encrypted for example, in parallel on an executor. They are published
+ * in the order of the batch as soon as they are encoded, with at most a window of messages waiting for
+ * acknowledgement from the server at a time. Each message also takes a slot of the in-flight window shared
+ * with the other publishes of the client, queueing for it when the slots are taken. Publishing is driven
+ * from the encoding tasks and the acknowledgements, so no thread waits for either window.
+ */
+public class BatchPublisher {
+
+    /**
+     * Turns a message into the bytes to publish
+     */
+    public interface Encoder {
+        byte[] encode(UbiBatchMessage message) throws Exception;
+    }
+
+    private final IMqttAsyncClient client;
+    private final List<UbiBatchMessage> messages;
+    private final int qos;
+    private final boolean retained;
+    private final int window;
+    private final InflightWindow inflightWindow;
+    private final IUbiBatchListener listener;
+    private IUbiMetrics metrics = null;
+
+    private final byte[][] encoded;
+    private final Throwable[] errors;
+
+    private int nextToPublish = 0;
+    private int inflight = 0;
+    private int completed = 0;
+    private boolean reported = false;
+
+    // Set while pump() publishes, a message failing right away is then counted by the loop of pump() and its slot
+    // released once the lock is no longer held, so that the slot is not handed to another queued task under the lock
+    private boolean pumping = false;
+    private int pendingReleases = 0;
+
+    /**
+     * Constructs a publisher for one batch
+     * @param client the client to publish with
+     * @param messages the messages of the batch
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param window the maximum number of messages of this batch waiting for acknowledgement at once
+     * @param inflightWindow the in-flight window shared with the other publishes of the client, or null to use none
+     * @param listener the callback to call when all messages are published or have failed
+     */
+    public BatchPublisher(IMqttAsyncClient client, List<UbiBatchMessage> messages, int qos, boolean retained, int window, InflightWindow inflightWindow, IUbiBatchListener listener) {
+        this.client = client;
+        this.messages = messages;
+        this.qos = qos;
+        this.retained = retained;
+        this.window = window;
+        // QoS 0 messages are not acknowledged, so they do not take a slot
+        this.inflightWindow = qos > 0 ? inflightWindow : null;
+        this.listener = listener;
+
+        this.encoded = new byte[messages.size()][];
+        this.errors = new Throwable[messages.size()];
+    }
+
+    /**
+     * Records the publish latency and message counts of the batch
+     * @param metrics the metrics to record to, or null to record nothing
+     */
+    public void setMetrics(IUbiMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts publishing the batch, the listener is called when all messages are done
+     * @param encoder the encoder to apply to each message, or null to publish the messages as they are
+     * @param executor the executor to encode the messages on, ignored if there is no encoder
+     */
+    public void start(Encoder encoder, Executor executor) {
+        if (messages.isEmpty()) {
+            listener.onComplete(new UbiBatchResult(errors));
+            return;
+        }
+
+        if (encoder == null) {
+            synchronized (this) {
+                for (int i = 0; i < encoded.length; i++)
+                    encoded[i] = messages.get(i).getPayload();
+            }
+            pump();
+            return;
+        }
+
+        for (int i = 0; i < encoded.length; i++) {
+            final int index = i;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        encode(encoder, index);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // The executor refused the task, fail the message instead of leaving the batch incomplete
+                encodingDone(index, null, e);
+            }
+        }
+    }
+
+    private void encode(Encoder encoder, int index) {
+        try {
+            encodingDone(index, encoder.encode(messages.get(index)), null);
+        } catch (Exception e) {
+            encodingDone(index, null, e);
+        }
+    }
+
+    private void encodingDone(int index, byte[] bytes, Throwable error) {
+        synchronized (this) {
+            encoded[index] = bytes;
+            errors[index] = error;
+        }
+        pump();
+    }
+
+    // Publishes the messages that are encoded and fit in the window, in batch order
+    private void pump() {
+        boolean done;
+        int releases;
+
+        synchronized (this) {
+            pumping = true;
+            while (nextToPublish < encoded.length && inflight < window) {
+                int index = nextToPublish;
+
+                if (errors[index] != null) {
+                    nextToPublish++;
+                    completed++;
+                    continue;
+                }
+
+                byte[] bytes = encoded[index];
+                if (bytes == null)
+                    break;
+
+                nextToPublish++;
+                inflight++;
+                encoded[index] = null;
+
+                // Slots of the shared window are handed out in the order they are asked for, which keeps the batch order
+                Runnable task = publishTask(index, bytes);
+                if (inflightWindow != null)
+                    inflightWindow.acquire(task);
+                else
+                    task.run();
+            }
+            pumping = false;
+            releases = pendingReleases;
+            pendingReleases = 0;
+
+            done = completed == encoded.length && !reported;
+            if (done)
+                reported = true;
+        }
+
+        for (int i = 0; i < releases; i++)
+            inflightWindow.release();
+
+        if (done)
+            listener.onComplete(new UbiBatchResult(errors.clone()));
+    }
+
+    private Runnable publishTask(final int index, final byte[] bytes) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IMqttActionListener publishListener = new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken iMqttToken) {
+                            published(index, null);
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                            published(index, throwable != null ? throwable : new Exception("publish failed"));
+                        }
+                    };
+                    String topic = messages.get(index).getTopic();
+                    client.publish(topic, bytes, qos, retained, null, metrics != null ? new TimedActionListener(metrics, topic, publishListener) : publishListener);
+                } catch (Exception e) {
+                    published(index, e);
+                }
+            }
+        };
+    }
+
+    private void published(int index, Throwable error) {
+        synchronized (this) {
+            errors[index] = error;
+            inflight--;
+            completed++;
+            if (pumping) {
+                if (inflightWindow != null)
+                    pendingReleases++;
+                return;
+            }
+        }
+        if (inflightWindow != null)
+            inflightWindow.release();
+        pump();
+    }
+}
@@ -0,0 +1,116 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Subscribes to a large set of topic filters with few round trips, used for re-subscribing after a reconnect.
+ *
+ * The filters are sent in chunks, each chunk as one multi-topic SUBSCRIBE packet. At most a given number of
+ * chunks are waiting for their SUBACK at a time, the next chunk is sent when one completes.
+ */
+public class BulkSubscriber {
+
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    // The SUBACK return code of a filter the server refused
+    private static final int SUBSCRIPTION_FAILURE = 0x80;
+
+    private final IMqttAsyncClient client;
+    private final String[] filters;
+    private final int qos;
+    private final int chunkSize;
+    private final int concurrency;
+
+    private int nextFilter = 0;
+    private final List<String> refusedFilters = new ArrayList<>();
+
+    /**
+     * Constructs a subscriber for a set of filters
+     * @param client the client to subscribe with
+     * @param filters the topic filters to subscribe to, each filter is subscribed once even if it is listed several times
+     * @param qos the Mqtt qos to subscribe with
+     * @param chunkSize the maximum number of filters per SUBSCRIBE packet
+     * @param concurrency the maximum number of SUBSCRIBE packets waiting for acknowledgement at once
+     */
+    public BulkSubscriber(IMqttAsyncClient client, List<String> filters, int qos, int chunkSize, int concurrency) {
+        this.client = client;
+        Set<String> distinct = new LinkedHashSet<>(filters);
+        this.filters = distinct.toArray(new String[distinct.size()]);
+        this.qos = qos;
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Starts subscribing, failures are logged
+     */
+    public void start() {
+        for (int i = 0; i < concurrency; i++)
+            sendNextChunk();
+    }
+
+    /**
+     * Returns the filters the server has refused in its SUBACK so far
+     * @return the refused filters, in the order their SUBACKs arrived
+     */
+    public synchronized List<String> getRefusedFilters() {
+        return new ArrayList<>(refusedFilters);
+    }
+
+    private void sendNextChunk() {
+        // Sending the next chunk from the failure handler of a SUBSCRIBE that failed right away would recurse
+        while (true) {
+            String[] chunk;
+
+            synchronized (this) {
+                if (nextFilter >= filters.length)
+                    return;
+
+                int end = Math.min(nextFilter + chunkSize, filters.length);
+                chunk = Arrays.copyOfRange(filters, nextFilter, end);
+                nextFilter = end;
+            }
+
+            int[] qosArray = new int[chunk.length];
+            Arrays.fill(qosArray, qos);
+
+            try {
+                client.subscribe(chunk, qosArray, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken iMqttToken) {
+                        int[] grantedQos = iMqttToken.getGrantedQos();
+                        for (int i = 0; i < chunk.length && grantedQos != null && i < grantedQos.length; i++) {
+                            if (grantedQos[i] == SUBSCRIPTION_FAILURE) {
+                                Logger.warn("failed to re-subscribe to topic: " + chunk[i]);
+                                synchronized (BulkSubscriber.this) {
+                                    refusedFilters.add(chunk[i]);
+                                }
+                            }
+                        }
+                        if (Logger.isEnabled(LogLevel.DEBUG))
+                            Logger.debug("re-subscribed to " + chunk.length + " topics");
+                        sendNextChunk();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                        Logger.warn("failed to re-subscribe to " + chunk.length + " topics", throwable);
+                        sendNextChunk();
+                    }
+                });
+                return;
+            } catch (Exception e) {
+                Logger.warn("failed to re-subscribe to " + chunk.length + " topics", e);
+            }
+        }
+    }
+}
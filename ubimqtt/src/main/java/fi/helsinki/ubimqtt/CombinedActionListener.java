@@ -0,0 +1,38 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An action listener for several operations, calling the given listener once when all of them have succeeded,
+ * or once with the first failure
+ */
+public class CombinedActionListener implements IUbiActionListener {
+    private final AtomicInteger remaining;
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    private final IUbiActionListener actionListener;
+
+    /**
+     * Constructs a listener for the given number of operations
+     * @param count the number of operations
+     * @param actionListener the listener to call when all have succeeded or one has failed
+     */
+    public CombinedActionListener(int count, IUbiActionListener actionListener) {
+        this.remaining = new AtomicInteger(count);
+        this.actionListener = actionListener;
+    }
+
+    @Override
+    public void onSuccess(IMqttToken iMqttToken) {
+        if (remaining.decrementAndGet() == 0 && !failed.get())
+            actionListener.onSuccess(iMqttToken);
+    }
+
+    @Override
+    public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+        if (failed.compareAndSet(false, true))
+            actionListener.onFailure(iMqttToken, throwable);
+    }
+}
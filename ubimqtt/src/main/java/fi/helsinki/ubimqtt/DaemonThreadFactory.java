@@ -0,0 +1,24 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the thread pools owned by the library, so that they never keep
+ * the application from exiting
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    public DaemonThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
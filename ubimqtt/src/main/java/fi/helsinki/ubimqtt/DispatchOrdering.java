@@ -0,0 +1,18 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * Defines which messages are guaranteed to be delivered to listeners in arrival order when messages
+ * are dispatched on an executor
+ */
+public enum DispatchOrdering {
+    /**
+     * Messages on the same topic are delivered in order, one at a time, to all matching listeners
+     */
+    PER_TOPIC,
+
+    /**
+     * Messages are delivered in order to each listener, different listeners may receive the same
+     * message in parallel
+     */
+    PER_SUBSCRIPTION
+}
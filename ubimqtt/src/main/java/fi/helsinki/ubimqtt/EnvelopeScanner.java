@@ -0,0 +1,450 @@
+package fi.helsinki.ubimqtt;
+
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the parts of a signed message in the JSON serialization in a single pass, without building
+ * an object tree.
+ *
+ * The envelope has the form {"payload":"...","signatures":[{"protected":{...},"signature":"..."}]}, or
+ * {"payload":"...","merkle":{"index":0,"proof":["..."]},"root":"..."} for messages signed in a batch.
+ * The protected header is returned as the exact text it has in the envelope, so it can be verified
+ * without re-serializing it. Values of other members are skipped. Strings are only unescaped when they
+ * contain escape sequences, otherwise they are returned as substrings of the envelope.
+ */
+public class EnvelopeScanner {
+    private final String json;
+    private int pos = 0;
+
+    private String payload = null;
+    private String protectedHeader = null;
+    private String signature = null;
+
+    private String root = null;
+    private long merkleIndex = -1;
+    private List<String> merkleProof = null;
+
+    private long timestamp = 0;
+    private boolean hasTimestamp = false;
+    private String messageId = null;
+    private String keyId = null;
+    private String algorithm = null;
+    private long merkleSize = -1;
+
+    private EnvelopeScanner(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Scans a signed message in the JSON serialization
+     * @param json the signed message
+     * @return the scanner holding the payload, the protected header and the signature of the first signature
+     * @throws ParseException if the message is not valid JSON or is missing one of the parts
+     */
+    public static EnvelopeScanner scanEnvelope(String json) throws ParseException {
+        EnvelopeScanner scanner = new EnvelopeScanner(json);
+        scanner.scanEnvelope();
+        return scanner;
+    }
+
+    /**
+     * Scans a protected header for the members used for replay detection and key selection
+     * @param header the protected header as JSON
+     * @return the scanner holding the timestamp, the message id and the key id of the header
+     * @throws ParseException if the header is not a valid JSON object or has no timestamp or message id
+     */
+    public static EnvelopeScanner scanHeader(String header) throws ParseException {
+        EnvelopeScanner scanner = new EnvelopeScanner(header);
+        scanner.scanHeader();
+        return scanner;
+    }
+
+    /**
+     * Checks that a string is a single JSON object
+     * @param json the string to check
+     * @throws ParseException if the string is not a valid JSON object
+     */
+    public static void checkObject(String json) throws ParseException {
+        EnvelopeScanner scanner = new EnvelopeScanner(json);
+        scanner.skipWhitespace();
+        if (scanner.peek() != '{')
+            throw scanner.unexpected();
+        scanner.skipValue();
+        scanner.expectEnd();
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public String getProtectedHeader() {
+        return protectedHeader;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the signed root of the batch of a message signed in a batch
+     * @return the root in the compact serialization or null if the message is not signed in a batch
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    public long getMerkleIndex() {
+        return merkleIndex;
+    }
+
+    public List<String> getMerkleProof() {
+        return merkleProof;
+    }
+
+    /**
+     * Returns the number of messages in the batch of a signed Merkle root
+     * @return the "merkle" header or -1 if the header has none
+     */
+    public long getMerkleSize() {
+        return merkleSize;
+    }
+
+    private void scanEnvelope() throws ParseException {
+        skipWhitespace();
+        expect('{');
+
+        if (!tryConsume('}')) {
+            do {
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                if (key.equals("payload"))
+                    payload = readString();
+                else if (key.equals("signatures"))
+                    scanSignatures();
+                else if (key.equals("root"))
+                    root = readString();
+                else if (key.equals("merkle"))
+                    scanMerkle();
+                else
+                    skipValue();
+
+                skipWhitespace();
+            } while (tryConsume(','));
+            expect('}');
+        }
+        expectEnd();
+
+        if (root != null) {
+            if (payload == null || merkleIndex < 0 || merkleProof == null)
+                throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+        }
+        else if (payload == null || protectedHeader == null || signature == null)
+            throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+    }
+
+    private void scanMerkle() throws ParseException {
+        expect('{');
+        skipWhitespace();
+        if (tryConsume('}'))
+            return;
+
+        do {
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if (key.equals("index"))
+                merkleIndex = readLong();
+            else if (key.equals("proof")) {
+                merkleProof = new ArrayList<>();
+                expect('[');
+                skipWhitespace();
+                if (!tryConsume(']')) {
+                    do {
+                        skipWhitespace();
+                        merkleProof.add(readString());
+                        skipWhitespace();
+                    } while (tryConsume(','));
+                    expect(']');
+                }
+            }
+            else
+                skipValue();
+
+            skipWhitespace();
+        } while (tryConsume(','));
+        expect('}');
+    }
+
+    // Only the first signature is used, the rest are skipped
+    private void scanSignatures() throws ParseException {
+        expect('[');
+        skipWhitespace();
+        if (tryConsume(']'))
+            return;
+
+        scanSignature();
+        skipWhitespace();
+        while (tryConsume(',')) {
+            skipWhitespace();
+            skipValue();
+            skipWhitespace();
+        }
+        expect(']');
+    }
+
+    private void scanSignature() throws ParseException {
+        expect('{');
+        skipWhitespace();
+        if (tryConsume('}'))
+            return;
+
+        do {
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if (key.equals("protected")) {
+                if (peek() != '{')
+                    throw unexpected();
+                int start = pos;
+                skipValue();
+                protectedHeader = json.substring(start, pos);
+            }
+            else if (key.equals("signature"))
+                signature = readString();
+            else
+                skipValue();
+
+            skipWhitespace();
+        } while (tryConsume(','));
+        expect('}');
+    }
+
+    private void scanHeader() throws ParseException {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+
+        if (!tryConsume('}')) {
+            do {
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                if (key.equals("timestamp")) {
+                    timestamp = readLong();
+                    hasTimestamp = true;
+                }
+                else if (key.equals("messageid"))
+                    messageId = readString();
+                else if (key.equals("kid"))
+                    keyId = readString();
+                else if (key.equals("alg"))
+                    algorithm = readString();
+                else if (key.equals("merkle"))
+                    merkleSize = readLong();
+                else
+                    skipValue();
+
+                skipWhitespace();
+            } while (tryConsume(','));
+            expect('}');
+        }
+        expectEnd();
+
+        if (!hasTimestamp || messageId == null)
+            throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+    }
+
+    private char peek() throws ParseException {
+        if (pos >= json.length())
+            throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+        return json.charAt(pos);
+    }
+
+    private ParseException unexpected() {
+        return new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, pos < json.length() ? json.charAt(pos) : null);
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                return;
+            pos++;
+        }
+    }
+
+    private void expect(char c) throws ParseException {
+        skipWhitespace();
+        if (peek() != c)
+            throw unexpected();
+        pos++;
+    }
+
+    private boolean tryConsume(char c) {
+        skipWhitespace();
+        if (pos < json.length() && json.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectEnd() throws ParseException {
+        skipWhitespace();
+        if (pos != json.length())
+            throw unexpected();
+    }
+
+    private String readString() throws ParseException {
+        expect('"');
+        int start = pos;
+
+        // Fast path, strings without escapes are substrings of the input
+        while (true) {
+            char c = peek();
+            if (c == '"') {
+                pos++;
+                return json.substring(start, pos - 1);
+            }
+            if (c == '\\')
+                break;
+            pos++;
+        }
+
+        StringBuilder builder = new StringBuilder(pos - start + 16);
+        builder.append(json, start, pos);
+
+        while (true) {
+            char c = peek();
+            pos++;
+
+            if (c == '"')
+                return builder.toString();
+
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            char escaped = peek();
+            pos++;
+
+            switch (escaped) {
+                case '"': builder.append('"'); break;
+                case '\\': builder.append('\\'); break;
+                case '/': builder.append('/'); break;
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > json.length())
+                        throw unexpected();
+                    try {
+                        builder.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw unexpected();
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    pos--;
+                    throw unexpected();
+            }
+        }
+    }
+
+    private long readLong() throws ParseException {
+        int start = pos;
+        if (pos < json.length() && json.charAt(pos) == '-')
+            pos++;
+        while (pos < json.length() && Character.isDigit(json.charAt(pos)))
+            pos++;
+
+        try {
+            return Long.parseLong(json.substring(start, pos));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw unexpected();
+        }
+    }
+
+    // Skips any JSON value, only checking it well enough to find where it ends
+    private void skipValue() throws ParseException {
+        skipWhitespace();
+        char c = peek();
+
+        if (c == '"') {
+            pos++;
+            while (true) {
+                char next = peek();
+                pos++;
+                if (next == '"')
+                    return;
+                if (next == '\\') {
+                    peek();
+                    pos++;
+                }
+            }
+        }
+
+        if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            pos++;
+            skipWhitespace();
+            if (tryConsume(close))
+                return;
+
+            do {
+                if (close == '}') {
+                    readString();
+                    expect(':');
+                }
+                skipValue();
+                skipWhitespace();
+            } while (tryConsume(','));
+            expect(close);
+            return;
+        }
+
+        // A number, true, false or null
+        int start = pos;
+        while (pos < json.length()) {
+            char next = json.charAt(pos);
+            if (next == ',' || next == '}' || next == ']' || next == ' ' || next == '\t' || next == '\n' || next == '\r')
+                break;
+            pos++;
+        }
+        if (pos == start)
+            throw unexpected();
+    }
+}
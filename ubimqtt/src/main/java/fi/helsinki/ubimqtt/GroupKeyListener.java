@@ -0,0 +1,124 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.crypto.ECDHDecrypter;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * Receives the versions of a group key sent to this member, encrypted for its public key and signed by the
+ * distributor of the group keys, and adds them to the key ring of the group. Keys not signed by the distributor
+ * are discarded, as anyone can encrypt a key for the public key of a member. The subscription to the main topic is made
+ * when the first key arrives. Both subscriptions are known by the listener id of the key subscription, which
+ * is also given to the listener of the main topic.
+ */
+public class GroupKeyListener implements IUbiMessageListener {
+    private final UbiMqtt ubiMqtt;
+    private final String mainTopic;
+    private final IUbiMessageListener mainListener;
+    private final IUbiActionListener originalCallback;
+    private final ECDHDecrypter decrypter;
+    private final ECPublicKey distributorKey;
+    private final GroupKeyRing keyRing;
+    private final boolean authenticated;
+
+    private boolean subscribed = false;
+    private boolean cancelled = false;
+    private String mainListenerId = null;
+
+    /**
+     * Constructs a listener for the keys of a group
+     * @param distributorKey the public key the key messages must be signed with
+     * @param authenticated true if the main topic carries messages authenticated with the group key instead of encrypted
+     */
+    public GroupKeyListener(UbiMqtt ubiMqtt, String mainTopic, IUbiMessageListener mainListener, IUbiActionListener originalCallback, ECDHDecrypter decrypter, ECPublicKey distributorKey, GroupKeyRing keyRing, boolean authenticated) {
+        this.ubiMqtt = ubiMqtt;
+        this.mainTopic = mainTopic;
+        this.mainListener = mainListener;
+        this.originalCallback = originalCallback;
+        this.decrypter = decrypter;
+        this.distributorKey = distributorKey;
+        this.keyRing = keyRing;
+        this.authenticated = authenticated;
+    }
+
+    public void messageArrived(String topic, MqttMessage message, String listenerId) throws Exception {
+        String signed = message.toString();
+        try {
+            if (!JwsHelper.verifySignatureCompact(signed, distributorKey)) {
+                Logger.warn("discarding group key on topic " + topic + " that is not signed by the distributor");
+                return;
+            }
+        } catch (Exception e) {
+            Logger.warn("discarding malformed group key on topic " + topic, e);
+            return;
+        }
+
+        UbiGroupKey key;
+        try {
+            key = UbiGroupKey.fromJson(JwsHelper.decryptMessage(JWSObject.parse(signed).getPayload().toString(), decrypter));
+        } catch (Exception e) {
+            Logger.warn("discarding group key on topic " + topic + " that could not be decrypted", e);
+            return;
+        }
+
+        if (!key.getGroup().equals(keyRing.getGroup())) {
+            Logger.warn("discarding key of group " + key.getGroup() + " on topic " + topic);
+            return;
+        }
+
+        if (!keyRing.add(key)) {
+            Logger.warn("discarding version " + key.getVersion() + " of the key of group " + key.getGroup() + " on topic " + topic
+                    + ", it conflicts with a known version or is too far ahead of the newest one");
+            return;
+        }
+        Logger.info("received version " + key.getVersion() + " of the key of group " + key.getGroup());
+
+        boolean first;
+        synchronized (this) {
+            first = !subscribed && !cancelled;
+            subscribed = true;
+        }
+
+        // This is the first time a key arrives, subscribe to the main topic
+        if (first) {
+            final String groupListenerId = listenerId;
+            String id = ubiMqtt.addGroupSubscription(mainTopic, keyRing, new IUbiMessageListener() {
+                @Override
+                public void messageArrived(String topic, MqttMessage mqttMessage, String listenerId) throws Exception {
+                    mainListener.messageArrived(topic, mqttMessage, groupListenerId);
+                }
+            }, originalCallback, authenticated);
+
+            boolean late;
+            synchronized (this) {
+                mainListenerId = id;
+                late = cancelled;
+            }
+
+            // The group was unsubscribed while the main topic was being subscribed to
+            if (late && id != null)
+                ubiMqtt.unsubscribe(id, new IUbiActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken iMqttToken) {
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                        Logger.warn("unsubscribing from topic " + mainTopic + " failed", throwable);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Stops subscribing to the main topic when keys arrive
+     * @return the listener id of the subscription to the main topic, or null if it has not been made
+     */
+    synchronized String cancel() {
+        cancelled = true;
+        return mainListenerId;
+    }
+}
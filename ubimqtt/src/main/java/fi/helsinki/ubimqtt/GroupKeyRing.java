@@ -0,0 +1,99 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The versions of a group key a member can currently decrypt with. The newest versions are kept, older
+ * ones are dropped when a rotation brings the number of versions over the limit.
+ *
+ * A version that is already known is never replaced with other key material, and a version too far ahead of
+ * the newest known one is refused, so a bogus key cannot take over a version or push the real ones out.
+ *
+ * Keys are added rarely and looked up for every message, so lookups read an immutable map without locking.
+ */
+public class GroupKeyRing {
+    public static final int DEFAULT_MAX_VERSIONS = 3;
+    public static final int DEFAULT_MAX_VERSIONS_AHEAD = 16;
+
+    private final String group;
+    private final int maxVersions;
+    private final int maxVersionsAhead;
+    private volatile Map<String, UbiGroupKey> keys = Collections.emptyMap();
+
+    /**
+     * Constructs an empty key ring
+     * @param group the name of the group, keys of other groups are not accepted
+     * @param maxVersions the number of newest key versions to keep
+     */
+    public GroupKeyRing(String group, int maxVersions) {
+        this(group, maxVersions, DEFAULT_MAX_VERSIONS_AHEAD);
+    }
+
+    /**
+     * Constructs an empty key ring
+     * @param group the name of the group, keys of other groups are not accepted
+     * @param maxVersions the number of newest key versions to keep
+     * @param maxVersionsAhead how many versions past the newest known one a new key may be, for members that
+     *                         missed rotations while offline
+     */
+    public GroupKeyRing(String group, int maxVersions, int maxVersionsAhead) {
+        this.group = group;
+        this.maxVersions = maxVersions;
+        this.maxVersionsAhead = maxVersionsAhead;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Adds a key version. Adding a version that is already known with the same key material does nothing.
+     * @param key the key
+     * @return false if the key was refused, because its version is known with other key material or is too far
+     *         ahead of the newest known version
+     * @throws IllegalArgumentException if the key belongs to another group
+     */
+    public synchronized boolean add(UbiGroupKey key) {
+        if (!key.getGroup().equals(group))
+            throw new IllegalArgumentException("key of group " + key.getGroup() + " does not belong to group " + group);
+
+        UbiGroupKey existing = keys.get(key.getKeyId());
+        if (existing != null)
+            return existing.hasSameKey(key);
+
+        int newest = 0;
+        for (UbiGroupKey candidate : keys.values())
+            newest = Math.max(newest, candidate.getVersion());
+        if (newest > 0 && (long) key.getVersion() > (long) newest + maxVersionsAhead)
+            return false;
+
+        Map<String, UbiGroupKey> updated = new HashMap<>(keys);
+        updated.put(key.getKeyId(), key);
+
+        while (updated.size() > maxVersions) {
+            UbiGroupKey oldest = null;
+            for (UbiGroupKey candidate : updated.values()) {
+                if (oldest == null || candidate.getVersion() < oldest.getVersion())
+                    oldest = candidate;
+            }
+            updated.remove(oldest.getKeyId());
+        }
+        keys = updated;
+        return true;
+    }
+
+    /**
+     * Returns the key with the given key id
+     * @param keyId the "kid" header of an encrypted message
+     * @return the key, or null if the ring has no such key
+     */
+    public UbiGroupKey get(String keyId) {
+        return keyId != null ? keys.get(keyId) : null;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
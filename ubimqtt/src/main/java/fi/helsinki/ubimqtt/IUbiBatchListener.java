@@ -0,0 +1,5 @@
+package fi.helsinki.ubimqtt;
+
+public interface IUbiBatchListener {
+    void onComplete(UbiBatchResult result);
+}
@@ -0,0 +1,5 @@
+package fi.helsinki.ubimqtt;
+
+public interface IUbiLogSink {
+    void log(LogLevel level, String message, Throwable throwable);
+}
@@ -0,0 +1,39 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives the measurements of a UbiMqtt instance, see UbiMqtt.setMetrics. UbiMetricsRecorder keeps them in
+ * memory and returns them as snapshots, other implementations can pass them to an external metrics registry.
+ *
+ * The methods are called on the publishing, Mqtt client and delivery threads, so they must be thread safe and fast.
+ */
+public interface IUbiMetrics {
+    String GAUGE_DISPATCH_QUEUE_DEPTH = "dispatch.queue.depth";
+    String GAUGE_VERIFICATION_QUEUE_DEPTH = "verification.queue.depth";
+    String GAUGE_PUBLISH_INFLIGHT = "publish.inflight";
+    String GAUGE_JOURNAL_PENDING = "journal.pending";
+
+    void recordTime(UbiTimer timer, long nanos);
+
+    void increment(UbiCounter counter);
+
+    void messagePublished(String topic);
+
+    void messageReceived(String topic);
+
+    /**
+     * Registers a value that is read when the metrics are read. Several instances sharing the metrics may register
+     * gauges with the same name.
+     * @param name the name of the gauge, one of the GAUGE_ constants for the gauges of UbiMqtt
+     * @param gauge the function returning the current value
+     */
+    void registerGauge(String name, LongSupplier gauge);
+
+    /**
+     * Removes a value registered with registerGauge, UbiMqtt calls this when it stops recording to these metrics
+     * @param name the name the gauge was registered with
+     * @param gauge the function that was registered
+     */
+    void unregisterGauge(String name, LongSupplier gauge);
+}
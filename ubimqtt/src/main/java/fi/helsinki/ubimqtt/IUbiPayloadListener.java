@@ -0,0 +1,7 @@
+package fi.helsinki.ubimqtt;
+
+import java.nio.ByteBuffer;
+
+public interface IUbiPayloadListener {
+    void messageArrived(String topic, ByteBuffer payload, String listenerId) throws Exception;
+}
@@ -0,0 +1,173 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An incoming message while it is being delivered to all the subscriptions matching its topic.
+ *
+ * Work that does not depend on the subscription is done at most once per message and shared by all
+ * subscriptions: the payload is decoded and parsed once, each distinct public key is checked against
+ * the signature once, and the replay check is done once. Subscriptions may handle the same message on
+ * different threads, so the shared state is synchronized.
+ */
+public class IncomingMessage {
+
+    private final String topic;
+    private final MqttMessage mqttMessage;
+    private final IUbiMetrics metrics;
+
+    private String text = null;
+    private SignedMessage signedMessage = null;
+    private boolean parsed = false;
+
+    // The result of checking the signature against one key, the check itself is done holding the lock of the entry
+    private static class KeyCheck {
+        private final ECPublicKey key;
+        private Boolean result = null;
+
+        private KeyCheck(ECPublicKey key) {
+            this.key = key;
+        }
+    }
+
+    private final List<KeyCheck> keyChecks = new ArrayList<>(2);
+
+    private Boolean fresh = null;
+
+    public IncomingMessage(String topic, MqttMessage mqttMessage) {
+        this(topic, mqttMessage, null);
+    }
+
+    /**
+     * Constructs a message recording signature checks and rejections to the given metrics
+     * @param topic the topic the message arrived on
+     * @param mqttMessage the message
+     * @param metrics the metrics to record to, or null to record nothing
+     */
+    public IncomingMessage(String topic, MqttMessage mqttMessage, IUbiMetrics metrics) {
+        this.topic = topic;
+        this.mqttMessage = mqttMessage;
+        this.metrics = metrics;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public MqttMessage getMqttMessage() {
+        return mqttMessage;
+    }
+
+    /**
+     * Returns the payload decoded into a string, the payload is decoded only once
+     * @return the payload as a string
+     */
+    public synchronized String getText() {
+        if (text == null)
+            text = mqttMessage.toString();
+        return text;
+    }
+
+    /**
+     * Returns the message parsed as a signed message, the message is parsed only once
+     * @return the parsed message or null if the payload is not a valid signed message
+     */
+    public synchronized SignedMessage getSignedMessage() {
+        if (!parsed) {
+            parsed = true;
+            try {
+                signedMessage = SignedMessage.parse(getText());
+            } catch (Exception e) {
+                Logger.warn("discarding malformed signed message on topic " + topic);
+            }
+        }
+        return signedMessage;
+    }
+
+    private synchronized KeyCheck getKeyCheck(ECPublicKey key) {
+        for (int i = 0; i < keyChecks.size(); i++) {
+            KeyCheck check = keyChecks.get(i);
+            // Subscriptions parse their keys separately, so the same key may come as different instances
+            if (check.key == key || check.key.equals(key))
+                return check;
+        }
+
+        KeyCheck check = new KeyCheck(key);
+        keyChecks.add(check);
+        return check;
+    }
+
+    /**
+     * Checks whether the message is signed by one of the given keys. Each distinct key is checked only once per
+     * message, later and concurrent calls with the same key, for example from another subscription, reuse the result.
+     * @param candidateKeys the keys to check the signature against
+     * @return true if the message is a signed message and the signature is valid for one of the keys
+     */
+    public boolean isSignedByAny(ECPublicKey[] candidateKeys) {
+        return isSignedByAny(candidateKeys, null);
+    }
+
+    /**
+     * Checks whether the message is signed by one of the given keys, see isSignedByAny. The signature of a message
+     * signed in a batch is checked once per batch, using the checked roots of the given validator.
+     * @param candidateKeys the keys to check the signature against
+     * @param messageValidator the validator holding the checked roots or null to check the root again
+     * @return true if the message is a signed message and the signature is valid for one of the keys
+     */
+    public boolean isSignedByAny(ECPublicKey[] candidateKeys, MessageValidator messageValidator) {
+        SignedMessage signedMessage = getSignedMessage();
+        if (signedMessage == null) {
+            if (metrics != null)
+                metrics.increment(UbiCounter.SIGNATURE_FAILURES);
+            return false;
+        }
+
+        for (int i = 0; i < candidateKeys.length; i++) {
+            KeyCheck check = getKeyCheck(candidateKeys[i]);
+            boolean result;
+
+            // Subscriptions handling the message on other threads wait for a check of the same key in progress
+            // instead of checking it again, checks of different keys run in parallel
+            synchronized (check) {
+                if (check.result == null) {
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    try {
+                        check.result = signedMessage.isSignedBy(check.key, messageValidator != null ? messageValidator.getRootCache() : null);
+                    } catch (Exception e) {
+                        Logger.warn("checking signature of message on topic " + topic + " failed", e);
+                        check.result = false;
+                    }
+                    if (metrics != null)
+                        metrics.recordTime(UbiTimer.VERIFY, System.nanoTime() - start);
+                }
+                result = check.result;
+            }
+
+            if (result)
+                return true;
+        }
+
+        if (metrics != null)
+            metrics.increment(UbiCounter.SIGNATURE_FAILURES);
+        return false;
+    }
+
+    /**
+     * Checks that the message is recent and has not been seen before. The check is done once per message,
+     * so that a message delivered to several subscriptions is not rejected as a replay of itself.
+     * @param messageValidator the validator holding the replay detection state
+     * @return true if the message should be accepted
+     */
+    public synchronized boolean isFresh(MessageValidator messageValidator) {
+        if (fresh == null) {
+            fresh = getSignedMessage() != null && messageValidator.isFresh(signedMessage);
+            if (!fresh && signedMessage != null && metrics != null)
+                metrics.increment(UbiCounter.REPLAY_REJECTIONS);
+        }
+        return fresh;
+    }
+}
@@ -0,0 +1,145 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of published messages waiting for acknowledgement from the Mqtt server.
+ *
+ * A slot is taken before publishing and released when the message is acknowledged or fails. Callers may
+ * try to take a slot, block until one is free or queue a task that runs once it has been given a slot.
+ * Released slots go to queued tasks first, in the order they were queued, and then to blocked threads.
+ */
+public class InflightWindow {
+    private int size;
+    private int inflight = 0;
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+    // Releases made by a queued task while it runs inside release(), handled by the outer call in a loop
+    // so that a long queue of tasks failing immediately does not grow the stack
+    private final ThreadLocal<int[]> deferredReleases = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] {-1};
+        }
+    };
+
+    /**
+     * Constructs a window
+     * @param size the maximum number of slots taken at once
+     */
+    public InflightWindow(int size) {
+        this.size = size;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Changes the number of slots. Slots added are handed to queued tasks and blocked threads right away, while
+     * removing slots only lets new callers wait until enough taken slots have been released.
+     * @param size the maximum number of slots taken at once
+     */
+    public void setSize(int size) {
+        List<Runnable> granted = new ArrayList<>();
+        synchronized (this) {
+            this.size = size;
+            while (inflight < size && !waiting.isEmpty()) {
+                granted.add(waiting.poll());
+                inflight++;
+            }
+            notifyAll();
+        }
+        for (int i = 0; i < granted.size(); i++)
+            granted.get(i).run();
+    }
+
+    /**
+     * Returns the number of taken slots
+     * @return the number of messages waiting for acknowledgement
+     */
+    public synchronized int getInflight() {
+        return inflight;
+    }
+
+    /**
+     * Returns the number of tasks queued for a slot
+     * @return the number of queued tasks
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Takes a slot if one is free
+     * @return true if a slot was taken
+     */
+    public synchronized boolean tryAcquire() {
+        // Queued tasks are first in line
+        if (inflight >= size || !waiting.isEmpty())
+            return false;
+        inflight++;
+        return true;
+    }
+
+    /**
+     * Takes a slot, waiting until one is free
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inflight >= size || !waiting.isEmpty())
+            wait();
+        inflight++;
+    }
+
+    /**
+     * Runs a task once it has been given a slot, immediately on the calling thread if a slot is free and
+     * otherwise on the thread releasing a slot. The task must release the slot when it is done with it.
+     * @param task the task to run
+     */
+    public void acquire(Runnable task) {
+        synchronized (this) {
+            if (inflight >= size || !waiting.isEmpty()) {
+                waiting.add(task);
+                return;
+            }
+            inflight++;
+        }
+        task.run();
+    }
+
+    /**
+     * Releases a slot, handing it over to the first queued task if there is one
+     */
+    public void release() {
+        int[] deferred = deferredReleases.get();
+        if (deferred[0] >= 0) {
+            deferred[0]++;
+            return;
+        }
+
+        deferred[0] = 1;
+        try {
+            while (deferred[0] > 0) {
+                deferred[0]--;
+
+                Runnable next;
+                synchronized (this) {
+                    // After the window has been made smaller, slots above the new size are not handed over
+                    next = inflight > size ? null : waiting.poll();
+                    if (next == null) {
+                        inflight--;
+                        notifyAll();
+                        continue;
+                    }
+                }
+                // The slot passes to the queued task as is
+                next.run();
+            }
+        } finally {
+            deferred[0] = -1;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mqtt client persistence storing the in-flight messages of the Mqtt client in an append-only log file,
+ * instead of one file per message like Paho's MqttDefaultFilePersistence.
+ *
+ * Every put and remove appends one record to the log, the live messages are also kept in memory for get.
+ * When the log is opened it is replayed, ignoring a record torn by a crash, and rewritten with only the
+ * live messages. The log is rewritten the same way when it has grown to mostly removed messages.
+ *
+ * Paho only keeps messages in the persistence across reconnects and restarts if clean session is off,
+ * see UbiMqtt.setCleanSession.
+ */
+public class JournalPersistence implements MqttClientPersistence {
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+    private final File directory;
+
+    private File logFile = null;
+    private DataOutputStream log = null;
+    private final Map<String, byte[][]> entries = new LinkedHashMap<>();
+    private int recordCount = 0;
+
+    /**
+     * Constructs a persistence storing its log in the given directory, one log per client id and server
+     * @param directory the directory for the logs, created if it does not exist
+     */
+    public JournalPersistence(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new MqttPersistenceException(new IOException("cannot create persistence directory " + directory));
+
+        String name = (clientId + "-" + serverURI).replaceAll("[^a-zA-Z0-9_.-]", "_");
+        logFile = new File(directory, name + ".log");
+
+        entries.clear();
+        try {
+            if (logFile.exists())
+                replay();
+            compact();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    private void replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                try {
+                    String key = in.readUTF();
+                    if (op == OP_PUT) {
+                        byte[] header = new byte[in.readInt()];
+                        in.readFully(header);
+                        byte[] payload = new byte[in.readInt()];
+                        in.readFully(payload);
+                        entries.put(key, new byte[][] {header, payload});
+                    }
+                    else if (op == OP_REMOVE) {
+                        entries.remove(key);
+                    }
+                    else {
+                        Logger.warn("persistence log " + logFile + " is corrupted, ignoring the rest of it");
+                        return;
+                    }
+                } catch (EOFException e) {
+                    // The last record was torn by a crash
+                    return;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Rewrites the log with only the live messages and replaces the old log with it
+    private void compact() throws IOException {
+        if (log != null)
+            log.close();
+
+        File compacted = new File(logFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)));
+        try {
+            for (Map.Entry<String, byte[][]> entry : entries.entrySet())
+                writePut(out, entry.getKey(), entry.getValue()[0], 0, entry.getValue()[0].length, entry.getValue()[1], 0, entry.getValue()[1].length);
+        } finally {
+            out.close();
+        }
+
+        if (!compacted.renameTo(logFile)) {
+            // Renaming over an existing file fails on some platforms
+            if (!logFile.delete() || !compacted.renameTo(logFile))
+                throw new IOException("cannot replace persistence log " + logFile);
+        }
+
+        recordCount = entries.size();
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+    }
+
+    private static void writePut(DataOutputStream out, String key, byte[] header, int headerOffset, int headerLength, byte[] payload, int payloadOffset, int payloadLength) throws IOException {
+        out.writeByte(OP_PUT);
+        out.writeUTF(key);
+        out.writeInt(headerLength);
+        out.write(header, headerOffset, headerLength);
+        out.writeInt(payloadLength);
+        if (payload != null)
+            out.write(payload, payloadOffset, payloadLength);
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (log == null)
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+    }
+
+    private void maybeCompact() throws IOException {
+        if (recordCount > MIN_RECORDS_BEFORE_COMPACTION && recordCount > entries.size() * 4)
+            compact();
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (log == null)
+            return;
+
+        try {
+            log.close();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            log = null;
+            entries.clear();
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+
+        try {
+            int payloadLength = persistable.getPayloadBytes() != null ? persistable.getPayloadLength() : 0;
+
+            writePut(log, key, persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength(),
+                    persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+            log.flush();
+            recordCount++;
+
+            byte[] header = new byte[persistable.getHeaderLength()];
+            System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), header, 0, header.length);
+            byte[] payload = new byte[payloadLength];
+            if (payloadLength > 0)
+                System.arraycopy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payload, 0, payloadLength);
+
+            entries.put(key, new byte[][] {header, payload});
+
+            maybeCompact();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+
+        byte[][] entry = entries.get(key);
+        if (entry == null)
+            return null;
+        return new MqttPersistentData(key, entry[0], 0, entry[0].length, entry[1], 0, entry[1].length);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+
+        if (entries.remove(key) == null)
+            return;
+
+        try {
+            log.writeByte(OP_REMOVE);
+            log.writeUTF(key);
+            log.flush();
+            recordCount++;
+
+            maybeCompact();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(entries.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+
+        entries.clear();
+        try {
+            compact();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return entries.containsKey(key);
+    }
+}
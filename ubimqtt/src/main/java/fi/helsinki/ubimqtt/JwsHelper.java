@@ -8,12 +8,14 @@ import com.nimbusds.jose.JWEObject;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.JWSSigner;
 import com.nimbusds.jose.JWSVerifier;
 import com.nimbusds.jose.Payload;
-import com.nimbusds.jose.crypto.ECDSASigner;
 import com.nimbusds.jose.crypto.ECDSAVerifier;
 import com.nimbusds.jose.crypto.ECDHEncrypter;
 import com.nimbusds.jose.crypto.ECDHDecrypter;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
 import com.nimbusds.jose.util.Base64URL;
 
 import java.security.interfaces.ECPrivateKey;
@@ -23,8 +25,8 @@ import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -32,15 +34,47 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.security.KeyPair;
 import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 public class JwsHelper {
 
+    /**
+     * The signature algorithms accepted by signed subscriptions unless they declare their own set
+     */
+    public static final Set<JWSAlgorithm> SIGNATURE_ALGORITHMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            JWSAlgorithm.ES256, JWSAlgorithm.ES384, JWSAlgorithm.ES512)));
+
+    /**
+     * Returns the signature algorithm used with keys of a curve. ECDSA ties the algorithm to the curve, so the
+     * algorithm is chosen by choosing the curve of the signing key: P-256 is much faster than P-521.
+     *
+     * @param params the curve of the key
+     *
+     * @return ES256, ES384 or ES512
+     *
+     * @throws JOSEException if the curve is not one of P-256, P-384 or P-521
+     */
+    public static JWSAlgorithm signatureAlgorithmFor(ECParameterSpec params) throws JOSEException {
+        Curve curve = Curve.forECParameterSpec(params);
+        if (Curve.P_256.equals(curve))
+            return JWSAlgorithm.ES256;
+        if (Curve.P_384.equals(curve))
+            return JWSAlgorithm.ES384;
+        if (Curve.P_521.equals(curve))
+            return JWSAlgorithm.ES512;
+        throw new JOSEException("unsupported curve " + curve);
+    }
+
     public static boolean verifySignature(String json, ECPublicKey publicKey) throws java.text.ParseException, IOException, JOSEException, ParseException {
-        return verifySignatureCompact(jsonToCompact(json), publicKey);
+        return verifySignatureCompact(isCompact(json) ? json : jsonToCompact(json), publicKey);
     }
 
     public static boolean verifySignature(String json, String publicKey) throws java.text.ParseException, IOException, JOSEException, ParseException {
-        return verifySignatureCompact(jsonToCompact(json), publicKey);
+        return verifySignatureCompact(isCompact(json) ? json : jsonToCompact(json), publicKey);
     }
 
     public static ECPublicKey createEcPublicKey(String publicKey) throws IOException {
@@ -56,6 +90,24 @@ public class JwsHelper {
         return ecPublicKey;
     }
 
+    /**
+     * Computes the key id stamped into the "kid" header of signed and encrypted messages. The id is the
+     * RFC 7638 thumbprint of the public key, so publishers and subscribers derive the same id independently.
+     *
+     * @param ecPublicKey the public key of the key pair
+     *
+     * @return the key id
+     *
+     * @throws JOSEException if the key is not on a supported curve
+     */
+    public static String computeKeyId(ECPublicKey ecPublicKey) throws JOSEException {
+        Curve curve = Curve.forECParameterSpec(ecPublicKey.getParams());
+        if (curve == null)
+            throw new JOSEException("unsupported curve");
+
+        return new ECKey.Builder(curve, ecPublicKey).build().computeThumbprint().toString();
+    }
+
     public static boolean verifySignatureCompact(String compact, String publicKey) throws java.text.ParseException, IOException, JOSEException {
         return verifySignatureCompact(compact, createEcPublicKey(publicKey));
     }
@@ -69,6 +121,11 @@ public class JwsHelper {
         Base64URL signature = new Base64URL(parts[2]);
 
         JWSObject jwsObject = new JWSObject(header, payload, signature);
+
+        // The algorithm of the header has to match the curve of the key, otherwise the key did not sign the message
+        if (!jwsObject.getHeader().getAlgorithm().equals(signatureAlgorithmFor(ecPublicKey.getParams())))
+            return false;
+
         JWSVerifier verifier = new ECDSAVerifier(ecPublicKey);
 
         return jwsObject.verify(verifier);
@@ -78,11 +135,56 @@ public class JwsHelper {
         return compactToJson(signMessageToCompact(message, privateKey));
     }
 
-    public static String signMessageToCompact( String message, String privateKey) throws JOSEException, IOException {
-        //ECKey jwk = (ECKey) ECKey.parseFromPEMEncodedObjects(pemEncodedRSAPrivateKey);
+    public static String signMessage(String message, UbiSigningKey signingKey) throws JOSEException, ParseException {
+        return compactToJson(signMessageToCompact(message, signingKey));
+    }
+
+    /**
+     * Signs a message and serializes it in the given format
+     *
+     * @param message the message to sign
+     * @param signingKey the key to sign the message with
+     * @param format the serialization to produce
+     *
+     * @return the signed message
+     *
+     * @throws JOSEException if signing fails
+     * @throws ParseException if the signed message cannot be serialized
+     */
+    public static String signMessage(String message, UbiSigningKey signingKey, SignatureFormat format) throws JOSEException, ParseException {
+        if (format == SignatureFormat.COMPACT)
+            return signMessageToCompact(message, signingKey);
+        return signMessage(message, signingKey);
+    }
+
+    /**
+     * Checks whether a signed message is in the compact serialization. JSON serialized messages are objects,
+     * while a compact serialization only contains base64url characters and dots.
+     *
+     * @param message the signed message
+     *
+     * @return true if the message is in the compact serialization
+     */
+    public static boolean isCompact(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (!Character.isWhitespace(c))
+                return c != '{';
+        }
+        return false;
+    }
 
+    /**
+     * Parses an EC key pair in .pem format
+     *
+     * @param privateKey the key pair in .pem format
+     *
+     * @return the parsed key pair
+     *
+     * @throws IOException if the key cannot be parsed
+     */
+    public static KeyPair createEcKeyPair(String privateKey) throws IOException {
         // Parse the EC key pair
-        //PEMParser pemParser = new PEMParser(new InputStreamReader(new FileInputStream("ec512-key-pair.pem")));
         PEMParser pemParser = new PEMParser(new StringReader(privateKey));
         PEMKeyPair pemKeyPair = (PEMKeyPair)pemParser.readObject();
 
@@ -91,33 +193,88 @@ public class JwsHelper {
         KeyPair keyPair = converter.getKeyPair(pemKeyPair);
         pemParser.close();
 
-        // Get private + public EC key
-        ECPrivateKey ecPrivateKey = (ECPrivateKey)keyPair.getPrivate();
+        return keyPair;
+    }
 
-        //ECPublicKey publicKey = (ECPublicKey)keyPair.getPublic();
+    public static String signMessageToCompact( String message, String privateKey) throws JOSEException, IOException {
+        return signMessageToCompact(message, new UbiSigningKey(privateKey));
+    }
 
-        JWSHeader header = new JWSHeader.Builder(JWSAlgorithm.ES512).
+    public static String signMessageToCompact(String message, UbiSigningKey signingKey) throws JOSEException {
+        return signMessageToCompact(message, signingKey.getAlgorithm(), signingKey.getKeyId(), signingKey.getSigner());
+    }
+
+    /**
+     * Signs a message with any signer, stamping the headers used for replay detection and key selection
+     *
+     * @param message the message to sign
+     * @param algorithm the algorithm of the signer
+     * @param keyId the id of the key, stamped into the "kid" header
+     * @param signer the signer
+     *
+     * @return the signed message in the compact serialization
+     *
+     * @throws JOSEException if signing fails
+     */
+    public static String signMessageToCompact(String message, JWSAlgorithm algorithm, String keyId, JWSSigner signer) throws JOSEException {
+        JWSHeader header = new JWSHeader.Builder(algorithm).
+                keyID(keyId).
                 customParam("timestamp", System.currentTimeMillis()).
                 customParam("messageid", RandomStringUtils.randomAlphanumeric(12)).
                 build();
 
-        JWSObject jwsObject = new JWSObject(header, new Payload(message));
-        jwsObject.sign(new ECDSASigner(ecPrivateKey));
+        // Older subscribers rebuild the signed bytes by serializing the header in the JSON serialization
+        // again with json-simple. Sign the header exactly as json-simple serializes it.
+        try {
+            JSONObject headerObj = (JSONObject) new JSONParser().parse(header.toString());
+            header = JWSHeader.parse(Base64URL.encode(headerObj.toJSONString()));
+        } catch (ParseException | java.text.ParseException e) {
+            throw new JOSEException("cannot serialize header", e);
+        }
 
+        JWSObject jwsObject = new JWSObject(header, new Payload(message));
+        jwsObject.sign(signer);
 
-        /*
-        JWSSigner signer = new ECDSASigner(ecKey);
+        return jwsObject.serialize();
+    }
 
-        JWSObject jwsObject = new JWSObject(
-                new JWSHeader.Builder(JWSAlgorithm.RS512).keyID(ecKey.getKeyID()).build(),
-                new Payload(message));
+    /**
+     * Signs the root of a Merkle tree over a batch of messages. The header has the usual timestamp and message id,
+     * the messages of the batch get their message ids from the one of the root, and the "merkle" header holding
+     * the number of messages in the batch. The signed root is only accepted as part of a message of the batch.
+     *
+     * @param root the root of the tree
+     * @param size the number of messages in the batch
+     * @param signingKey the key to sign the root with
+     *
+     * @return the signed root in the compact serialization
+     *
+     * @throws JOSEException if signing fails
+     */
+    public static String signMerkleRoot(byte[] root, int size, UbiSigningKey signingKey) throws JOSEException {
+        JWSHeader header = new JWSHeader.Builder(signingKey.getAlgorithm()).
+                keyID(signingKey.getKeyId()).
+                customParam("timestamp", System.currentTimeMillis()).
+                customParam("messageid", RandomStringUtils.randomAlphanumeric(12)).
+                customParam("merkle", size).
+                build();
 
-        jwsObject.sign(signer);
-        */
+        JWSObject jwsObject = new JWSObject(header, new Payload(root));
+        jwsObject.sign(signingKey.getSigner());
 
         return jwsObject.serialize();
     }
 
+    /**
+     * Converts a signed message from the compact serialization to the JSON serialization. The protected
+     * header is embedded as is, so that subscribers can verify it without re-serializing it.
+     *
+     * @param compact the signed message in the compact serialization
+     *
+     * @return the signed message in the JSON serialization
+     *
+     * @throws ParseException if the header is not a JSON object
+     */
     public static String compactToJson(String compact) throws ParseException{
         String[] parts = compact.split("\\.");
 
@@ -125,43 +282,20 @@ public class JwsHelper {
         String payload = new Base64URL(parts[1]).decodeToString();
         String signature = parts[2];
 
-        System.out.println("header: " +header);
-        System.out.println("payload: " +payload);
-        System.out.println("signature: " +signature);
-
-        JSONObject obj = new JSONObject();
-
-        JSONObject signatureObject = new JSONObject();
-
-        JSONParser parser = new JSONParser();
-        JSONObject headerObj = (JSONObject) parser.parse(header);
-
-        signatureObject.put("protected", headerObj);
-        signatureObject.put("signature", signature);
+        EnvelopeScanner.checkObject(header);
 
-        JSONArray signaturesArray = new JSONArray();
-        signaturesArray.add(signatureObject);
+        StringBuilder builder = new StringBuilder(header.length() + payload.length() + signature.length() + 64);
+        builder.append("{\"payload\":\"").append(JSONValue.escape(payload)).
+                append("\",\"signatures\":[{\"protected\":").append(header).
+                append(",\"signature\":\"").append(signature).append("\"}]}");
 
-        obj.put("payload", payload);
-        obj.put("signatures", signaturesArray);
-
-        return obj.toJSONString();
+        return builder.toString();
     }
 
+    public static String jsonToCompact(String json) throws ParseException {
+        EnvelopeScanner envelope = EnvelopeScanner.scanEnvelope(json);
 
-  public static String jsonToCompact(String json) throws ParseException {
-      JSONParser parser = new JSONParser();
-      JSONObject obj = (JSONObject) parser.parse(json);
-
-      String payload = (String)obj.get("payload");
-
-      JSONArray signaturesArray = (JSONArray)obj.get("signatures");
-      JSONObject signatureObject = (JSONObject)signaturesArray.get(0);
-
-      String header = ((JSONObject)signatureObject.get("protected")).toJSONString();
-      String signature = (String)signatureObject.get("signature");
-      
-      return Base64URL.encode(header)+"."+Base64URL.encode(payload)+"."+signature;
+        return Base64URL.encode(envelope.getProtectedHeader())+"."+Base64URL.encode(envelope.getPayload())+"."+envelope.getSignature();
     }
 
     /**
@@ -175,11 +309,33 @@ public class JwsHelper {
      * @throws JOSEException if encrypting isn't possible.
      */
     public static String encryptMessage(String message, ECPublicKey ecPublicKey) throws JOSEException {
+        return encryptMessage(new Payload(message), ecPublicKey);
+    }
+
+    /**
+     * Encrypts binary messages using 'ECDH_ES' and 'A128CBC_HS256' algorithms and EC public key.
+     * 
+     * @param message the data to be encrypted.
+     * @param ecPublicKey representation of public key used in encrypting data.
+     * 
+     * @return string representation of encrypted data.
+     * 
+     * @throws JOSEException if encrypting isn't possible.
+     */
+    public static String encryptMessage(byte[] message, ECPublicKey ecPublicKey) throws JOSEException {
+        return encryptMessage(new Payload(message), ecPublicKey);
+    }
+
+    private static String encryptMessage(Payload payload, ECPublicKey ecPublicKey) throws JOSEException {
         JWEAlgorithm alg = JWEAlgorithm.ECDH_ES;
         EncryptionMethod enc = EncryptionMethod.A128CBC_HS256;
 
+        JWEHeader header = new JWEHeader.Builder(alg, enc).
+                keyID(computeKeyId(ecPublicKey)).
+                build();
+
         // Encrypt the JWE with the EC public key
-        JWEObject jwe = new JWEObject(new JWEHeader(alg, enc), new Payload(message));
+        JWEObject jwe = new JWEObject(header, payload);
         jwe.encrypt(new ECDHEncrypter(ecPublicKey));
         return jwe.serialize();
     }
@@ -199,6 +355,36 @@ public class JwsHelper {
         return encryptMessage(message, createEcPublicKey(publicKey));
     }
 
+    /**
+     * Creates a reusable decrypter for an EC private key, so that the key only needs to be parsed once.
+     *
+     * @param privateKey the EC key pair in .pem format.
+     *
+     * @return decrypter for messages encrypted with the matching public key.
+     *
+     * @throws JOSEException if the key cannot be used for decrypting.
+     * @throws IOException if wrapping private key isn't possible.
+     */
+    public static ECDHDecrypter createEcDecrypter(String privateKey) throws JOSEException, IOException {
+        return createEcDecrypter(createEcKeyPair(privateKey));
+    }
+
+    /**
+     * Creates a reusable decrypter for the private key of an EC key pair.
+     *
+     * @param keyPair the EC key pair.
+     *
+     * @return decrypter for messages encrypted with the public key of the pair.
+     *
+     * @throws JOSEException if the key cannot be used for decrypting.
+     */
+    public static ECDHDecrypter createEcDecrypter(KeyPair keyPair) throws JOSEException {
+        // Get private EC key
+        ECPrivateKey ecPrivateKey = (ECPrivateKey)keyPair.getPrivate();
+
+        return new ECDHDecrypter(ecPrivateKey);
+    }
+
     /**
      * Decrypts messages using EC private key.
      *
@@ -212,22 +398,45 @@ public class JwsHelper {
      * @throws java.text.ParseException if parsing message isn't possible.
      */
     public static String decryptMessage(String message, String privateKey) throws JOSEException, IOException, java.text.ParseException {
-        // Parse the EC key pair
-        PEMParser pemParser = new PEMParser(new StringReader(privateKey));
-        PEMKeyPair pemKeyPair = (PEMKeyPair)pemParser.readObject();
-
-        // Convert to Java (JCA) format
-        JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
-        KeyPair keyPair = converter.getKeyPair(pemKeyPair);
-        pemParser.close();
-
-        // Get private EC key
-        ECPrivateKey ecPrivateKey = (ECPrivateKey)keyPair.getPrivate();
+        return decryptMessage(message, createEcDecrypter(privateKey));
+    }
 
+    /**
+     * Decrypts messages using a pre-parsed EC private key.
+     *
+     * @param message string representation of data to be decrypted.
+     * @param decrypter decrypter created with createEcDecrypter.
+     *
+     * @return string representation of message that was gotten from decryption.
+     *
+     * @throws JOSEException if decrypting isn't possible.
+     * @throws java.text.ParseException if parsing message isn't possible.
+     */
+    public static String decryptMessage(String message, ECDHDecrypter decrypter) throws JOSEException, java.text.ParseException {
         // Decrypt the JWE with the EC private key
         JWEObject jwe = JWEObject.parse(message);
-        jwe.decrypt(new ECDHDecrypter(ecPrivateKey));
+        jwe.decrypt(decrypter);
 
         return jwe.getPayload().toString();
     }
+
+    /**
+     * Decrypts a message that was parsed once with one of several pre-parsed EC private keys.
+     *
+     * @param jwe the parsed encrypted message.
+     * @param decrypters decrypters created with createEcDecrypter.
+     *
+     * @return the decrypted payload or null if none of the keys could decrypt the message.
+     */
+    public static Payload decryptMessage(JWEObject jwe, ECDHDecrypter[] decrypters) {
+        for (int i = 0; i < decrypters.length; i++) {
+            try {
+                jwe.decrypt(decrypters[i]);
+                return jwe.getPayload();
+            } catch (JOSEException e) {
+                // Not encrypted for this key, the message stays encrypted and the next key can be tried
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,32 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * The severity of a log message, in increasing order. Messages below the level set with Logger.setLevel
+ * are dropped without building them.
+ */
+public enum LogLevel {
+    /**
+     * Details of normal operation, like re-subscriptions after reconnecting
+     */
+    DEBUG,
+
+    /**
+     * Connection state changes
+     */
+    INFO,
+
+    /**
+     * Messages that were dropped and operations that failed but are retried or can be recovered from
+     */
+    WARN,
+
+    /**
+     * Failures the library cannot recover from
+     */
+    ERROR,
+
+    /**
+     * Used with Logger.setLevel to turn logging off
+     */
+    OFF
+}
@@ -1,11 +1,104 @@
 package fi.helsinki.ubimqtt;
 
+import java.util.function.Supplier;
+
+/**
+ * The logger all logging of the library goes through.
+ *
+ * Messages below the current level are dropped with a single comparison, the Supplier variants do not even
+ * build the message then. Messages at or above the level are passed to the sink, by default one printing them
+ * on System.out. Applications can pass them to their own logging framework with setSink.
+ */
 public class Logger {
 
+    private static final IUbiLogSink CONSOLE_SINK = new IUbiLogSink() {
+        @Override
+        public void log(LogLevel level, String message, Throwable throwable) {
+            System.out.println(level + " " + Thread.currentThread().getName() + ": " + message);
+            if (throwable != null)
+                throwable.printStackTrace(System.out);
+        }
+    };
+
+    private static volatile IUbiLogSink sink = CONSOLE_SINK;
+    private static volatile int level = LogLevel.INFO.ordinal();
+
+    /**
+     * Sets where log messages are written
+     * @param logSink the sink to pass the messages to, or null for the default sink printing them on System.out
+     */
+    public static void setSink(IUbiLogSink logSink) {
+        sink = logSink != null ? logSink : CONSOLE_SINK;
+    }
+
+    /**
+     * Sets the lowest level of messages that are logged, the default is INFO
+     * @param logLevel the lowest level to log, or OFF to log nothing
+     */
+    public static void setLevel(LogLevel logLevel) {
+        level = logLevel.ordinal();
+    }
+
+    /**
+     * Checks whether messages of a level are logged, for skipping expensive work done only for logging
+     * @param logLevel the level to check
+     * @return true if messages of the level are passed to the sink
+     */
+    public static boolean isEnabled(LogLevel logLevel) {
+        return logLevel.ordinal() >= level && logLevel != LogLevel.OFF;
+    }
+
+    public static void log(LogLevel logLevel, String message, Throwable throwable) {
+        if (isEnabled(logLevel))
+            sink.log(logLevel, message, throwable);
+    }
+
+    public static void log(LogLevel logLevel, Supplier<String> message, Throwable throwable) {
+        if (isEnabled(logLevel))
+            sink.log(logLevel, message.get(), throwable);
+    }
+
+    /**
+     * Logs a message at INFO level
+     * @param s the message
+     */
     public static void log(String s) {
-        StackTraceElement l = new Exception().getStackTrace()[0];
-        System.out.println(
-                l.getClassName() + "/" + l.getMethodName() + ":" + l.getLineNumber() + ": " + s);
+        log(LogLevel.INFO, s, null);
+    }
+
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message, null);
     }
 
+    public static void debug(Supplier<String> message) {
+        log(LogLevel.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(LogLevel.INFO, message, null);
+    }
+
+    public static void info(Supplier<String> message) {
+        log(LogLevel.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(LogLevel.WARN, message, null);
+    }
+
+    public static void warn(Supplier<String> message) {
+        log(LogLevel.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable throwable) {
+        log(LogLevel.WARN, message, throwable);
+    }
+
+    public static void error(String message) {
+        log(LogLevel.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable throwable) {
+        log(LogLevel.ERROR, message, throwable);
+    }
 }
@@ -0,0 +1,211 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.util.Base64URL;
+
+import org.json.simple.JSONValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages published with SignatureFormat.MERKLE for a short window and signs each batch once.
+ *
+ * Messages signed with the same key within the window form a batch, which is also closed early when it reaches
+ * the maximum size. The messages of a batch are hashed into a MerkleTree, the root of the tree is signed and each
+ * message is published with its proof of inclusion and the signed root, in the order the messages were added.
+ * Subscribers check the signature of the root once per batch and each message with a few hashes.
+ */
+public class MerkleBatchSigner {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 10;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+    /**
+     * Publishes a message of a closed batch
+     */
+    public interface Publisher {
+        void publish(String topic, byte[] payload, int qos, boolean retained, IUbiActionListener actionListener) throws Exception;
+    }
+
+    private static class Pending {
+        private final String topic;
+        private final String message;
+        private final int qos;
+        private final boolean retained;
+        private final IUbiActionListener actionListener;
+
+        private Pending(String topic, String message, int qos, boolean retained, IUbiActionListener actionListener) {
+            this.topic = topic;
+            this.message = message;
+            this.qos = qos;
+            this.retained = retained;
+            this.actionListener = actionListener;
+        }
+    }
+
+    private static class Batch {
+        private final UbiSigningKey signingKey;
+        private final List<Pending> messages = new ArrayList<>();
+
+        private Batch(UbiSigningKey signingKey) {
+            this.signingKey = signingKey;
+        }
+    }
+
+    private final Publisher publisher;
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final int maxBatchSize;
+
+    // The open batch of each signing key, by key id
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    private volatile IUbiMetrics metrics = null;
+
+    /**
+     * Constructs a signer publishing closed batches with the given publisher
+     * @param publisher the publisher of the signed messages
+     * @param scheduler the executor to close and sign batches on, a single thread keeps the batches in order
+     * @param windowMillis how long a batch collects messages after its first message
+     * @param maxBatchSize the number of messages closing a batch before the window has passed
+     */
+    public MerkleBatchSigner(Publisher publisher, ScheduledExecutorService scheduler, long windowMillis, int maxBatchSize) {
+        this.publisher = publisher;
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Records the time spent signing the roots to the given metrics
+     * @param metrics the metrics to record to, or null to record nothing
+     */
+    public void setMetrics(IUbiMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a message to the open batch of its signing key
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param signingKey the key to sign the batch with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void add(String topic, String message, int qos, boolean retained, UbiSigningKey signingKey, IUbiActionListener actionListener) {
+        final Batch batch;
+        boolean full;
+
+        synchronized (this) {
+            Batch open = openBatches.get(signingKey.getKeyId());
+            if (open == null) {
+                open = new Batch(signingKey);
+                openBatches.put(signingKey.getKeyId(), open);
+
+                final Batch scheduled = open;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (close(scheduled))
+                            publish(scheduled);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch = open;
+
+            batch.messages.add(new Pending(topic, message, qos, retained, actionListener));
+            full = batch.messages.size() >= maxBatchSize && close(batch);
+        }
+
+        if (full) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    publish(batch);
+                }
+            });
+        }
+    }
+
+    // Returns false if the batch was already closed
+    private synchronized boolean close(Batch batch) {
+        if (openBatches.get(batch.signingKey.getKeyId()) != batch)
+            return false;
+        openBatches.remove(batch.signingKey.getKeyId());
+        return true;
+    }
+
+    private void publish(Batch batch) {
+        String[] messages = new String[batch.messages.size()];
+        for (int i = 0; i < messages.length; i++)
+            messages[i] = batch.messages.get(i).message;
+
+        String[] signed;
+        try {
+            signed = sign(messages, batch.signingKey, metrics);
+        } catch (Exception e) {
+            Logger.warn("signing a batch of " + messages.length + " messages failed", e);
+            for (Pending pending : batch.messages)
+                pending.actionListener.onFailure(null, e);
+            return;
+        }
+
+        for (int i = 0; i < signed.length; i++) {
+            Pending pending = batch.messages.get(i);
+            try {
+                publisher.publish(pending.topic, signed[i].getBytes(), pending.qos, pending.retained, pending.actionListener);
+            } catch (Exception e) {
+                pending.actionListener.onFailure(null, e);
+            }
+        }
+    }
+
+    /**
+     * Signs messages as one batch
+     * @param messages the messages of the batch
+     * @param signingKey the key to sign the root of the batch with
+     * @param metrics the metrics to record the signing time to, or null to record nothing
+     * @return the signed messages, in the same order
+     * @throws JOSEException if signing fails
+     */
+    public static String[] sign(String[] messages, UbiSigningKey signingKey, IUbiMetrics metrics) throws JOSEException {
+        byte[][] leafHashes = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++)
+            leafHashes[i] = MerkleTree.leafHash(i, messages[i]);
+
+        MerkleTree tree = new MerkleTree(leafHashes);
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        String root = JwsHelper.signMerkleRoot(tree.getRoot(), tree.getSize(), signingKey);
+        if (metrics != null)
+            metrics.recordTime(UbiTimer.SIGN, System.nanoTime() - start);
+
+        String[] signed = new String[messages.length];
+        for (int i = 0; i < messages.length; i++)
+            signed[i] = toEnvelope(messages[i], i, tree.getProof(i), root);
+        return signed;
+    }
+
+    private static String toEnvelope(String message, int index, byte[][] proof, String root) {
+        String payload = JSONValue.escape(message);
+
+        StringBuilder builder = new StringBuilder(payload.length() + root.length() + proof.length * 48 + 64);
+        builder.append("{\"payload\":\"").append(payload).
+                append("\",\"merkle\":{\"index\":").append(index).
+                append(",\"proof\":[");
+        for (int i = 0; i < proof.length; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append('"').append(Base64URL.encode(proof[i])).append('"');
+        }
+        builder.append("]},\"root\":\"").append(root).append("\"}");
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.JOSEException;
+
+import java.io.IOException;
+import java.security.interfaces.ECPublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of checking the signatures of the roots of batches signed with SignatureFormat.MERKLE,
+ * so that the signature of a batch is checked once for all of its messages. Checking a signature always gives
+ * the same result for the same root and key, so failed checks are remembered as well. Only the most recently
+ * used roots are kept.
+ */
+public class MerkleRootCache {
+
+    public static final int DEFAULT_MAX_ROOTS = 1024;
+
+    private static class Key {
+        private final String root;
+        private final ECPublicKey publicKey;
+
+        private Key(String root, ECPublicKey publicKey) {
+            this.root = root;
+            this.publicKey = publicKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return root.equals(other.root) && publicKey.equals(other.publicKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return root.hashCode() * 31 + publicKey.hashCode();
+        }
+    }
+
+    private final Map<Key, Boolean> results;
+
+    public MerkleRootCache() {
+        this(DEFAULT_MAX_ROOTS);
+    }
+
+    /**
+     * Constructs a cache keeping the results of the given number of roots
+     * @param maxRoots the maximum number of remembered results
+     */
+    public MerkleRootCache(final int maxRoots) {
+        this.results = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > maxRoots;
+            }
+        };
+    }
+
+    /**
+     * Checks whether a root was signed with the private key matching the given public key
+     * @param root the signed root in the compact serialization
+     * @param publicKey the public key to check the signature against
+     * @return true if the signature is valid
+     * @throws JOSEException if the signature cannot be checked
+     * @throws java.text.ParseException if the root is malformed
+     * @throws IOException if the key cannot be used
+     */
+    public boolean isSignedBy(String root, ECPublicKey publicKey) throws JOSEException, java.text.ParseException, IOException {
+        Key key = new Key(root, publicKey);
+
+        Boolean result;
+        synchronized (this) {
+            result = results.get(key);
+        }
+        if (result != null)
+            return result;
+
+        // The expensive check runs without holding the lock, concurrent messages of a new batch may both check it
+        boolean signed = JwsHelper.verifySignatureCompact(root, publicKey);
+        synchronized (this) {
+            results.put(key, signed);
+        }
+        return signed;
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+}
@@ -0,0 +1,151 @@
+package fi.helsinki.ubimqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A SHA-256 hash tree over the messages of a batch, for signing all of them with one signature over the root.
+ *
+ * Leaves and inner nodes are hashed with different prefixes as in RFC 6962, so a leaf cannot be passed off
+ * as an inner node. The index of each message is hashed into its leaf, so a message cannot be presented under
+ * another index of the same batch. A level with an odd number of nodes promotes its last node unchanged, which
+ * gives the same tree as RFC 6962 and lets proofs be checked with its algorithm.
+ */
+public class MerkleTree {
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final byte[][][] levels;
+
+    /**
+     * Builds the tree over the given leaves
+     * @param leafHashes the hashes of the leaves, see leafHash
+     */
+    public MerkleTree(byte[][] leafHashes) {
+        if (leafHashes.length == 0)
+            throw new IllegalArgumentException("a Merkle tree needs at least one leaf");
+
+        int depth = 1;
+        for (int size = leafHashes.length; size > 1; size = (size + 1) / 2)
+            depth++;
+
+        levels = new byte[depth][][];
+        levels[0] = leafHashes;
+
+        MessageDigest digest = sha256();
+        for (int level = 1; level < depth; level++) {
+            byte[][] below = levels[level - 1];
+            byte[][] nodes = new byte[(below.length + 1) / 2][];
+
+            for (int i = 0; i < nodes.length; i++) {
+                if (2 * i + 1 < below.length)
+                    nodes[i] = nodeHash(digest, below[2 * i], below[2 * i + 1]);
+                else
+                    nodes[i] = below[2 * i];
+            }
+            levels[level] = nodes;
+        }
+    }
+
+    public byte[] getRoot() {
+        return levels[levels.length - 1][0];
+    }
+
+    public int getSize() {
+        return levels[0].length;
+    }
+
+    /**
+     * Returns the proof that a leaf is included in the tree, the siblings of the nodes on the path from the leaf to the root
+     * @param index the index of the leaf
+     * @return the hashes of the siblings, from the bottom up
+     */
+    public byte[][] getProof(int index) {
+        int length = 0;
+        for (int level = 0, i = index; level < levels.length - 1; level++, i >>= 1) {
+            if ((i ^ 1) < levels[level].length)
+                length++;
+        }
+
+        byte[][] proof = new byte[length][];
+        int next = 0;
+        for (int level = 0, i = index; level < levels.length - 1; level++, i >>= 1) {
+            if ((i ^ 1) < levels[level].length)
+                proof[next++] = levels[level][i ^ 1];
+        }
+        return proof;
+    }
+
+    /**
+     * Computes the hash of a leaf
+     * @param index the index of the message in its batch
+     * @param message the message
+     * @return the hash of the leaf
+     */
+    public static byte[] leafHash(int index, String message) {
+        MessageDigest digest = sha256();
+        digest.update(LEAF_PREFIX);
+        digest.update((byte) (index >>> 24));
+        digest.update((byte) (index >>> 16));
+        digest.update((byte) (index >>> 8));
+        digest.update((byte) index);
+        return digest.digest(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Computes the root of a tree from a leaf and its proof, following RFC 9162 section 2.1.3.2
+     * @param leafHash the hash of the leaf
+     * @param index the index of the leaf
+     * @param size the number of leaves in the tree
+     * @param proof the proof of inclusion of the leaf
+     * @return the root or null if the proof does not fit a tree of the given size
+     */
+    public static byte[] computeRoot(byte[] leafHash, int index, int size, byte[][] proof) {
+        if (index < 0 || index >= size)
+            return null;
+
+        MessageDigest digest = sha256();
+        long fn = index;
+        long sn = size - 1;
+        byte[] node = leafHash;
+
+        for (byte[] sibling : proof) {
+            if (sn == 0)
+                return null;
+
+            if ((fn & 1) == 1 || fn == sn) {
+                node = nodeHash(digest, sibling, node);
+
+                // Skip the levels where the node was promoted without a sibling
+                if ((fn & 1) == 0) {
+                    while ((fn & 1) == 0 && fn != 0) {
+                        fn >>= 1;
+                        sn >>= 1;
+                    }
+                }
+            } else {
+                node = nodeHash(digest, node, sibling);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+
+        return sn == 0 ? node : null;
+    }
+
+    private static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
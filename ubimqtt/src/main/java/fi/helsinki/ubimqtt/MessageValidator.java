@@ -1,11 +1,7 @@
 package fi.helsinki.ubimqtt;
 
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.util.Base64URL;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
@@ -14,33 +10,37 @@ import java.security.interfaces.ECPublicKey;
 public class MessageValidator {
 
     private ReplayDetector replayDetector;
+    private MerkleRootCache rootCache;
 
     public MessageValidator(int bufferWindowInSeconds) {
         this.replayDetector = new ReplayDetector(bufferWindowInSeconds);
+        this.rootCache = new MerkleRootCache();
     }
 
     public boolean validateMessage(String message, ECPublicKey ecPublicKey) throws ParseException, JOSEException, java.text.ParseException, IOException {
-        JSONParser parser = new JSONParser();
-        JSONObject obj = (JSONObject) parser.parse(message);
+        SignedMessage signedMessage = SignedMessage.parse(message);
 
-        String payload = (String)obj.get("payload");
-
-        JSONArray signaturesArray = (JSONArray)obj.get("signatures");
-        JSONObject signatureObject = (JSONObject)signaturesArray.get(0);
-        JSONObject headerObj = (JSONObject)signatureObject.get("protected");
-
-        String signature = (String)signatureObject.get("signature");
-
-        String compact = Base64URL.encode(headerObj.toString())+"."+Base64URL.encode(payload)+"."+signature;
-
-        boolean isSignatureCorrect = JwsHelper.verifySignatureCompact(compact, ecPublicKey);
-
-        if (!isSignatureCorrect)
+        if (!signedMessage.isSignedBy(ecPublicKey, rootCache))
             return false;
 
-        long timestamp = (Long)headerObj.get("timestamp");
-        String messageId = (String)headerObj.get("messageid");
+        return isFresh(signedMessage);
+    }
+
+    /**
+     * Checks that a message with a valid signature is recent enough and has not been seen before.
+     * The message is remembered, so calling this twice for the same message returns false the second time.
+     * @param signedMessage the message to check
+     * @return true if the message should be accepted
+     */
+    public boolean isFresh(SignedMessage signedMessage) {
+        return replayDetector.isValid(signedMessage.getTimestamp(), signedMessage.getMessageId());
+    }
 
-        return replayDetector.isValid(timestamp, messageId);
+    /**
+     * Returns the results of checking the roots of batches signed with SignatureFormat.MERKLE
+     * @return the cache of checked roots
+     */
+    public MerkleRootCache getRootCache() {
+        return rootCache;
     }
 }
@@ -0,0 +1,215 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWECryptoParts;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.crypto.impl.AESKW;
+import com.nimbusds.jose.crypto.impl.ConcatKDF;
+import com.nimbusds.jose.crypto.impl.ContentCryptoProvider;
+import com.nimbusds.jose.crypto.impl.ECDH;
+import com.nimbusds.jose.crypto.utils.ECChecks;
+import com.nimbusds.jose.jca.JWEJCAContext;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message encrypted once for several recipients, in the JWE JSON general serialization.
+ *
+ * The payload is encrypted once with a random content key, which is wrapped separately for each recipient
+ * with ECDH-ES+A128KW. The message has the form
+ * {"protected":"...","recipients":[{"header":{"kid":"...","epk":{...}},"encrypted_key":"..."},...],"iv":"...","ciphertext":"...","tag":"..."}
+ * where the protected header holds the algorithms shared by all recipients and each recipient header holds the
+ * id of the recipient's public key and the ephemeral key used for it. A recipient finds its entry by the key id.
+ */
+public class MultiRecipientJwe {
+    public static final JWEAlgorithm ALGORITHM = JWEAlgorithm.ECDH_ES_A128KW;
+    public static final EncryptionMethod ENCRYPTION_METHOD = EncryptionMethod.A128CBC_HS256;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final JWEHeader PROTECTED_HEADER = new JWEHeader.Builder(ALGORITHM, ENCRYPTION_METHOD).build();
+
+    private final JWEHeader protectedHeader;
+    private final Map<String, JSONObject> recipients;
+    private final Base64URL iv;
+    private final Base64URL cipherText;
+    private final Base64URL authTag;
+
+    private MultiRecipientJwe(JWEHeader protectedHeader, Map<String, JSONObject> recipients, Base64URL iv, Base64URL cipherText, Base64URL authTag) {
+        this.protectedHeader = protectedHeader;
+        this.recipients = recipients;
+        this.iv = iv;
+        this.cipherText = cipherText;
+        this.authTag = authTag;
+    }
+
+    /**
+     * Checks whether an encrypted message is in the JSON serialization instead of the compact one
+     * @param message the encrypted message
+     * @return true if the message is a JSON object
+     */
+    public static boolean isMultiRecipient(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (!Character.isWhitespace(c))
+                return c == '{';
+        }
+        return false;
+    }
+
+    private static SecretKey deriveKeyEncryptionKey(JWEHeader header, ECPublicKey publicKey, ECPrivateKey privateKey) throws JOSEException {
+        SecretKey sharedSecret = ECDH.deriveSharedSecret(publicKey, privateKey, null);
+        return ECDH.deriveSharedKey(header, sharedSecret, new ConcatKDF("SHA-256"));
+    }
+
+    /**
+     * Encrypts a message for several recipients
+     * @param payload the message to encrypt
+     * @param recipientKeys the public keys of the recipients
+     * @return the encrypted message in the JWE JSON general serialization
+     * @throws JOSEException if encrypting fails
+     */
+    public static String encrypt(byte[] payload, ECPublicKey[] recipientKeys) throws JOSEException {
+        SecretKey contentKey = ContentCryptoProvider.generateCEK(ENCRYPTION_METHOD, random);
+
+        JSONArray recipients = new JSONArray();
+        for (int i = 0; i < recipientKeys.length; i++) {
+            ECPublicKey recipientKey = recipientKeys[i];
+            Curve curve = Curve.forECParameterSpec(recipientKey.getParams());
+            if (curve == null)
+                throw new JOSEException("unsupported elliptic curve of recipient " + i);
+
+            KeyPair ephemeralKeyPair;
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(recipientKey.getParams(), random);
+                ephemeralKeyPair = generator.generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                throw new JOSEException("cannot generate ephemeral key: " + e.getMessage(), e);
+            }
+
+            SecretKey keyEncryptionKey = deriveKeyEncryptionKey(PROTECTED_HEADER, recipientKey, (ECPrivateKey) ephemeralKeyPair.getPrivate());
+            byte[] encryptedKey = AESKW.wrapCEK(contentKey, keyEncryptionKey, null);
+
+            JSONObject header = new JSONObject();
+            header.put("kid", JwsHelper.computeKeyId(recipientKey));
+            header.put("epk", new ECKey.Builder(curve, (ECPublicKey) ephemeralKeyPair.getPublic()).build().toJSONObject());
+
+            JSONObject recipient = new JSONObject();
+            recipient.put("header", header);
+            recipient.put("encrypted_key", Base64URL.encode(encryptedKey).toString());
+            recipients.add(recipient);
+        }
+
+        // The protected header is the additional authenticated data of the content encryption
+        JWECryptoParts parts = ContentCryptoProvider.encrypt(PROTECTED_HEADER, payload, contentKey, null, new JWEJCAContext());
+
+        JSONObject json = new JSONObject();
+        json.put("protected", PROTECTED_HEADER.toBase64URL().toString());
+        json.put("recipients", recipients);
+        json.put("iv", parts.getInitializationVector().toString());
+        json.put("ciphertext", parts.getCipherText().toString());
+        json.put("tag", parts.getAuthenticationTag().toString());
+        return json.toJSONString();
+    }
+
+    /**
+     * Parses a message in the JWE JSON general serialization
+     * @param message the encrypted message
+     * @return the parsed message
+     * @throws ParseException if the message is not a multi-recipient message of the supported algorithms
+     */
+    public static MultiRecipientJwe parse(String message) throws ParseException {
+        JSONObject json = JSONObjectUtils.parse(message);
+
+        JWEHeader protectedHeader = JWEHeader.parse(getBase64URL(json, "protected"));
+        if (!ALGORITHM.equals(protectedHeader.getAlgorithm()))
+            throw new ParseException("unsupported algorithm " + protectedHeader.getAlgorithm(), 0);
+
+        Map<String, JSONObject> recipients = new HashMap<>();
+        Object recipientList = json.get("recipients");
+        if (!(recipientList instanceof List))
+            throw new ParseException("missing recipients", 0);
+
+        for (Object recipient : (List<?>) recipientList) {
+            if (!(recipient instanceof JSONObject))
+                throw new ParseException("malformed recipient", 0);
+
+            JSONObject header = JSONObjectUtils.getJSONObject((JSONObject) recipient, "header");
+            String keyId = header != null ? JSONObjectUtils.getString(header, "kid") : null;
+            if (keyId != null)
+                recipients.put(keyId, (JSONObject) recipient);
+        }
+
+        return new MultiRecipientJwe(protectedHeader,
+                recipients,
+                getBase64URL(json, "iv"),
+                getBase64URL(json, "ciphertext"),
+                getBase64URL(json, "tag"));
+    }
+
+    // A missing member would otherwise surface as an IllegalArgumentException from Base64URL
+    private static Base64URL getBase64URL(JSONObject json, String name) throws ParseException {
+        String value = JSONObjectUtils.getString(json, name);
+        if (value == null)
+            throw new ParseException("missing " + name, 0);
+        return new Base64URL(value);
+    }
+
+    /**
+     * Checks whether the message has an entry for a recipient
+     * @param keyId the key id of the recipient's public key
+     * @return true if the message was encrypted for the key
+     */
+    public boolean hasRecipient(String keyId) {
+        return recipients.containsKey(keyId);
+    }
+
+    /**
+     * Decrypts the message using the entry of one recipient
+     * @param keyId the key id of the recipient's public key
+     * @param privateKey the private key of the recipient
+     * @return the decrypted payload or null if the message has no entry for the key id
+     * @throws JOSEException if the entry or the message cannot be decrypted with the key
+     */
+    public byte[] decrypt(String keyId, ECPrivateKey privateKey) throws JOSEException {
+        JSONObject recipient = recipients.get(keyId);
+        if (recipient == null)
+            return null;
+
+        ECPublicKey ephemeralKey;
+        Base64URL encryptedKey;
+        try {
+            ephemeralKey = ECKey.parse(JSONObjectUtils.getJSONObject(JSONObjectUtils.getJSONObject(recipient, "header"), "epk")).toECPublicKey();
+            encryptedKey = new Base64URL(JSONObjectUtils.getString(recipient, "encrypted_key"));
+        } catch (Exception e) {
+            throw new JOSEException("malformed recipient entry: " + e.getMessage(), e);
+        }
+
+        // An ephemeral key off the curve of the private key could leak the private key
+        if (!ECChecks.isPointOnCurve(ephemeralKey, privateKey))
+            throw new JOSEException("invalid ephemeral public key");
+
+        SecretKey keyEncryptionKey = deriveKeyEncryptionKey(protectedHeader, ephemeralKey, privateKey);
+        SecretKey contentKey = AESKW.unwrapCEK(keyEncryptionKey, encryptedKey.decode(), null);
+
+        return ContentCryptoProvider.decrypt(protectedHeader, null, iv, cipherText, authTag, contentKey, new JWEJCAContext());
+    }
+}
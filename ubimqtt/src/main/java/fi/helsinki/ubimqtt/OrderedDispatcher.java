@@ -0,0 +1,116 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on an executor so that tasks dispatched with the same key run one at a time in the order
+ * they were dispatched, while tasks with different keys may run in parallel.
+ *
+ * Keys are hashed to a fixed number of lanes. Each lane is a queue that has at most one drain task
+ * running on the executor at a time, so the executor can be any pool, including one shared with
+ * other work.
+ */
+public class OrderedDispatcher {
+
+    // Maximum number of tasks a lane runs before giving its thread back to the executor
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final Executor executor;
+    private final Lane[] lanes;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            queueDepth.incrementAndGet();
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The executor has been shut down or is full, the tasks of the lane would never run
+                    int dropped = 0;
+                    while (tasks.poll() != null) {
+                        queueDepth.decrementAndGet();
+                        dropped++;
+                    }
+                    scheduled.set(false);
+                    Logger.warn("executor rejected dispatched tasks, dropped " + dropped + " tasks", e);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null)
+                        break;
+
+                    queueDepth.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Logger.warn("dispatched task failed", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // A task may have been added after the last poll but before the flag was cleared
+                if (!tasks.isEmpty())
+                    schedule();
+            }
+        }
+    }
+
+    /**
+     * Constructs a dispatcher running its tasks on the given executor
+     * @param executor the executor to run the tasks on
+     * @param laneCount the number of lanes, i.e. the maximum number of keys processed in parallel
+     */
+    public OrderedDispatcher(Executor executor, int laneCount) {
+        if (laneCount < 1)
+            throw new IllegalArgumentException("laneCount must be at least 1");
+
+        this.executor = executor;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++)
+            lanes[i] = new Lane();
+    }
+
+    /**
+     * Queues a task to be run after all earlier tasks dispatched with a key hashing to the same lane.
+     * If the executor rejects the lane, for example because it has been shut down, the queued tasks
+     * of the lane are dropped and logged instead of being handed back to the caller.
+     * @param key the ordering key, for example a topic name
+     * @param task the task to run
+     */
+    public void dispatch(Object key, Runnable task) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        lanes[(hash & 0x7fffffff) % lanes.length].execute(task);
+    }
+
+    /**
+     * Returns the number of tasks waiting to be run
+     * @return the number of queued tasks
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+}
@@ -0,0 +1,423 @@
+package fi.helsinki.ubimqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A durable queue of outbound messages, used by UbiMqtt to accept publishes while it is not connected.
+ *
+ * Messages are appended to memory-mapped segment files of a fixed size in a directory, so appending costs
+ * a memory copy and the messages survive a restart of the process. Each record is written before its
+ * length, so a record torn by a crash is ignored when the journal is opened again. A delivered message is
+ * marked in place, and a segment file is deleted once all of its messages have been delivered.
+ *
+ * Messages older than the time to live are dropped instead of being delivered. When appending would make
+ * the segment files exceed the size cap, the oldest segment is dropped with its undelivered messages.
+ */
+public class OutboundJournal {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x55424a31;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final byte STATE_PENDING = 0;
+    private static final byte STATE_DELIVERED = 1;
+
+    // state, timestamp, qos, retained, topic length, payload length
+    private static final int RECORD_FIXED_SIZE = 1 + 8 + 1 + 1 + 4 + 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long timeToLiveMillis;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private long pendingCount = 0;
+
+    // Position of the next record to hand out for delivery
+    private Segment cursorSegment = null;
+    private int cursorPosition = 0;
+
+    private static class Segment {
+        private final long sequence;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition = SEGMENT_HEADER_SIZE;
+        private int pending = 0;
+        private boolean closed = false;
+
+        private Segment(long sequence, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A message read from the journal for delivery
+     */
+    public static class Entry {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retained;
+        private final long timestamp;
+
+        private final Segment segment;
+        private final int position;
+
+        private Entry(String topic, byte[] payload, int qos, boolean retained, long timestamp, Segment segment, int position) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.timestamp = timestamp;
+            this.segment = segment;
+            this.position = position;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getQos() {
+            return qos;
+        }
+
+        public boolean isRetained() {
+            return retained;
+        }
+
+        /**
+         * Returns when the message was appended to the journal
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Opens a journal with the default segment size, recovering the undelivered messages already in the directory
+     * @param directory the directory for the segment files, created if it does not exist
+     * @param maxBytes the maximum total size of the segment files
+     * @param timeToLiveMillis the maximum age of messages that are still delivered
+     * @throws IOException if the directory or the segment files cannot be used
+     */
+    public OutboundJournal(File directory, long maxBytes, long timeToLiveMillis) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, maxBytes, timeToLiveMillis);
+    }
+
+    /**
+     * Opens a journal, recovering the undelivered messages already in the directory
+     * @param directory the directory for the segment files, created if it does not exist
+     * @param segmentSize the size of each segment file, which is also the maximum size of a message
+     * @param maxBytes the maximum total size of the segment files, at least one segment
+     * @param timeToLiveMillis the maximum age of messages that are still delivered
+     * @throws IOException if the directory or the segment files cannot be used
+     */
+    public OutboundJournal(File directory, int segmentSize, long maxBytes, long timeToLiveMillis) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_FIXED_SIZE + 4 || maxBytes < segmentSize)
+            throw new IllegalArgumentException("invalid journal segment size or size cap");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create journal directory " + directory);
+
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("cannot list journal directory " + directory);
+
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX))
+                continue;
+
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            Segment segment = openSegment(sequence, file);
+            if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != segmentSize) {
+                Logger.warn("ignoring journal segment " + file + " with another format or segment size");
+                closeSegment(segment, false);
+                continue;
+            }
+            scanSegment(segment);
+            segments.add(segment);
+            pendingCount += segment.pending;
+        }
+
+        // Fully delivered segments are no longer needed, except the last one which is appended to
+        for (int i = segments.size() - 2; i >= 0; i--) {
+            if (segments.get(i).pending == 0)
+                closeSegment(segments.remove(i), true);
+        }
+
+        if (segments.isEmpty())
+            segments.add(createSegment(0));
+
+        rewind();
+    }
+
+    private void scanSegment(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = SEGMENT_HEADER_SIZE;
+
+        while (position + 4 <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_FIXED_SIZE || position + 4 + length > segmentSize)
+                break;
+
+            if (buffer.get(position + 4) == STATE_PENDING)
+                segment.pending++;
+            position += 4 + length;
+        }
+        segment.writePosition = position;
+    }
+
+    private Segment openSegment(long sequence, File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        FileChannel channel = randomAccessFile.getChannel();
+        try {
+            // The mapping keeps the file contents accessible after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(sequence, file, channel, buffer);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        File file = new File(directory, String.format("%020d", sequence) + SEGMENT_SUFFIX);
+        Segment segment = openSegment(sequence, file);
+
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, segmentSize);
+        return segment;
+    }
+
+    private void closeSegment(Segment segment, boolean delete) {
+        segment.closed = true;
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            Logger.warn("closing journal segment " + segment.file + " failed: " + e.toString());
+        }
+        if (delete && !segment.file.delete())
+            Logger.warn("deleting journal segment " + segment.file + " failed");
+    }
+
+    /**
+     * Appends a message to the journal
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @throws IOException if the message does not fit in a segment or a new segment cannot be created
+     */
+    public synchronized void append(String topic, byte[] payload, int qos, boolean retained) throws IOException {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_FIXED_SIZE + topicBytes.length + payload.length;
+
+        if (SEGMENT_HEADER_SIZE + 4 + length > segmentSize)
+            throw new IOException("message of " + payload.length + " bytes does not fit in a journal segment");
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.writePosition + 4 + length > segmentSize) {
+            segment.buffer.force();
+            segment = rotate();
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        int offset = position + 4;
+
+        buffer.put(offset, STATE_PENDING);
+        buffer.putLong(offset + 1, System.currentTimeMillis());
+        buffer.put(offset + 9, (byte) qos);
+        buffer.put(offset + 10, (byte) (retained ? 1 : 0));
+        buffer.putInt(offset + 11, topicBytes.length);
+        put(buffer, offset + 15, topicBytes);
+        buffer.putInt(offset + 15 + topicBytes.length, payload.length);
+        put(buffer, offset + 19 + topicBytes.length, payload);
+
+        // The length is written last, it makes the record visible after a crash
+        buffer.putInt(position, length);
+
+        segment.writePosition = offset + length;
+        segment.pending++;
+        pendingCount++;
+    }
+
+    private static void put(MappedByteBuffer buffer, int position, byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(bytes);
+    }
+
+    private Segment rotate() throws IOException {
+        // Make room for the new segment by dropping the oldest ones
+        while ((segments.size() + 1) * (long) segmentSize > maxBytes && !segments.isEmpty()) {
+            Segment oldest = segments.remove(0);
+            if (oldest.pending > 0)
+                Logger.warn("journal size cap reached, dropping " + oldest.pending + " undelivered messages");
+            pendingCount -= oldest.pending;
+            closeSegment(oldest, true);
+
+            if (cursorSegment == oldest)
+                cursorSegment = null;
+        }
+
+        long sequence = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).sequence + 1;
+        Segment segment = createSegment(sequence);
+        segments.add(segment);
+
+        // The cursor was in a dropped segment, continue from the oldest remaining one
+        if (cursorSegment == null) {
+            cursorSegment = segments.get(0);
+            cursorPosition = SEGMENT_HEADER_SIZE;
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the next undelivered message that has not been returned since the last rewind. Messages older than
+     * the time to live are marked delivered and skipped.
+     * @return the next message or null if there are no more messages to deliver
+     */
+    public synchronized Entry next() {
+        long expiredBefore = System.currentTimeMillis() - timeToLiveMillis;
+
+        while (cursorSegment != null) {
+            Segment segment = cursorSegment;
+
+            if (cursorPosition >= segment.writePosition) {
+                int index = segments.indexOf(segment);
+                if (index < 0 || index + 1 >= segments.size())
+                    return null;
+
+                cursorSegment = segments.get(index + 1);
+                cursorPosition = SEGMENT_HEADER_SIZE;
+                releaseIfDelivered(segment);
+                continue;
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            int position = cursorPosition;
+            int offset = position + 4;
+            int length = buffer.getInt(position);
+            cursorPosition = offset + length;
+
+            if (buffer.get(offset) != STATE_PENDING)
+                continue;
+
+            long timestamp = buffer.getLong(offset + 1);
+            if (timestamp < expiredBefore) {
+                markDelivered(segment, position);
+                continue;
+            }
+
+            int qos = buffer.get(offset + 9);
+            boolean retained = buffer.get(offset + 10) != 0;
+
+            byte[] topicBytes = new byte[buffer.getInt(offset + 11)];
+            get(buffer, offset + 15, topicBytes);
+            byte[] payload = new byte[buffer.getInt(offset + 15 + topicBytes.length)];
+            get(buffer, offset + 19 + topicBytes.length, payload);
+
+            return new Entry(new String(topicBytes, StandardCharsets.UTF_8), payload, qos, retained, timestamp, segment, position);
+        }
+        return null;
+    }
+
+    private static void get(MappedByteBuffer buffer, int position, byte[] bytes) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(bytes);
+    }
+
+    /**
+     * Marks a message delivered, so that it is not returned again
+     * @param entry the message returned by next
+     */
+    public synchronized void markDelivered(Entry entry) {
+        markDelivered(entry.segment, entry.position);
+        releaseIfDelivered(entry.segment);
+    }
+
+    private void markDelivered(Segment segment, int position) {
+        if (segment.closed || segment.buffer.get(position + 4) != STATE_PENDING)
+            return;
+
+        segment.buffer.put(position + 4, STATE_DELIVERED);
+        segment.pending--;
+        pendingCount--;
+    }
+
+    // Deletes a segment once all its messages are delivered and it is no longer read or appended to
+    private void releaseIfDelivered(Segment segment) {
+        if (segment.closed || segment.pending > 0 || segment == cursorSegment || segment == segments.get(segments.size() - 1))
+            return;
+
+        segments.remove(segment);
+        closeSegment(segment, true);
+    }
+
+    /**
+     * Starts returning the undelivered messages from the oldest one again, for example after a reconnect when
+     * messages that were being delivered may have been lost
+     */
+    public synchronized void rewind() {
+        cursorSegment = segments.isEmpty() ? null : segments.get(0);
+        cursorPosition = SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Returns the number of messages that have not been delivered yet
+     * @return the number of undelivered messages, including expired ones not yet skipped by next
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Writes the segments to disk and closes them. Undelivered messages are delivered when the journal is opened again.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            closeSegment(segment, false);
+        }
+        segments.clear();
+        cursorSegment = null;
+    }
+}
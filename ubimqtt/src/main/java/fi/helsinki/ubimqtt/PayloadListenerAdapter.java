@@ -0,0 +1,60 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delivers messages to an IUbiPayloadListener as a read-only view of the payload, without copying
+ * or decoding it. On signed subscriptions the payload inside the verified envelope is delivered instead
+ * of the whole envelope.
+ */
+public class PayloadListenerAdapter implements IUbiMessageListener {
+    private IUbiPayloadListener payloadListener;
+    private boolean signed;
+
+    public PayloadListenerAdapter(IUbiPayloadListener payloadListener) {
+        this(payloadListener, false);
+    }
+
+    /**
+     * Constructs an adapter
+     * @param payloadListener the listener to deliver the payloads to
+     * @param signed true if the messages are signed messages, whose inner payload is delivered
+     */
+    public PayloadListenerAdapter(IUbiPayloadListener payloadListener, boolean signed) {
+        this.payloadListener = payloadListener;
+        this.signed = signed;
+    }
+
+    public void messageArrived(String topic, MqttMessage mqttMessage, String listenerId) throws Exception {
+        ByteBuffer payload = signed ? ByteBuffer.wrap(SignedMessage.parse(mqttMessage.toString()).getPayload()) : ByteBuffer.wrap(mqttMessage.getPayload());
+        payloadListener.messageArrived(topic, payload.asReadOnlyBuffer(), listenerId);
+    }
+
+    /**
+     * Delivers the payload of a verified signed message, which was parsed when its signature was checked
+     * @param topic the topic the message arrived on
+     * @param signedMessage the parsed message
+     * @param listenerId the listener id of the subscription
+     * @throws Exception if the listener throws
+     */
+    public void signedMessageArrived(String topic, SignedMessage signedMessage, String listenerId) throws Exception {
+        payloadListener.messageArrived(topic, ByteBuffer.wrap(signedMessage.getPayload()).asReadOnlyBuffer(), listenerId);
+    }
+
+    /**
+     * Delivers a verified message to the listener of a signed subscription. Payload listeners get the payload
+     * of the already parsed message instead of parsing the envelope again.
+     * @param listener the listener of the subscription
+     * @param message the verified message
+     * @param listenerId the listener id of the subscription
+     * @throws Exception if the listener throws
+     */
+    static void deliverSigned(IUbiMessageListener listener, IncomingMessage message, String listenerId) throws Exception {
+        if (listener instanceof PayloadListenerAdapter && ((PayloadListenerAdapter) listener).signed)
+            ((PayloadListenerAdapter) listener).signedMessageArrived(message.getTopic(), message.getSignedMessage(), listenerId);
+        else
+            listener.messageArrived(message.getTopic(), message.getMqttMessage(), listenerId);
+    }
+}
@@ -1,7 +1,13 @@
 package fi.helsinki.ubimqtt;
 
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+/**
+ * Receives the public key of a known publisher. The subscription to the main topic is made when the key first
+ * arrives, later keys replace the key of that subscription. Both subscriptions are known by the listener id of
+ * the key subscription, which is also given to the listener of the main topic.
+ */
 public class PublicKeyChangeListener implements IUbiMessageListener {
     private String mainListenerId;
     private IUbiActionListener originalCallback;
@@ -9,6 +15,9 @@ public class PublicKeyChangeListener implements IUbiMessageListener {
     private String mainTopic;
     private IUbiMessageListener mainListener;
 
+    private boolean subscribed = false;
+    private boolean cancelled = false;
+
     public PublicKeyChangeListener(UbiMqtt ubiMqtt, String mainTopic, IUbiMessageListener mainListener, IUbiActionListener originalCallback)  {
         this.ubiMqtt = ubiMqtt;
         this.mainTopic = mainTopic;
@@ -19,14 +28,58 @@ public class PublicKeyChangeListener implements IUbiMessageListener {
     }
 
     public void messageArrived(String topic, MqttMessage message, String listenerId) throws Exception {
-        if (mainListenerId != null) {
-            System.out.println("PublicKeyChangeListener::onPublicKeyChanged() changing public key");
-            ubiMqtt.updatePublicKey(mainTopic, mainListenerId, message.toString());
+        boolean first;
+        String currentListenerId;
+        synchronized (this) {
+            first = !subscribed && !cancelled;
+            subscribed = true;
+            currentListenerId = mainListenerId;
+        }
+
+        if (currentListenerId != null) {
+            Logger.info("public key changed, updating the keys of the subscription to " + mainTopic);
+            ubiMqtt.updatePublicKey(mainTopic, currentListenerId, message.toString());
+            return;
         }
-        else {
-            // This is the first time the public key arrives, subscribe to the main topic
-            String[] publicKeys = {message.toString()};
-            ubiMqtt.subscribeSigned(mainTopic, publicKeys, mainListener, originalCallback);
+        if (!first)
+            return;
+
+        // This is the first time the public key arrives, subscribe to the main topic
+        final String keyListenerId = listenerId;
+        String[] publicKeys = {message.toString()};
+        String id = ubiMqtt.subscribeSigned(mainTopic, publicKeys, new IUbiMessageListener() {
+            @Override
+            public void messageArrived(String topic, MqttMessage mqttMessage, String listenerId) throws Exception {
+                mainListener.messageArrived(topic, mqttMessage, keyListenerId);
+            }
+        }, originalCallback);
+
+        boolean late;
+        synchronized (this) {
+            mainListenerId = id;
+            late = cancelled;
         }
+
+        // The publisher was unsubscribed while the main topic was being subscribed to
+        if (late && id != null)
+            ubiMqtt.unsubscribe(id, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken iMqttToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                    Logger.warn("unsubscribing from topic " + mainTopic + " failed", throwable);
+                }
+            });
+    }
+
+    /**
+     * Stops subscribing to the main topic when the key arrives
+     * @return the listener id of the subscription to the main topic, or null if it has not been made
+     */
+    synchronized String cancel() {
+        cancelled = true;
+        return mainListenerId;
     }
 }
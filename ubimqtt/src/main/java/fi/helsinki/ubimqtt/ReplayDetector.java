@@ -1,63 +1,161 @@
 package fi.helsinki.ubimqtt;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
+import java.util.Arrays;
+
+/**
+ * Rejects signed messages that are too old or have been seen before.
+ *
+ * Seen messages are remembered in a ring of one second buckets covering the buffer window in the past
+ * and the same amount in the future, to tolerate clock differences between publishers and subscribers.
+ * Each bucket stores 64-bit hashes of the message ids that arrived with a timestamp within its second in
+ * an open addressing table, so checking and remembering a message is O(1) and a whole second of entries
+ * is evicted at once by reusing the bucket. Buckets are locked separately, so messages from different
+ * seconds never contend. The number of remembered messages per second is capped, further messages
+ * within the same second are rejected because they could not be checked for replays later.
+ */
 public class ReplayDetector {
 
-    private SortedMap<Long, Map<String, Boolean>> buffer;
-    private int bufferWindowInSeconds = -1;
+    public static final int DEFAULT_MAX_MESSAGES_PER_SECOND = 16384;
 
-    public ReplayDetector(int bufferWindowInSeconds) {
+    private static final int INITIAL_BUCKET_CAPACITY = 64;
 
-        this.buffer = new TreeMap<>();
-        this.bufferWindowInSeconds = bufferWindowInSeconds;
-        //addEntry(System.currentTimeMillis(), "");
-    }
+    private final Bucket[] buckets;
+    private final int bufferWindowInSeconds;
+    private final int maxMessagesPerSecond;
 
-    private void addEntry(long timestamp, String messageId) {
+    private static class Bucket {
+        private long second = Long.MIN_VALUE;
+        private long[] hashes = new long[INITIAL_BUCKET_CAPACITY];
+        private boolean containsZero = false;
+        private int size = 0;
 
-        Map<String, Boolean> messages;
+        private void reset(long second) {
+            this.second = second;
+            if (hashes.length > INITIAL_BUCKET_CAPACITY)
+                hashes = new long[INITIAL_BUCKET_CAPACITY];
+            else
+                Arrays.fill(hashes, 0L);
+            containsZero = false;
+            size = 0;
+        }
 
-        if (!buffer.containsKey(timestamp)) {
-            messages = new HashMap<>();
-            buffer.put(timestamp, messages);
-        } else {
-            messages = buffer.get(timestamp);
+        // Returns false if the hash was already in the bucket
+        private boolean add(long hash) {
+            // Zero marks empty slots, so it is tracked separately
+            if (hash == 0) {
+                if (containsZero)
+                    return false;
+                containsZero = true;
+                size++;
+                return true;
+            }
+
+            if ((size + 1) * 2 > hashes.length)
+                grow();
+
+            int mask = hashes.length - 1;
+            int index = (int) (hash ^ (hash >>> 32)) & mask;
+
+            while (hashes[index] != 0) {
+                if (hashes[index] == hash)
+                    return false;
+                index = (index + 1) & mask;
+            }
+            hashes[index] = hash;
+            size++;
+            return true;
         }
 
-        messages.put(messageId, true);
-    }
+        private boolean contains(long hash) {
+            if (hash == 0)
+                return containsZero;
 
-    public boolean isValid(long timestamp, String messageId) {
-        // Reject messages that are older than the bufferWindowInSeconds
+            int mask = hashes.length - 1;
+            int index = (int) (hash ^ (hash >>> 32)) & mask;
 
-        if (timestamp< System.currentTimeMillis() - (bufferWindowInSeconds*1000))
+            while (hashes[index] != 0) {
+                if (hashes[index] == hash)
+                    return true;
+                index = (index + 1) & mask;
+            }
             return false;
+        }
 
-        // Reject message If there is an entry with exactly same timestamp and messageId
-        if (buffer.containsKey(timestamp) && buffer.get(timestamp).containsKey(messageId))
-            return false;
+        private void grow() {
+            long[] old = hashes;
+            hashes = new long[old.length * 2];
+            int mask = hashes.length - 1;
+
+            for (int i = 0; i < old.length; i++) {
+                long hash = old[i];
+                if (hash == 0)
+                    continue;
+
+                int index = (int) (hash ^ (hash >>> 32)) & mask;
+                while (hashes[index] != 0)
+                    index = (index + 1) & mask;
+                hashes[index] = hash;
+            }
+        }
+    }
+
+    public ReplayDetector(int bufferWindowInSeconds) {
+        this(bufferWindowInSeconds, DEFAULT_MAX_MESSAGES_PER_SECOND);
+    }
 
-        // Remove entries that are older than bufferWindowInSeconds from buffer
+    /**
+     * Constructs a replay detector
+     * @param bufferWindowInSeconds the maximum acceptable age of messages
+     * @param maxMessagesPerSecond the maximum number of messages remembered per second of timestamps
+     */
+    public ReplayDetector(int bufferWindowInSeconds, int maxMessagesPerSecond) {
+        this.bufferWindowInSeconds = bufferWindowInSeconds;
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
 
-        Iterator<Long> iterator = buffer.keySet().iterator();
+        // The window in the past, the current second and the window in the future
+        this.buckets = new Bucket[2 * bufferWindowInSeconds + 2];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new Bucket();
+    }
 
-        while (iterator.hasNext()) {
-            long key = iterator.next();
-            if (key < System.currentTimeMillis() - (bufferWindowInSeconds*1000))
-                iterator.remove();
-            else
-                break;
+    // 64-bit FNV-1a hash of the message id mixed with the exact timestamp
+    private static long hash(long timestamp, String messageId) {
+        long hash = 0xcbf29ce484222325L ^ timestamp;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= 0x100000001b3L;
         }
-        // Message is accptable, add it to the buffer
+        hash ^= (hash >>> 29);
+        return hash;
+    }
 
-        addEntry(timestamp, messageId);
+    public boolean isValid(long timestamp, String messageId) {
+        long now = System.currentTimeMillis();
 
-        return true;
-    }
+        // Reject messages that are older than the bufferWindowInSeconds, or too far in the future to be remembered
+        if (timestamp < now - (bufferWindowInSeconds * 1000L) || timestamp > now + (bufferWindowInSeconds * 1000L))
+            return false;
+
+        long second = Math.floorDiv(timestamp, 1000L);
+        Bucket bucket = buckets[(int) Math.floorMod(second, (long) buckets.length)];
+        long hash = hash(timestamp, messageId);
+
+        synchronized (bucket) {
+            // The bucket still holds entries of a second that has dropped out of the window, evict them all
+            if (bucket.second != second)
+                bucket.reset(second);
+
+            // Reject the message if the same timestamp and messageId has been seen
+            if (bucket.contains(hash))
+                return false;
 
+            if (bucket.size >= maxMessagesPerSecond) {
+                Logger.warn("replay buffer full for second " + second + ", rejecting message");
+                return false;
+            }
+
+            // Message is acceptable, add it to the buffer
+            return bucket.add(hash);
+        }
+    }
 }
@@ -0,0 +1,625 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.JWSAlgorithm;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads publishing and subscribing over several connections to the same Mqtt server, each one a UbiMqtt
+ * instance with its own Mqtt client, send thread and callback thread.
+ *
+ * Each topic is always published on the same connection, chosen by the hash of the topic, so messages to
+ * a topic keep their order. Each subscription is made on the connection chosen by the hash of its topic
+ * filter. Listener ids returned by the subscribe methods and given to listeners have the form
+ * "shard/listenerId".
+ *
+ * Options like the dispatch executor or the outbound journal are set on the individual shards, see getShard.
+ */
+public class ShardedUbiMqtt {
+
+    private final UbiMqtt[] shards;
+
+    /**
+     * Constructs a sharded Ubimqtt instance with default bufferWindowInSeconds but does not connect to a server
+     * @param serverAddress the Mqtt server to use
+     * @param shardCount the number of connections to open
+     */
+    public ShardedUbiMqtt(String serverAddress, int shardCount) {
+        this(serverAddress, shardCount, UbiMqtt.DEFAULT_BUFFER_WINDOW_IN_SECONDS);
+    }
+
+    /**
+     * Constructs a sharded Ubimqtt instance but does not connect to a server
+     * @param serverAddress the Mqtt server to use
+     * @param shardCount the number of connections to open
+     * @param bufferWindowInSeconds the maximum age of signed messages to accept, see UbiMqtt
+     */
+    public ShardedUbiMqtt(String serverAddress, int shardCount, int bufferWindowInSeconds) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("shardCount must be at least 1");
+
+        shards = new UbiMqtt[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new UbiMqtt(serverAddress, bufferWindowInSeconds);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns one of the connections, for setting options on it before connecting
+     * @param index the index of the shard, from 0 to getShardCount() - 1
+     * @return the UbiMqtt instance of the shard
+     */
+    public UbiMqtt getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * Returns the index of the shard a topic or topic filter is published or subscribed on
+     * @param topic the topic or topic filter
+     * @return the index of the shard
+     */
+    public int getShardIndex(String topic) {
+        return (topic.hashCode() & 0x7fffffff) % shards.length;
+    }
+
+    private UbiMqtt shardFor(String topic) {
+        return shards[getShardIndex(topic)];
+    }
+
+    /**
+     * Records the metrics of all shards to the same metrics, gauges of the shards are summed, see UbiMqtt.setMetrics
+     * @param metrics the metrics to record to, or null to stop recording
+     */
+    public void setMetrics(IUbiMetrics metrics) {
+        for (UbiMqtt shard : shards)
+            shard.setMetrics(metrics);
+    }
+
+    /**
+     * Connects all shards to the Mqtt server
+     * @param actionListener the listener to call once all shards are connected, or with the first error
+     */
+    public void connect(IUbiActionListener actionListener) {
+        IUbiActionListener combined = new CombinedActionListener(shards.length, actionListener);
+        for (UbiMqtt shard : shards)
+            shard.connect(combined);
+    }
+
+    /**
+     * Disconnects all shards from the Mqtt server
+     * @param actionListener the listener to call once all shards are disconnected, or with the first error
+     */
+    public void disconnect(IUbiActionListener actionListener) {
+        IUbiActionListener combined = new CombinedActionListener(shards.length, actionListener);
+        for (UbiMqtt shard : shards)
+            shard.disconnect(combined);
+    }
+
+    /**
+     * Publishes a message on the shard of the topic
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publish(String topic, String message, int qos, boolean retained, IUbiActionListener actionListener) {
+        shardFor(topic).publish(topic, message, qos, retained, actionListener);
+    }
+
+    /**
+     * Publishes a message on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publish(String topic, String message, IUbiActionListener actionListener) {
+        shardFor(topic).publish(topic, message, actionListener);
+    }
+
+    /**
+     * Publishes a binary message on the shard of the topic
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publish(String topic, byte[] payload, int qos, boolean retained, IUbiActionListener actionListener) {
+        shardFor(topic).publish(topic, payload, qos, retained, actionListener);
+    }
+
+    /**
+     * Publishes a binary message on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publish(String topic, byte[] payload, IUbiActionListener actionListener) {
+        shardFor(topic).publish(topic, payload, actionListener);
+    }
+
+    /**
+     * Publishes the remaining bytes of a buffer on the shard of the topic
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publish(String topic, ByteBuffer payload, int qos, boolean retained, IUbiActionListener actionListener) {
+        shardFor(topic).publish(topic, payload, qos, retained, actionListener);
+    }
+
+    /**
+     * Publishes the remaining bytes of a buffer on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publish(String topic, ByteBuffer payload, IUbiActionListener actionListener) {
+        shardFor(topic).publish(topic, payload, actionListener);
+    }
+
+    /**
+     * Publishes a message on the shard of the topic, see UbiMqtt.publishAsync
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @return a future completed when the message has been delivered
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        return shardFor(topic).publishAsync(topic, payload, qos, retained);
+    }
+
+    /**
+     * Publishes a message on the shard of the topic with default qos=1 and retained = false, see UbiMqtt.publishAsync
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @return a future completed when the message has been delivered
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, byte[] payload) {
+        return shardFor(topic).publishAsync(topic, payload);
+    }
+
+    /**
+     * Publishes a message on the shard of the topic, see UbiMqtt.publishAsync
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @return a future completed when the message has been delivered
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, String message, int qos, boolean retained) {
+        return shardFor(topic).publishAsync(topic, message, qos, retained);
+    }
+
+    /**
+     * Publishes a message on the shard of the topic with default qos=1 and retained = false, see UbiMqtt.publishAsync
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @return a future completed when the message has been delivered
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, String message) {
+        return shardFor(topic).publishAsync(topic, message);
+    }
+
+    /**
+     * Publishes a signed message on the shard of the topic
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param privateKey the private key in .pem format to sign the message with
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishSigned(String topic, String message, int qos, boolean retained, String privateKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishSigned(topic, message, qos, retained, privateKey, actionListener);
+    }
+
+    /**
+     * Publishes a signed message on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param privateKey the private key in .pem format to sign the message with
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishSigned(String topic, String message, String privateKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishSigned(topic, message, privateKey, actionListener);
+    }
+
+    /**
+     * Publishes a signed message on the shard of the topic
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param signingKey the key to sign the message with
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishSigned(String topic, String message, int qos, boolean retained, UbiSigningKey signingKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishSigned(topic, message, qos, retained, signingKey, actionListener);
+    }
+
+    /**
+     * Publishes a signed message on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param signingKey the key to sign the message with
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishSigned(String topic, String message, UbiSigningKey signingKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishSigned(topic, message, signingKey, actionListener);
+    }
+
+    /**
+     * Publishes an encrypted message on the shard of the topic
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKey public key in .pem format for the encryption
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, int qos, boolean retained, String encryptPublicKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishEncrypted(topic, message, qos, retained, encryptPublicKey, actionListener);
+    }
+
+    /**
+     * Publishes an encrypted message on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param encryptPublicKey public key in .pem format for the encryption
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, String encryptPublicKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishEncrypted(topic, message, encryptPublicKey, actionListener);
+    }
+
+    /**
+     * Publishes an encrypted binary message on the shard of the topic
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKey public key in .pem format for the encryption
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishEncrypted(String topic, byte[] payload, int qos, boolean retained, String encryptPublicKey, IUbiActionListener actionListener) {
+        shardFor(topic).publishEncrypted(topic, payload, qos, retained, encryptPublicKey, actionListener);
+    }
+
+    /**
+     * Publishes a message encrypted for several recipients on the shard of the topic
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKeys public keys of the recipients in .pem format
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, int qos, boolean retained, String[] encryptPublicKeys, IUbiActionListener actionListener) {
+        shardFor(topic).publishEncrypted(topic, message, qos, retained, encryptPublicKeys, actionListener);
+    }
+
+    /**
+     * Publishes a message encrypted for several recipients on the shard of the topic with default qos=1 and retained = false
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param encryptPublicKeys public keys of the recipients in .pem format
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, String[] encryptPublicKeys, IUbiActionListener actionListener) {
+        shardFor(topic).publishEncrypted(topic, message, encryptPublicKeys, actionListener);
+    }
+
+    /**
+     * Publishes a binary message encrypted for several recipients on the shard of the topic
+     * @param topic the topic to publish to
+     * @param payload the payload to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKeys public keys of the recipients in .pem format
+     * @param actionListener the listener to call upon success or error
+     */
+    public void publishEncrypted(String topic, byte[] payload, int qos, boolean retained, String[] encryptPublicKeys, IUbiActionListener actionListener) {
+        shardFor(topic).publishEncrypted(topic, payload, qos, retained, encryptPublicKeys, actionListener);
+    }
+
+    private interface BatchPublish {
+        void publish(UbiMqtt shard, List<UbiBatchMessage> messages, IUbiBatchListener batchListener);
+    }
+
+    // Splits a batch into one batch per shard, keeping the order of each topic, and merges the results
+    private void publishBatch(List<UbiBatchMessage> messages, IUbiBatchListener batchListener, BatchPublish batchPublish) {
+        final List<List<UbiBatchMessage>> shardMessages = new ArrayList<>();
+        final List<List<Integer>> shardIndices = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            shardMessages.add(new ArrayList<UbiBatchMessage>());
+            shardIndices.add(new ArrayList<Integer>());
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            int shard = getShardIndex(messages.get(i).getTopic());
+            shardMessages.get(shard).add(messages.get(i));
+            shardIndices.get(shard).add(i);
+        }
+
+        int used = 0;
+        for (int i = 0; i < shards.length; i++) {
+            if (!shardMessages.get(i).isEmpty())
+                used++;
+        }
+        if (used == 0) {
+            batchListener.onComplete(new UbiBatchResult(new Throwable[0]));
+            return;
+        }
+
+        final Throwable[] errors = new Throwable[messages.size()];
+        final AtomicInteger remaining = new AtomicInteger(used);
+
+        for (int i = 0; i < shards.length; i++) {
+            if (shardMessages.get(i).isEmpty())
+                continue;
+
+            final List<Integer> indices = shardIndices.get(i);
+            batchPublish.publish(shards[i], shardMessages.get(i), new IUbiBatchListener() {
+                @Override
+                public void onComplete(UbiBatchResult result) {
+                    synchronized (errors) {
+                        for (int j = 0; j < indices.size(); j++)
+                            errors[indices.get(j)] = result.getError(j);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        synchronized (errors) {
+                            batchListener.onComplete(new UbiBatchResult(errors));
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Publishes a batch of messages, each one on the shard of its topic, see UbiMqtt.publishBatch
+     * @param messages the messages to publish, in the order they are published on each topic
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatch(List<UbiBatchMessage> messages, int qos, boolean retained, IUbiBatchListener batchListener) {
+        publishBatch(messages, batchListener, new BatchPublish() {
+            @Override
+            public void publish(UbiMqtt shard, List<UbiBatchMessage> shardMessages, IUbiBatchListener shardListener) {
+                shard.publishBatch(shardMessages, qos, retained, shardListener);
+            }
+        });
+    }
+
+    /**
+     * Publishes a batch of messages with default qos=1 and retained = false, each one on the shard of its topic
+     * @param messages the messages to publish, in the order they are published on each topic
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatch(List<UbiBatchMessage> messages, IUbiBatchListener batchListener) {
+        publishBatch(messages, 1, false, batchListener);
+    }
+
+    /**
+     * Publishes a batch of signed messages, each one on the shard of its topic, see UbiMqtt.publishBatchSigned
+     * @param messages the messages to publish, in the order they are published on each topic
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param signingKey the key to sign the messages with
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchSigned(List<UbiBatchMessage> messages, int qos, boolean retained, UbiSigningKey signingKey, IUbiBatchListener batchListener) {
+        publishBatch(messages, batchListener, new BatchPublish() {
+            @Override
+            public void publish(UbiMqtt shard, List<UbiBatchMessage> shardMessages, IUbiBatchListener shardListener) {
+                shard.publishBatchSigned(shardMessages, qos, retained, signingKey, shardListener);
+            }
+        });
+    }
+
+    /**
+     * Publishes a batch of signed messages with default qos=1 and retained = false, each one on the shard of its topic
+     * @param messages the messages to publish, in the order they are published on each topic
+     * @param signingKey the key to sign the messages with
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchSigned(List<UbiBatchMessage> messages, UbiSigningKey signingKey, IUbiBatchListener batchListener) {
+        publishBatchSigned(messages, 1, false, signingKey, batchListener);
+    }
+
+    /**
+     * Publishes a batch of encrypted messages, each one on the shard of its topic, see UbiMqtt.publishBatchEncrypted
+     * @param messages the messages to publish, in the order they are published on each topic
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param encryptPublicKey public key in .pem format for the encryption
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchEncrypted(List<UbiBatchMessage> messages, int qos, boolean retained, String encryptPublicKey, IUbiBatchListener batchListener) {
+        publishBatch(messages, batchListener, new BatchPublish() {
+            @Override
+            public void publish(UbiMqtt shard, List<UbiBatchMessage> shardMessages, IUbiBatchListener shardListener) {
+                shard.publishBatchEncrypted(shardMessages, qos, retained, encryptPublicKey, shardListener);
+            }
+        });
+    }
+
+    /**
+     * Publishes a batch of encrypted messages with default qos=1 and retained = false, each one on the shard of its topic
+     * @param messages the messages to publish, in the order they are published on each topic
+     * @param encryptPublicKey public key in .pem format for the encryption
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchEncrypted(List<UbiBatchMessage> messages, String encryptPublicKey, IUbiBatchListener batchListener) {
+        publishBatchEncrypted(messages, 1, false, encryptPublicKey, batchListener);
+    }
+
+    private static String shardListenerId(int shard, String listenerId) {
+        return listenerId != null ? shard + "/" + listenerId : null;
+    }
+
+    // Gives listeners the sharded listener id instead of the id in the shard
+    private static IUbiMessageListener shardListener(final int shard, final IUbiMessageListener listener) {
+        return new IUbiMessageListener() {
+            @Override
+            public void messageArrived(String topic, MqttMessage mqttMessage, String listenerId) throws Exception {
+                listener.messageArrived(topic, mqttMessage, shardListenerId(shard, listenerId));
+            }
+        };
+    }
+
+    private static IUbiPayloadListener shardPayloadListener(final int shard, final IUbiPayloadListener listener) {
+        return new IUbiPayloadListener() {
+            @Override
+            public void messageArrived(String topic, ByteBuffer payload, String listenerId) throws Exception {
+                listener.messageArrived(topic, payload, shardListenerId(shard, listenerId));
+            }
+        };
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the shard of the topic
+     * @param topic the Mqtt topic to subscribe to
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribe(String topic, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribe(topic, shardListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the shard of the topic decrypting all the messages that arrive
+     * @param topic the Mqtt topic to subscribe to
+     * @param decryptPrivateKey the private keys the messages is decrypted against
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeEncrypted(String topic, String[] decryptPrivateKey, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribeEncrypted(topic, decryptPrivateKey, shardListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to messages signed by particular keypairs on a Mqtt topic on the shard of the topic
+     * @param topic the Mqtt topic to subscribe to
+     * @param publicKeys the public keys the messages are checked against
+     * @param listener the listener function to call whenever a message matching the topic and signed with one of the publicKeys arrives
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeSigned(String topic, String[] publicKeys, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribeSigned(topic, publicKeys, shardListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to messages signed by particular keypairs with particular algorithms on the shard of the topic
+     * @param topic the Mqtt topic to subscribe to
+     * @param publicKeys the public keys the messages are checked against
+     * @param allowedAlgorithms the accepted signature algorithms
+     * @param listener the listener function to call whenever a message matching the topic and signed with one of the publicKeys arrives
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeSigned(String topic, String[] publicKeys, Set<JWSAlgorithm> allowedAlgorithms, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribeSigned(topic, publicKeys, allowedAlgorithms, shardListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the shard of the topic, delivering the payloads of messages as read-only buffers
+     * @param topic the Mqtt topic to subscribe to
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribePayload(String topic, IUbiPayloadListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribePayload(topic, shardPayloadListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the shard of the topic decrypting all the messages that arrive, delivering
+     * the decrypted payloads as read-only buffers
+     * @param topic the Mqtt topic to subscribe to
+     * @param decryptPrivateKey the private keys the messages is decrypted against
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeEncryptedPayload(String topic, String[] decryptPrivateKey, IUbiPayloadListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribeEncryptedPayload(topic, decryptPrivateKey, shardPayloadListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to messages signed by particular keypairs on a Mqtt topic on the shard of the topic, delivering
+     * the payloads inside the verified envelopes as read-only buffers
+     * @param topic the Mqtt topic to subscribe to
+     * @param publicKeys the public keys the messages are checked against
+     * @param listener the listener function to call whenever a message matching the topic and signed with one of the publicKeys arrives
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeSignedPayload(String topic, String[] publicKeys, IUbiPayloadListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribeSignedPayload(topic, publicKeys, shardPayloadListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Subscribes to messages signed by a known publisher on the shard of the topic, see UbiMqtt.subscribeFromPublisher
+     * @param topic the Mqtt topic to subscribe to
+     * @param publisherName the name of the known publisher
+     * @param listener the listener to call whenever a message matching the topic and signed with the publicKey arrives
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing both the key and the main subscription with unsubscribe
+     */
+    public String subscribeFromPublisher(String topic, String publisherName, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        int shard = getShardIndex(topic);
+        return shardListenerId(shard, shards[shard].subscribeFromPublisher(topic, publisherName, shardListener(shard, listener), actionListener));
+    }
+
+    /**
+     * Removes a listener added with one of the subscribe methods, see UbiMqtt.unsubscribe
+     * @param listenerId the listener id returned by the subscribe method
+     * @param actionListener the callback to be called upon successful unsubscription or error
+     */
+    public void unsubscribe(String listenerId, IUbiActionListener actionListener) {
+        int separator = listenerId.indexOf('/');
+        int shard = -1;
+        if (separator > 0) {
+            try {
+                shard = Integer.parseInt(listenerId.substring(0, separator));
+            } catch (NumberFormatException e) {
+                shard = -1;
+            }
+        }
+
+        if (shard < 0 || shard >= shards.length) {
+            actionListener.onFailure(null, new IllegalArgumentException("no subscription with listener id " + listenerId));
+            return;
+        }
+
+        shards[shard].unsubscribe(listenerId.substring(separator + 1), actionListener);
+    }
+}
@@ -0,0 +1,25 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * Defines how signed messages are serialized on the wire. Subscribers detect the format of each message,
+ * so publishers using different formats can share a topic.
+ */
+public enum SignatureFormat {
+    /**
+     * The JWS JSON serialization with the protected header as a JSON object, readable by all subscribers
+     */
+    JSON,
+
+    /**
+     * The JWS compact serialization, verified as received without re-encoding. Needs subscribers that
+     * detect the format.
+     */
+    COMPACT,
+
+    /**
+     * Messages are signed in batches collected for a short window, with one signature over the root of a Merkle
+     * tree of the batch and a proof of inclusion in each message, see MerkleBatchSigner. Subscribers check one
+     * signature per batch. Needs subscribers that detect the format.
+     */
+    MERKLE
+}
@@ -0,0 +1,165 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Verifies the signatures of messages arriving on signed subscriptions on a pool of worker threads.
+ *
+ * Messages are verified in parallel, but each subscription's listener receives its messages in the
+ * order they were submitted, one at a time. Replay detection is done at delivery time, in the same order.
+ * At most queueBound messages can be in the stage at once, submitting more blocks the caller until
+ * earlier messages have been delivered.
+ */
+public class SignatureVerificationStage {
+
+    private final Executor executor;
+    private final MessageValidator messageValidator;
+    private final int queueBound;
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, PendingQueue> queues = new ConcurrentHashMap<>();
+
+    private static class Pending {
+        private final IncomingMessage message;
+        private final String listenerId;
+        private final Subscription subscription;
+
+        private volatile boolean done = false;
+        private volatile boolean verified = false;
+
+        private Pending(IncomingMessage message, String listenerId, Subscription subscription) {
+            this.message = message;
+            this.listenerId = listenerId;
+            this.subscription = subscription;
+        }
+    }
+
+    private static class PendingQueue {
+        private final String listenerId;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private boolean draining = false;
+        private boolean removed = false;
+
+        private PendingQueue(String listenerId) {
+            this.listenerId = listenerId;
+        }
+    }
+
+    /**
+     * Constructs a verification stage
+     * @param executor the executor to verify signatures on
+     * @param queueBound the maximum number of messages waiting for verification or delivery
+     * @param messageValidator the validator used for replay detection
+     */
+    public SignatureVerificationStage(Executor executor, int queueBound, MessageValidator messageValidator) {
+        this.executor = executor;
+        this.messageValidator = messageValidator;
+        this.queueBound = queueBound;
+        this.permits = new Semaphore(queueBound);
+    }
+
+    /**
+     * Returns the number of messages waiting for verification or delivery
+     * @return the number of messages in the stage
+     */
+    public int getQueueDepth() {
+        return queueBound - permits.availablePermits();
+    }
+
+    /**
+     * Queues a message for verification and delivery to the listener of a signed subscription. If the executor
+     * rejects the verification, the message is dropped and logged.
+     * @param message the signed message
+     * @param subscription the subscription, identified by its listener id, the message is for
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void submit(IncomingMessage message, Map.Entry<String, Subscription> subscription) throws InterruptedException {
+        permits.acquire();
+
+        Pending pending = new Pending(message, subscription.getKey(), subscription.getValue());
+
+        // Empty queues are removed so unsubscribed listeners do not leave queues behind, retry if this one just was
+        PendingQueue queue;
+        while (true) {
+            queue = queues.get(pending.listenerId);
+            if (queue == null) {
+                queue = new PendingQueue(pending.listenerId);
+                PendingQueue existing = queues.putIfAbsent(pending.listenerId, queue);
+                if (existing != null)
+                    queue = existing;
+            }
+
+            synchronized (queue) {
+                if (!queue.removed) {
+                    queue.pending.add(pending);
+                    break;
+                }
+            }
+        }
+
+        final PendingQueue pendingQueue = queue;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.verified = verify(pending);
+                    pending.done = true;
+                    drain(pendingQueue);
+                }
+            });
+        } catch (RuntimeException e) {
+            // The executor refused the task, for example because it has been shut down. Drop the message instead of
+            // blocking the queue, and do not let the exception reach the Mqtt client, which would drop the connection.
+            Logger.warn("executor rejected verification of message on topic " + message.getTopic() + ", dropping it", e);
+            pending.done = true;
+            drain(pendingQueue);
+        }
+    }
+
+    private boolean verify(Pending pending) {
+        SignedMessage signedMessage = pending.message.getSignedMessage();
+        if (signedMessage == null)
+            return false;
+
+        return pending.message.isSignedByAny(pending.subscription.getCandidatePublicKeys(signedMessage), messageValidator);
+    }
+
+    private void drain(PendingQueue queue) {
+        while (true) {
+            Pending head;
+
+            synchronized (queue) {
+                if (queue.draining)
+                    return;
+
+                head = queue.pending.peek();
+                if (head == null) {
+                    queue.removed = true;
+                    queues.remove(queue.listenerId, queue);
+                    return;
+                }
+                if (!head.done)
+                    return;
+
+                queue.pending.poll();
+                queue.draining = true;
+            }
+
+            try {
+                permits.release();
+
+                if (head.verified && head.message.isFresh(messageValidator))
+                    PayloadListenerAdapter.deliverSigned(head.subscription.getListener(), head.message, head.listenerId);
+            } catch (Exception e) {
+                Logger.warn("delivering message on topic " + head.message.getTopic() + " failed", e);
+            } finally {
+                synchronized (queue) {
+                    queue.draining = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.util.Base64URL;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * A signed message parsed from its JSON serialization, holding what is needed for checking the
+ * signature and for replay detection. For a message signed in a batch, the compact serialization is the
+ * signed root of the batch.
+ */
+public class SignedMessage {
+    private String compact;
+    private long timestamp;
+    private String messageId;
+    private String keyId;
+    private JWSAlgorithm algorithm;
+
+    // The header and the encoded rest of a JSON serialized message, for the fallback verification
+    private String protectedHeader;
+    private String payloadAndSignature;
+    private String reserializedCompact = null;
+    private boolean reserializedChecked = false;
+
+    // Messages signed in a batch are verified through the signed root of the batch, which compact holds
+    private boolean inBatch = false;
+
+    // The payload as found in a JSON serialized envelope, the payload of a compact message is decoded when asked for
+    private String payloadText = null;
+    private byte[] payload = null;
+
+    private SignedMessage(String compact, String protectedHeader, String payloadAndSignature, long timestamp, String messageId, String keyId, String algorithm) {
+        this.compact = compact;
+        this.protectedHeader = protectedHeader;
+        this.payloadAndSignature = payloadAndSignature;
+        this.timestamp = timestamp;
+        this.messageId = messageId;
+        this.keyId = keyId;
+        this.algorithm = algorithm != null ? JWSAlgorithm.parse(algorithm) : null;
+    }
+
+    /**
+     * Parses a signed message in either of the serializations produced by JwsHelper.signMessage
+     * @param message the signed message
+     * @return the parsed message
+     * @throws ParseException if the message is not a valid signed message
+     */
+    public static SignedMessage parse(String message) throws ParseException {
+        if (JwsHelper.isCompact(message))
+            return parseCompact(message.trim());
+
+        EnvelopeScanner envelope = EnvelopeScanner.scanEnvelope(message);
+        if (envelope.getRoot() != null)
+            return parseMerkle(envelope);
+
+        String protectedHeader = envelope.getProtectedHeader();
+        EnvelopeScanner header = scanHeader(protectedHeader);
+
+        String payloadAndSignature = Base64URL.encode(envelope.getPayload()) + "." + envelope.getSignature();
+        String compact = Base64URL.encode(protectedHeader) + "." + payloadAndSignature;
+
+        SignedMessage signedMessage = new SignedMessage(compact, protectedHeader, payloadAndSignature, header.getTimestamp(), header.getMessageId(), header.getKeyId(), header.getAlgorithm());
+        signedMessage.payloadText = envelope.getPayload();
+        return signedMessage;
+    }
+
+    // The compact serialization is verified as is, only the header needs to be decoded for the replay check
+    private static SignedMessage parseCompact(String compact) throws ParseException {
+        int headerEnd = compact.indexOf('.');
+        if (headerEnd < 0 || compact.indexOf('.', headerEnd + 1) < 0)
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+
+        EnvelopeScanner header = scanHeader(new Base64URL(compact.substring(0, headerEnd)).decodeToString());
+
+        return new SignedMessage(compact, null, null, header.getTimestamp(), header.getMessageId(), header.getKeyId(), header.getAlgorithm());
+    }
+
+    // The signed root of a batch is not a message by itself, otherwise it could be replayed as one
+    private static EnvelopeScanner scanHeader(String protectedHeader) throws ParseException {
+        EnvelopeScanner header = EnvelopeScanner.scanHeader(protectedHeader);
+        if (header.getMerkleSize() >= 0)
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+        return header;
+    }
+
+    // The proof of a message signed in a batch is checked here, only the signature of the root is left to check.
+    // The message id combines the id of the root and the index of the message, which the leaf hash covers.
+    private static SignedMessage parseMerkle(EnvelopeScanner envelope) throws ParseException {
+        String root = envelope.getRoot().trim();
+        int headerEnd = root.indexOf('.');
+        int payloadEnd = headerEnd < 0 ? -1 : root.indexOf('.', headerEnd + 1);
+        if (payloadEnd < 0)
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+
+        EnvelopeScanner header = EnvelopeScanner.scanHeader(new Base64URL(root.substring(0, headerEnd)).decodeToString());
+        long size = header.getMerkleSize();
+        long index = envelope.getMerkleIndex();
+        if (size < 1 || size > Integer.MAX_VALUE || index >= size)
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+
+        byte[][] proof = new byte[envelope.getMerkleProof().size()][];
+        for (int i = 0; i < proof.length; i++)
+            proof[i] = new Base64URL(envelope.getMerkleProof().get(i)).decode();
+
+        byte[] leafHash = MerkleTree.leafHash((int) index, envelope.getPayload());
+        byte[] computedRoot = MerkleTree.computeRoot(leafHash, (int) index, (int) size, proof);
+        if (computedRoot == null || !MessageDigest.isEqual(computedRoot, new Base64URL(root.substring(headerEnd + 1, payloadEnd)).decode()))
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+
+        SignedMessage signedMessage = new SignedMessage(root, null, null, header.getTimestamp(), header.getMessageId() + "/" + index, header.getKeyId(), header.getAlgorithm());
+        signedMessage.inBatch = true;
+        signedMessage.payloadText = envelope.getPayload();
+        return signedMessage;
+    }
+
+    /**
+     * Returns the message with the protected header serialized again by json-simple. Older publishers signed the
+     * header as serialized by Nimbus but sent it re-serialized by json-simple, so the header in the envelope is
+     * not the signed one. Such headers only verify if json-simple happens to reproduce the signed bytes.
+     */
+    private synchronized String getReserializedCompact() {
+        if (protectedHeader == null || reserializedChecked)
+            return reserializedCompact;
+
+        reserializedChecked = true;
+        try {
+            JSONObject headerObj = (JSONObject) new JSONParser().parse(protectedHeader);
+            String reserializedHeader = headerObj.toString();
+
+            if (!reserializedHeader.equals(protectedHeader))
+                reserializedCompact = Base64URL.encode(reserializedHeader) + "." + payloadAndSignature;
+        } catch (ParseException e) {
+            // Already scanned successfully, cannot happen
+        }
+        return reserializedCompact;
+    }
+
+    /**
+     * Checks whether the message was signed with the private key matching the given public key
+     * @param ecPublicKey the public key to check the signature against
+     * @return true if the signature is valid
+     * @throws JOSEException if the signature cannot be checked
+     * @throws java.text.ParseException if the message is malformed
+     * @throws IOException if the key cannot be used
+     */
+    public boolean isSignedBy(ECPublicKey ecPublicKey) throws JOSEException, java.text.ParseException, IOException {
+        return isSignedBy(ecPublicKey, null);
+    }
+
+    /**
+     * Checks whether the message was signed with the private key matching the given public key, looking up the
+     * result for the root of a message signed in a batch from the given cache
+     * @param ecPublicKey the public key to check the signature against
+     * @param rootCache the results of checked roots or null to check the root again
+     * @return true if the signature is valid
+     * @throws JOSEException if the signature cannot be checked
+     * @throws java.text.ParseException if the message is malformed
+     * @throws IOException if the key cannot be used
+     */
+    public boolean isSignedBy(ECPublicKey ecPublicKey, MerkleRootCache rootCache) throws JOSEException, java.text.ParseException, IOException {
+        if (inBatch)
+            return rootCache != null ? rootCache.isSignedBy(compact, ecPublicKey) : JwsHelper.verifySignatureCompact(compact, ecPublicKey);
+
+        if (JwsHelper.verifySignatureCompact(compact, ecPublicKey))
+            return true;
+
+        String reserializedCompact = getReserializedCompact();
+        return reserializedCompact != null && JwsHelper.verifySignatureCompact(reserializedCompact, ecPublicKey);
+    }
+
+    /**
+     * Checks whether the message was signed with the private key matching one of the given public keys
+     * @param ecPublicKeys the public keys to check the signature against
+     * @return true if the signature is valid for one of the keys
+     * @throws JOSEException if the signature cannot be checked
+     * @throws java.text.ParseException if the message is malformed
+     * @throws IOException if a key cannot be used
+     */
+    public boolean isSignedByAny(ECPublicKey[] ecPublicKeys) throws JOSEException, java.text.ParseException, IOException {
+        for (int i = 0; i < ecPublicKeys.length; i++) {
+            if (isSignedBy(ecPublicKeys[i]))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the payload the message carries, decoded from the envelope only once
+     * @return the payload
+     */
+    public synchronized byte[] getPayload() {
+        if (payload == null) {
+            if (payloadText != null) {
+                payload = payloadText.getBytes(StandardCharsets.UTF_8);
+            } else {
+                int headerEnd = compact.indexOf('.');
+                payload = new Base64URL(compact.substring(headerEnd + 1, compact.indexOf('.', headerEnd + 1))).decode();
+            }
+        }
+        return payload;
+    }
+
+    public String getCompact() {
+        return compact;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Returns the id of the key the message says it was signed with
+     * @return the "kid" header or null for messages from publishers that do not send it
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Returns the algorithm the message says it was signed with
+     * @return the "alg" header or null if the message has none
+     */
+    public JWSAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+}
@@ -1,43 +1,99 @@
 package fi.helsinki.ubimqtt;
 
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.ECDHDecrypter;
+
 import java.io.IOException;
+import java.security.KeyPair;
 import java.security.interfaces.ECPublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class Subscription {
+    private static final ECPublicKey[] NO_PUBLIC_KEYS = new ECPublicKey[0];
+    private static final ECDHDecrypter[] NO_DECRYPTERS = new ECDHDecrypter[0];
+
     private String topic;
     private IUbiMessageListener listener;
-    private ECPublicKey[] ecPublicKeys;
+    private volatile ECPublicKey[] ecPublicKeys;
+    private volatile Map<String, ECPublicKey[]> ecPublicKeysById;
     private String[] decryptPrivateKey;
+    private ECDHDecrypter[] decrypters;
+    private Map<String, ECDHDecrypter[]> decryptersById;
+    private GroupKeyRing groupKeys;
+    private boolean authenticated = false;
+    private Set<JWSAlgorithm> allowedAlgorithms = JwsHelper.SIGNATURE_ALGORITHMS;
 
-    public Subscription(String topic, IUbiMessageListener listener, String[] publicKeys, String[] decryptPrivateKey) throws IOException {
+    public Subscription(String topic, IUbiMessageListener listener, String[] publicKeys, String[] decryptPrivateKey) throws IOException, JOSEException {
         this.topic = topic;
         this.listener = listener;
         this.decryptPrivateKey = decryptPrivateKey;
 
-        if (publicKeys != null) {
-            this.ecPublicKeys = new ECPublicKey[publicKeys.length];
+        if (decryptPrivateKey != null) {
+            // Parse the keys once here instead of for every message
+            this.decrypters = new ECDHDecrypter[decryptPrivateKey.length];
+            this.decryptersById = new HashMap<>();
 
-            for (int i=0; i<publicKeys.length; i++) {
-                this.ecPublicKeys[i] = JwsHelper.createEcPublicKey(publicKeys[i]);
+            for (int i=0; i<decryptPrivateKey.length; i++) {
+                KeyPair keyPair = JwsHelper.createEcKeyPair(decryptPrivateKey[i]);
+                this.decrypters[i] = JwsHelper.createEcDecrypter(keyPair);
+                this.decryptersById.put(JwsHelper.computeKeyId((ECPublicKey) keyPair.getPublic()), new ECDHDecrypter[] {this.decrypters[i]});
             }
         } else {
-            this.ecPublicKeys = null;
+            this.decrypters = null;
         }
+
+        setEcPublicKeys(createEcPublicKeys(publicKeys));
     }
 
     public Subscription(String topic, IUbiMessageListener listener, String[] publicKeys) throws IOException {
         this.topic = topic;
         this.listener = listener;
         this.decryptPrivateKey = null;
-        if (publicKeys != null) {
-            this.ecPublicKeys = new ECPublicKey[publicKeys.length];
+        this.decrypters = null;
 
-            for (int i=0; i<publicKeys.length; i++) {
-                this.ecPublicKeys[i] = JwsHelper.createEcPublicKey(publicKeys[i]);
-            }
-        } else {
-            this.ecPublicKeys = null;
+        setEcPublicKeys(createEcPublicKeys(publicKeys));
+    }
+
+    /**
+     * Constructs a subscription to messages encrypted with the keys of a group
+     * @param topic the topic filter of the subscription
+     * @param listener the listener to deliver the decrypted messages to
+     * @param groupKeys the key ring holding the group keys received so far
+     */
+    public Subscription(String topic, GroupKeyRing groupKeys, IUbiMessageListener listener) {
+        this(topic, groupKeys, listener, false);
+    }
+
+    /**
+     * Constructs a subscription to messages encrypted or authenticated with the keys of a group
+     * @param topic the topic filter of the subscription
+     * @param groupKeys the key ring holding the group keys received so far
+     * @param listener the listener to deliver the messages to
+     * @param authenticated true if the messages are authenticated with HS256 instead of encrypted
+     */
+    public Subscription(String topic, GroupKeyRing groupKeys, IUbiMessageListener listener, boolean authenticated) {
+        this.topic = topic;
+        this.listener = listener;
+        this.decryptPrivateKey = null;
+        this.decrypters = null;
+        this.groupKeys = groupKeys;
+        this.authenticated = authenticated;
+    }
+
+    private static ECPublicKey[] createEcPublicKeys(String[] publicKeys) throws IOException {
+        if (publicKeys == null)
+            return null;
+
+        ECPublicKey[] ecPublicKeys = new ECPublicKey[publicKeys.length];
+
+        for (int i=0; i<publicKeys.length; i++) {
+            ecPublicKeys[i] = JwsHelper.createEcPublicKey(publicKeys[i]);
         }
+        return ecPublicKeys;
     }
 
     public IUbiMessageListener getListener() {
@@ -48,10 +104,65 @@ public class Subscription {
         return ecPublicKeys;
     }
 
-    public void setEcPublicKeys(ECPublicKey[] ecPublicKeys) {
+    public void setEcPublicKeys(ECPublicKey[] ecPublicKeys) throws IOException {
+        if (ecPublicKeys != null) {
+            Map<String, ECPublicKey[]> keysById = new HashMap<>();
+
+            for (int i=0; i<ecPublicKeys.length; i++) {
+                try {
+                    keysById.put(JwsHelper.computeKeyId(ecPublicKeys[i]), new ECPublicKey[] {ecPublicKeys[i]});
+                } catch (JOSEException e) {
+                    throw new IOException("cannot compute key id for public key", e);
+                }
+            }
+            this.ecPublicKeysById = keysById;
+        } else {
+            this.ecPublicKeysById = null;
+        }
         this.ecPublicKeys = ecPublicKeys;
     }
 
+    /**
+     * Returns the public keys a signed message may have been signed with. A message carrying a key id
+     * can only match the key with that id, so at most one key is returned for it. All keys are returned
+     * for messages from publishers that do not send a key id.
+     * @param keyId the "kid" header of the message or null if it has none
+     * @return the keys to check the signature against
+     */
+    public ECPublicKey[] getCandidatePublicKeys(String keyId) {
+        if (keyId == null)
+            return ecPublicKeys;
+
+        ECPublicKey[] keys = ecPublicKeysById.get(keyId);
+        return keys != null ? keys : NO_PUBLIC_KEYS;
+    }
+
+    /**
+     * Returns the public keys a signed message may have been signed with, none if the message is signed with
+     * an algorithm this subscription does not accept
+     * @param signedMessage the message
+     * @return the keys to check the signature against
+     */
+    public ECPublicKey[] getCandidatePublicKeys(SignedMessage signedMessage) {
+        if (!allowedAlgorithms.contains(signedMessage.getAlgorithm()))
+            return NO_PUBLIC_KEYS;
+
+        return getCandidatePublicKeys(signedMessage.getKeyId());
+    }
+
+    public Set<JWSAlgorithm> getAllowedAlgorithms() {
+        return allowedAlgorithms;
+    }
+
+    /**
+     * Sets the signature algorithms accepted on this subscription, JwsHelper.SIGNATURE_ALGORITHMS by default.
+     * Must be called before the subscription is added.
+     * @param allowedAlgorithms the accepted algorithms
+     */
+    public void setAllowedAlgorithms(Set<JWSAlgorithm> allowedAlgorithms) {
+        this.allowedAlgorithms = allowedAlgorithms;
+    }
+
     public String getTopic() {
         return topic;
     }
@@ -59,4 +170,37 @@ public class Subscription {
     public String[] getDecryptPrivateKey() {
         return decryptPrivateKey;
     }
+
+    public GroupKeyRing getGroupKeys() {
+        return groupKeys;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    public ECDHDecrypter[] getDecrypters() {
+        return decrypters;
+    }
+
+    /**
+     * Returns the decrypters to try on an encrypted message, at most one if the message carries a key id
+     * @param keyId the "kid" header of the message or null if it has none
+     * @return the decrypters to try
+     */
+    public ECDHDecrypter[] getCandidateDecrypters(String keyId) {
+        if (keyId == null)
+            return decrypters;
+
+        ECDHDecrypter[] candidates = decryptersById.get(keyId);
+        return candidates != null ? candidates : NO_DECRYPTERS;
+    }
+
+    /**
+     * Returns the key ids of the public keys matching the private keys of this subscription
+     * @return the key ids, empty if the subscription does not decrypt messages
+     */
+    public Set<String> getDecrypterKeyIds() {
+        return decryptersById != null ? decryptersById.keySet() : Collections.<String>emptySet();
+    }
 }
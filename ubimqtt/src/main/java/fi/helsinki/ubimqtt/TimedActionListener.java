@@ -0,0 +1,36 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+/**
+ * Records the time from publishing a message until it is acknowledged, and whether it was published, before
+ * passing the result on to the listener of the message
+ */
+public class TimedActionListener implements IUbiActionListener {
+    private final IUbiMetrics metrics;
+    private final String topic;
+    private final IMqttActionListener listener;
+    private final long start = System.nanoTime();
+
+    public TimedActionListener(IUbiMetrics metrics, String topic, IMqttActionListener listener) {
+        this.metrics = metrics;
+        this.topic = topic;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onSuccess(IMqttToken iMqttToken) {
+        metrics.recordTime(UbiTimer.PUBLISH, System.nanoTime() - start);
+        metrics.messagePublished(topic);
+        if (listener != null)
+            listener.onSuccess(iMqttToken);
+    }
+
+    @Override
+    public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+        metrics.increment(UbiCounter.PUBLISH_FAILURES);
+        if (listener != null)
+            listener.onFailure(iMqttToken, throwable);
+    }
+}
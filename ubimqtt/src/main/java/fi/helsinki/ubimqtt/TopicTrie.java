@@ -0,0 +1,209 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of Mqtt topic filters that finds the filters matching a topic without scanning all of them.
+ *
+ * Filters without wildcards are kept in a hash map and found with a single lookup. Filters containing
+ * '+' or '#' are stored in a trie with one node per topic level, so matching a topic only visits the
+ * branches that can match it. Lookups are lock-free and may run concurrently with modifications.
+ *
+ * @param <V> the type of the value stored for each filter
+ */
+public class TopicTrie<V> {
+
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private static class Node<V> {
+        private final Map<String, Node<V>> children = new ConcurrentHashMap<>();
+        private volatile Node<V> singleLevelChild;
+        private volatile V value;
+        private volatile V multiLevelValue;
+
+        private boolean isEmpty() {
+            return value == null && multiLevelValue == null && singleLevelChild == null && children.isEmpty();
+        }
+    }
+
+    private final Map<String, V> exactFilters = new ConcurrentHashMap<>();
+    private final Node<V> root = new Node<>();
+    private volatile int wildcardFilterCount = 0;
+
+    private static boolean hasWildcards(String filter) {
+        return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+    }
+
+    /**
+     * Returns the value stored for exactly the given filter
+     * @param filter the topic filter
+     * @return the value or null if the filter is not in the index
+     */
+    public V get(String filter) {
+        if (!hasWildcards(filter))
+            return exactFilters.get(filter);
+
+        Node<V> node = root;
+        String[] levels = filter.split("/", -1);
+
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+
+            if (MULTI_LEVEL_WILDCARD.equals(level))
+                return node.multiLevelValue;
+
+            node = SINGLE_LEVEL_WILDCARD.equals(level) ? node.singleLevelChild : node.children.get(level);
+            if (node == null)
+                return null;
+        }
+        return node.value;
+    }
+
+    /**
+     * Stores a value for a topic filter, replacing any earlier value for the same filter
+     * @param filter the topic filter
+     * @param value the value to store
+     */
+    public synchronized void put(String filter, V value) {
+        if (!hasWildcards(filter)) {
+            exactFilters.put(filter, value);
+            return;
+        }
+
+        Node<V> node = root;
+        String[] levels = filter.split("/", -1);
+
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+
+            if (MULTI_LEVEL_WILDCARD.equals(level)) {
+                if (node.multiLevelValue == null)
+                    wildcardFilterCount++;
+                node.multiLevelValue = value;
+                return;
+            }
+
+            if (SINGLE_LEVEL_WILDCARD.equals(level)) {
+                if (node.singleLevelChild == null)
+                    node.singleLevelChild = new Node<>();
+                node = node.singleLevelChild;
+            } else {
+                Node<V> child = node.children.get(level);
+                if (child == null) {
+                    child = new Node<>();
+                    node.children.put(level, child);
+                }
+                node = child;
+            }
+        }
+        if (node.value == null)
+            wildcardFilterCount++;
+        node.value = value;
+    }
+
+    /**
+     * Removes a topic filter from the index
+     * @param filter the topic filter
+     * @return the value that was stored for the filter or null if there was none
+     */
+    public synchronized V remove(String filter) {
+        if (!hasWildcards(filter))
+            return exactFilters.remove(filter);
+
+        V removed = remove(root, filter.split("/", -1), 0);
+        if (removed != null)
+            wildcardFilterCount--;
+        return removed;
+    }
+
+    private V remove(Node<V> node, String[] levels, int index) {
+        String level = levels[index];
+        V removed;
+
+        if (MULTI_LEVEL_WILDCARD.equals(level)) {
+            removed = node.multiLevelValue;
+            node.multiLevelValue = null;
+            return removed;
+        }
+
+        Node<V> child = SINGLE_LEVEL_WILDCARD.equals(level) ? node.singleLevelChild : node.children.get(level);
+        if (child == null)
+            return null;
+
+        if (index == levels.length - 1) {
+            removed = child.value;
+            child.value = null;
+        } else {
+            removed = remove(child, levels, index + 1);
+        }
+
+        // Prune branches that no longer lead to any filter
+        if (child.isEmpty()) {
+            if (SINGLE_LEVEL_WILDCARD.equals(level))
+                node.singleLevelChild = null;
+            else
+                node.children.remove(level);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of filters in the index
+     * @return the number of filters
+     */
+    public synchronized int size() {
+        return exactFilters.size() + wildcardFilterCount;
+    }
+
+    /**
+     * Collects the values of all filters matching a topic into a list supplied by the caller, so that
+     * the caller can reuse the same list for every lookup. Each matching filter contributes one value.
+     * @param topic the topic name of an incoming message, must not contain wildcards
+     * @param result the list to append the matching values to
+     */
+    public void match(String topic, List<V> result) {
+        V exact = exactFilters.get(topic);
+        if (exact != null)
+            result.add(exact);
+
+        if (wildcardFilterCount > 0)
+            match(root, topic, 0, result);
+    }
+
+    private void match(Node<V> node, String topic, int start, List<V> result) {
+        // "a/#" matches "a" as well as everything below it
+        V multiLevelValue = node.multiLevelValue;
+        if (multiLevelValue != null)
+            result.add(multiLevelValue);
+
+        int end = topic.indexOf('/', start);
+        boolean lastLevel = end < 0;
+        if (lastLevel)
+            end = topic.length();
+
+        Node<V> child = node.children.get(topic.substring(start, end));
+        if (child != null)
+            matchChild(child, topic, end, lastLevel, result);
+
+        child = node.singleLevelChild;
+        if (child != null)
+            matchChild(child, topic, end, lastLevel, result);
+    }
+
+    private void matchChild(Node<V> child, String topic, int end, boolean lastLevel, List<V> result) {
+        if (lastLevel) {
+            V value = child.value;
+            if (value != null)
+                result.add(value);
+
+            V multiLevelValue = child.multiLevelValue;
+            if (multiLevelValue != null)
+                result.add(multiLevelValue);
+        } else {
+            match(child, topic, end + 1, result);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fi.helsinki.ubimqtt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message to publish as part of a batch with UbiMqtt.publishBatch
+ */
+public class UbiBatchMessage {
+    private final String topic;
+    private final String text;
+    private final byte[] payload;
+
+    /**
+     * Constructs a text message
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     */
+    public UbiBatchMessage(String topic, String message) {
+        this.topic = topic;
+        this.text = message;
+        this.payload = null;
+    }
+
+    /**
+     * Constructs a binary message
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish, the array is passed to the Mqtt client without copying and must not be modified afterwards
+     */
+    public UbiBatchMessage(String topic, byte[] payload) {
+        this.topic = topic;
+        this.text = null;
+        this.payload = payload;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the message as text, binary messages are decoded as UTF-8
+     * @return the message
+     */
+    public String getText() {
+        return text != null ? text : new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the message as bytes, text messages are encoded as UTF-8
+     * @return the message
+     */
+    public byte[] getPayload() {
+        return payload != null ? payload : text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,55 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * The outcome of publishing a batch of messages, with a result for each message in the order
+ * the messages were given
+ */
+public class UbiBatchResult {
+    private final Throwable[] errors;
+    private final int failureCount;
+
+    UbiBatchResult(Throwable[] errors) {
+        this.errors = errors;
+
+        int failures = 0;
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null)
+                failures++;
+        }
+        this.failureCount = failures;
+    }
+
+    public int getMessageCount() {
+        return errors.length;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Checks whether all messages of the batch were published
+     * @return true if no message failed
+     */
+    public boolean isSuccess() {
+        return failureCount == 0;
+    }
+
+    /**
+     * Checks whether a message was published
+     * @param index the index of the message in the batch
+     * @return true if the message was published
+     */
+    public boolean isSuccess(int index) {
+        return errors[index] == null;
+    }
+
+    /**
+     * Returns why a message could not be signed, encrypted or published
+     * @param index the index of the message in the batch
+     * @return the error or null if the message was published
+     */
+    public Throwable getError(int index) {
+        return errors[index];
+    }
+}
@@ -0,0 +1,27 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * The events counted in the metrics
+ */
+public enum UbiCounter {
+    /**
+     * Messages the Mqtt client or server failed to publish
+     */
+    PUBLISH_FAILURES,
+
+    /**
+     * Received messages on signed subscriptions that were malformed or not signed by any of the keys of the
+     * subscription, counted once for each subscription the message was for
+     */
+    SIGNATURE_FAILURES,
+
+    /**
+     * Correctly signed messages rejected as too old or as replays of earlier messages
+     */
+    REPLAY_REJECTIONS,
+
+    /**
+     * Received messages on encrypted subscriptions that were malformed or could not be decrypted
+     */
+    DECRYPT_FAILURES
+}
@@ -0,0 +1,221 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.DirectDecrypter;
+import com.nimbusds.jose.crypto.DirectEncrypter;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import com.nimbusds.jose.util.Base64URL;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * A symmetric key shared by the members of a group for encrypting messages on their topics.
+ *
+ * Encrypting with a group key is AES-GCM only, without the EC key agreement that encrypting for a public key
+ * does for every message. The key is given to the members with UbiMqtt.publishGroupKey, encrypted for the public
+ * key of each member and signed by the distributor of the keys. Keys are versioned: rotate returns the next version, and members keep a few earlier
+ * versions so messages encrypted just before a rotation can still be decrypted.
+ *
+ * The key is also used for authenticating messages with HS256, see UbiMqtt.publishAuthenticated. The HMAC key is
+ * derived from the group key, so the same key material is never used with two algorithms.
+ * Instances are immutable and can be shared between threads.
+ */
+public class UbiGroupKey {
+    public static final int KEY_LENGTH_BYTES = 32;
+
+    private static final String AUTHENTICATION_KEY_LABEL = "ubimqtt authentication";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String group;
+    private final int version;
+    private final SecretKey key;
+    private final String keyId;
+    private final JWEHeader header;
+    private final DirectEncrypter encrypter;
+    private final DirectDecrypter decrypter;
+    private final MACSigner macSigner;
+    private final MACVerifier macVerifier;
+
+    /**
+     * Constructs a group key from existing key material
+     * @param group the name of the group
+     * @param version the version of the key
+     * @param key the 256-bit AES key
+     * @throws JOSEException if the key is not a 256-bit key
+     */
+    public UbiGroupKey(String group, int version, byte[] key) throws JOSEException {
+        if (key.length != KEY_LENGTH_BYTES)
+            throw new JOSEException("group keys must be " + KEY_LENGTH_BYTES + " bytes long");
+
+        this.group = group;
+        this.version = version;
+        this.key = new SecretKeySpec(key, "AES");
+        this.keyId = group + "/" + version;
+        this.header = new JWEHeader.Builder(JWEAlgorithm.DIR, EncryptionMethod.A256GCM).keyID(keyId).build();
+        this.encrypter = new DirectEncrypter(this.key);
+        this.decrypter = new DirectDecrypter(this.key);
+
+        SecretKey authenticationKey = deriveAuthenticationKey(key);
+        this.macSigner = new MACSigner(authenticationKey);
+        this.macVerifier = new MACVerifier(authenticationKey);
+    }
+
+    private static SecretKey deriveAuthenticationKey(byte[] key) throws JOSEException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return new SecretKeySpec(mac.doFinal(AUTHENTICATION_KEY_LABEL.getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new JOSEException("cannot derive authentication key", e);
+        }
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[KEY_LENGTH_BYTES];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Generates the first version of a random key for a group
+     * @param group the name of the group
+     * @return the new key
+     * @throws JOSEException if AES-GCM is not available
+     */
+    public static UbiGroupKey generate(String group) throws JOSEException {
+        return new UbiGroupKey(group, 1, randomKey());
+    }
+
+    /**
+     * Generates the next version of the key with new random key material
+     * @return the new key
+     * @throws JOSEException if AES-GCM is not available
+     */
+    public UbiGroupKey rotate() throws JOSEException {
+        return new UbiGroupKey(group, version + 1, randomKey());
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Checks whether another key has the same key material, in constant time
+     * @param other the other key
+     * @return true if both keys have the same key material
+     */
+    public boolean hasSameKey(UbiGroupKey other) {
+        return MessageDigest.isEqual(key.getEncoded(), other.key.getEncoded());
+    }
+
+    /**
+     * Returns the key id carried in the messages encrypted with this key
+     * @return the group name and the version separated by a slash
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Encrypts a message with AES-GCM as a compact JWE with the "dir" algorithm
+     * @param payload the message to encrypt
+     * @return the encrypted message
+     * @throws JOSEException if encrypting fails
+     */
+    public String encrypt(byte[] payload) throws JOSEException {
+        JWEObject jwe = new JWEObject(header, new Payload(payload));
+        jwe.encrypt(encrypter);
+        return jwe.serialize();
+    }
+
+    /**
+     * Decrypts a message encrypted with this key
+     * @param jwe the parsed encrypted message
+     * @return the decrypted payload
+     * @throws JOSEException if the message was not encrypted with this key or has been modified
+     */
+    public Payload decrypt(JWEObject jwe) throws JOSEException {
+        jwe.decrypt(decrypter);
+        return jwe.getPayload();
+    }
+
+    /**
+     * Authenticates a message with HS256, stamping the same timestamp and message id headers as signed messages
+     * @param message the message to authenticate
+     * @return the authenticated message in the compact serialization
+     * @throws JOSEException if computing the HMAC fails
+     */
+    public String authenticate(String message) throws JOSEException {
+        return JwsHelper.signMessageToCompact(message, JWSAlgorithm.HS256, keyId, macSigner);
+    }
+
+    /**
+     * Checks whether a message was authenticated with this key
+     * @param signedMessage the parsed message
+     * @return true if the message carries a valid HS256 HMAC of this key
+     * @throws JOSEException if the HMAC cannot be checked
+     * @throws java.text.ParseException if the message is malformed
+     */
+    public boolean isAuthentic(SignedMessage signedMessage) throws JOSEException, java.text.ParseException {
+        if (!JWSAlgorithm.HS256.equals(signedMessage.getAlgorithm()))
+            return false;
+        return JWSObject.parse(signedMessage.getCompact()).verify(macVerifier);
+    }
+
+    /**
+     * Serializes the key for distributing it to the members, the result must only be sent encrypted
+     * @return the key as JSON
+     */
+    @SuppressWarnings("unchecked")
+    public String toJson() {
+        JSONObject json = new JSONObject();
+        json.put("group", group);
+        json.put("version", version);
+        json.put("k", Base64URL.encode(key.getEncoded()).toString());
+        return json.toJSONString();
+    }
+
+    /**
+     * Parses a key serialized with toJson
+     * @param json the key as JSON
+     * @return the key
+     * @throws ParseException if the JSON is not a serialized group key
+     * @throws JOSEException if the key material is not a 256-bit key
+     */
+    public static UbiGroupKey fromJson(String json) throws ParseException, JOSEException {
+        Object parsed = new JSONParser().parse(json);
+        if (!(parsed instanceof JSONObject))
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+
+        JSONObject object = (JSONObject) parsed;
+        Object group = object.get("group");
+        Object version = object.get("version");
+        Object key = object.get("k");
+        if (!(group instanceof String) || !(version instanceof Number) || !(key instanceof String))
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+
+        return new UbiGroupKey((String) group, ((Number) version).intValue(), new Base64URL((String) key).decode());
+    }
+}
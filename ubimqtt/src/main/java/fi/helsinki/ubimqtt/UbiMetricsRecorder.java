@@ -0,0 +1,134 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the measurements of one or more UbiMqtt instances in memory, readable as snapshots.
+ *
+ * Counters are LongAdders and durations go to lock-free histograms, so recording does not make the
+ * publishing and delivery threads wait for each other. Message counts are kept per topic for up to
+ * maxTopics topics, messages on further topics are counted under OTHER_TOPICS.
+ */
+public class UbiMetricsRecorder implements IUbiMetrics {
+    public static final int DEFAULT_MAX_TOPICS = 1000;
+
+    // Not a valid topic name, so it cannot clash with a real topic
+    public static final String OTHER_TOPICS = "#";
+
+    private final int maxTopics;
+
+    private final LongAdder[] counters = new LongAdder[UbiCounter.values().length];
+    private final LatencyHistogram[] timers = new LatencyHistogram[UbiTimer.values().length];
+    private final ConcurrentHashMap<String, LongAdder> published = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> received = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<LongSupplier>> gauges = new ConcurrentHashMap<>();
+
+    public UbiMetricsRecorder() {
+        this(DEFAULT_MAX_TOPICS);
+    }
+
+    /**
+     * Constructs a recorder
+     * @param maxTopics the maximum number of topics message counts are kept for separately
+     */
+    public UbiMetricsRecorder(int maxTopics) {
+        this.maxTopics = maxTopics;
+
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+        for (int i = 0; i < timers.length; i++)
+            timers[i] = new LatencyHistogram();
+    }
+
+    @Override
+    public void recordTime(UbiTimer timer, long nanos) {
+        timers[timer.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void increment(UbiCounter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    private void countTopic(ConcurrentHashMap<String, LongAdder> counts, String topic) {
+        LongAdder count = counts.get(topic);
+        if (count == null) {
+            if (counts.size() >= maxTopics)
+                topic = OTHER_TOPICS;
+            count = counts.computeIfAbsent(topic, new Function<String, LongAdder>() {
+                @Override
+                public LongAdder apply(String key) {
+                    return new LongAdder();
+                }
+            });
+        }
+        count.increment();
+    }
+
+    @Override
+    public void messagePublished(String topic) {
+        countTopic(published, topic);
+    }
+
+    @Override
+    public void messageReceived(String topic) {
+        countTopic(received, topic);
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier gauge) {
+        List<LongSupplier> suppliers = gauges.get(name);
+        if (suppliers == null) {
+            suppliers = new CopyOnWriteArrayList<>();
+            List<LongSupplier> existing = gauges.putIfAbsent(name, suppliers);
+            if (existing != null)
+                suppliers = existing;
+        }
+        suppliers.add(gauge);
+    }
+
+    @Override
+    public void unregisterGauge(String name, LongSupplier gauge) {
+        List<LongSupplier> suppliers = gauges.get(name);
+        if (suppliers != null)
+            suppliers.remove(gauge);
+    }
+
+    private static Map<String, Long> sums(ConcurrentHashMap<String, LongAdder> counts) {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet())
+            result.put(entry.getKey(), entry.getValue().sum());
+        return result;
+    }
+
+    /**
+     * Reads all the metrics. Gauges registered under the same name by several instances are summed.
+     * @return the current values
+     */
+    public UbiMetricsSnapshot snapshot() {
+        long[] counterValues = new long[counters.length];
+        for (int i = 0; i < counters.length; i++)
+            counterValues[i] = counters[i].sum();
+
+        LatencyHistogram.Snapshot[] timerValues = new LatencyHistogram.Snapshot[timers.length];
+        for (int i = 0; i < timers.length; i++)
+            timerValues[i] = timers[i].snapshot();
+
+        Map<String, Long> gaugeValues = new HashMap<>();
+        for (Map.Entry<String, List<LongSupplier>> entry : gauges.entrySet()) {
+            long total = 0;
+            for (LongSupplier gauge : entry.getValue())
+                total += gauge.getAsLong();
+            gaugeValues.put(entry.getKey(), total);
+        }
+
+        return new UbiMetricsSnapshot(System.nanoTime(), counterValues, timerValues, gaugeValues, sums(published), sums(received));
+    }
+}
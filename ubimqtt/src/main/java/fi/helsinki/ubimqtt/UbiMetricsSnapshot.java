@@ -0,0 +1,129 @@
+package fi.helsinki.ubimqtt;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The metrics of a UbiMetricsRecorder at one point in time. Counts are totals since the recorder was
+ * created, rates are computed between two snapshots.
+ */
+public class UbiMetricsSnapshot {
+    private final long timestampNanos;
+    private final long[] counters;
+    private final LatencyHistogram.Snapshot[] timers;
+    private final Map<String, Long> gauges;
+    private final Map<String, Long> published;
+    private final Map<String, Long> received;
+
+    UbiMetricsSnapshot(long timestampNanos, long[] counters, LatencyHistogram.Snapshot[] timers, Map<String, Long> gauges, Map<String, Long> published, Map<String, Long> received) {
+        this.timestampNanos = timestampNanos;
+        this.counters = counters;
+        this.timers = timers;
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.published = Collections.unmodifiableMap(published);
+        this.received = Collections.unmodifiableMap(received);
+    }
+
+    /**
+     * Returns when the snapshot was taken
+     * @return the System.nanoTime() of the snapshot
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public long getCount(UbiCounter counter) {
+        return counters[counter.ordinal()];
+    }
+
+    public LatencyHistogram.Snapshot getTimer(UbiTimer timer) {
+        return timers[timer.ordinal()];
+    }
+
+    /**
+     * Returns the value of a gauge
+     * @param name the name of the gauge
+     * @return the value, or 0 if no gauge with the name is registered
+     */
+    public long getGauge(String name) {
+        Long value = gauges.get(name);
+        return value != null ? value : 0;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    /**
+     * Returns the number of messages published on each topic
+     * @return the counts by topic, with the topics over the limit of the recorder under UbiMetricsRecorder.OTHER_TOPICS
+     */
+    public Map<String, Long> getPublishedCounts() {
+        return published;
+    }
+
+    /**
+     * Returns the number of messages received on each topic
+     * @return the counts by topic, with the topics over the limit of the recorder under UbiMetricsRecorder.OTHER_TOPICS
+     */
+    public Map<String, Long> getReceivedCounts() {
+        return received;
+    }
+
+    private static long total(Map<String, Long> counts) {
+        long total = 0;
+        for (Long count : counts.values())
+            total += count;
+        return total;
+    }
+
+    public long getPublishedCount() {
+        return total(published);
+    }
+
+    public long getReceivedCount() {
+        return total(received);
+    }
+
+    private double rate(Map<String, Long> counts, Map<String, Long> earlierCounts, String topic, UbiMetricsSnapshot earlier) {
+        Long count = counts.get(topic);
+        Long earlierCount = earlierCounts.get(topic);
+        long elapsed = timestampNanos - earlier.timestampNanos;
+        if (elapsed <= 0)
+            return 0;
+        return ((count != null ? count : 0) - (earlierCount != null ? earlierCount : 0)) * 1e9 / elapsed;
+    }
+
+    /**
+     * Computes the rate of messages published on a topic since an earlier snapshot
+     * @param topic the topic
+     * @param earlier a snapshot taken earlier from the same recorder
+     * @return the messages per second
+     */
+    public double getPublishedRate(String topic, UbiMetricsSnapshot earlier) {
+        return rate(published, earlier.published, topic, earlier);
+    }
+
+    /**
+     * Computes the rate of messages received on a topic since an earlier snapshot
+     * @param topic the topic
+     * @param earlier a snapshot taken earlier from the same recorder
+     * @return the messages per second
+     */
+    public double getReceivedRate(String topic, UbiMetricsSnapshot earlier) {
+        return rate(received, earlier.received, topic, earlier);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("published=").append(getPublishedCount()).append(" received=").append(getReceivedCount());
+        for (UbiCounter counter : UbiCounter.values())
+            builder.append(' ').append(counter.name().toLowerCase()).append('=').append(getCount(counter));
+        for (Map.Entry<String, Long> gauge : gauges.entrySet())
+            builder.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue());
+        for (UbiTimer timer : UbiTimer.values())
+            builder.append('\n').append(timer.name().toLowerCase()).append(": ").append(getTimer(timer));
+        return builder.toString();
+    }
+}
@@ -1,31 +1,45 @@
 package fi.helsinki.ubimqtt;
 
 import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.ECDHDecrypter;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.json.simple.parser.ParseException;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
 
 public class UbiMqtt implements MqttCallbackExtended {
 
@@ -33,6 +47,12 @@ public class UbiMqtt implements MqttCallbackExtended {
 
     public static final String PUBLISHERS_PREFIX = "publishers/";
 
+    public static final String GROUP_KEYS_PREFIX = "groupkeys/";
+
+    public static final int DEFAULT_BATCH_WINDOW = 10;
+
+    public static final int DEFAULT_MAX_INFLIGHT = MqttConnectOptions.MAX_INFLIGHT_DEFAULT;
+
     private String clientId = null;
     private String serverAddress = null;
 
@@ -42,53 +62,103 @@ public class UbiMqtt implements MqttCallbackExtended {
     int listenerCounter = 0;
 
     private Map<String, Map<String, Subscription>> subscriptions;
-    private Vector<PublicKeyChangeListener> publicKeyChangeListeners;
+    private TopicTrie<Map<String, Subscription>> subscriptionIndex;
+    private Map<String, String> listenerFilters = new HashMap<>();
+    private Map<String, FilterState> filterStates = new HashMap<>();
+    private Map<String, GroupKeyListener> groupKeyListeners = new HashMap<>();
+
+    private volatile OrderedDispatcher dispatcher = null;
+    private ExecutorService ownedDispatchExecutor = null;
+    private volatile DispatchOrdering dispatchOrdering = DispatchOrdering.PER_TOPIC;
+    private volatile SignatureVerificationStage verificationStage = null;
+    private ExecutorService ownedVerificationExecutor = null;
+    private volatile SignatureFormat signatureFormat = SignatureFormat.JSON;
+    private volatile int batchWindow = DEFAULT_BATCH_WINDOW;
+    private ExecutorService batchExecutor = null;
+    private long merkleWindowMillis = MerkleBatchSigner.DEFAULT_WINDOW_MILLIS;
+    private int merkleMaxBatchSize = MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE;
+    private MerkleBatchSigner merkleBatchSigner = null;
+    private final InflightWindow inflightWindow = new InflightWindow(DEFAULT_MAX_INFLIGHT);
+    private volatile BackpressurePolicy backpressurePolicy = BackpressurePolicy.QUEUE;
+    private volatile OutboundJournal outboundJournal = null;
+    private MqttClientPersistence persistence = null;
+    private boolean cleanSession = true;
+    private volatile IUbiMetrics metrics = null;
+    private Map<String, LongSupplier> gauges = null;
+
+    // Chains of journal deliveries running, and a generation that ends the chains of earlier connections
+    private final Object journalLock = new Object();
+    private int journalDrainers = 0;
+    private int journalGeneration = 0;
+    private boolean journalConnected = false;
+    private Map<String, PublicKeyChangeListener> publicKeyChangeListeners;
 
 
     // MqttCallbackExtended implementation
 
     @Override
     public void connectComplete(boolean b, String s) {
-        Logger.log("connectComplete(), will try to re-subscribe to topics");
-        Logger.log( s);
-
-        Iterator<Map.Entry<String, Map<String, Subscription>>> iterator = subscriptions.entrySet().iterator();
-
-        while (iterator.hasNext()) {
-            Map.Entry<String, Map<String, Subscription>> next = iterator.next();
-
-            Iterator<Map.Entry<String, Subscription>> innerIter = next.getValue().entrySet().iterator();
-            while (innerIter.hasNext()) {
-                Subscription sub = innerIter.next().getValue();
-
-                try {
-                    this.client.subscribe(sub.getTopic(), 1, null, new IUbiActionListener() {
-                        @Override
-                        public void onSuccess(IMqttToken iMqttToken) {
-                            Logger.log("re-subscribed to topic successfully: " + sub.getTopic());
-                        }
+        Logger.info((b ? "reconnected to " : "connected to ") + s);
 
-                        @Override
-                        public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
-                            Logger.log("failed to re-subscribe to topic: " + sub.getTopic());
-                        }
-                    }, messageListener);
-                }
-                catch (Exception e) {
-                    Logger.log(e.toString());
-                }
+        // Each filter is subscribed once however many listeners it has, in multi-topic SUBSCRIBE packets
+        List<String> filters;
+        synchronized (subscriptions) {
+            filters = new ArrayList<>(subscriptions.keySet());
+        }
+        if (!filters.isEmpty())
+            new BulkSubscriber(client, filters, 1, BulkSubscriber.DEFAULT_CHUNK_SIZE, BulkSubscriber.DEFAULT_CONCURRENCY).start();
+
+        // Messages handed out before the connection was lost may not have arrived, start over from the oldest
+        OutboundJournal journal = this.outboundJournal;
+        if (journal != null) {
+            synchronized (journalLock) {
+                journalGeneration++;
+                journalDrainers = 0;
+                journalConnected = true;
+                journal.rewind();
             }
+            drainJournal();
         }
     }
 
     @Override
     public void connectionLost(Throwable throwable) {
-        Logger.log("connectionLost()");
+        Logger.info("connection lost: " + throwable);
+
+        synchronized (journalLock) {
+            journalConnected = false;
+        }
     }
 
     @Override
     public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
-        //Logger.log( mqttMessage.toString());
+        IUbiMetrics metrics = this.metrics;
+        if (metrics != null)
+            metrics.messageReceived(topic);
+
+        // All subscriptions are made without per-filter listeners, so Paho calls this exactly once per message
+        // even if the topic matches several overlapping filters
+        OrderedDispatcher dispatcher = this.dispatcher;
+
+        if (dispatcher == null) {
+            deliverAll(new IncomingMessage(topic, mqttMessage, metrics));
+        }
+        else if (dispatchOrdering == DispatchOrdering.PER_TOPIC) {
+            IncomingMessage message = new IncomingMessage(topic, mqttMessage, metrics);
+            dispatcher.dispatch(topic, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliverAll(message);
+                    } catch (Exception e) {
+                        Logger.warn("delivering message on topic " + topic + " failed", e);
+                    }
+                }
+            });
+        }
+        else {
+            dispatchPerSubscription(dispatcher, new IncomingMessage(topic, mqttMessage, metrics));
+        }
     }
 
     @Override
@@ -98,65 +168,255 @@ public class UbiMqtt implements MqttCallbackExtended {
 
     // MqttCallbackExtended implementation ends
 
-    private ArrayList<Map.Entry<String,Subscription>> getSubscriptionsForTopic(String topic) {
-        ArrayList<Map.Entry<String,Subscription> > ret = new ArrayList<Map.Entry<String, Subscription> >();
+    private final ThreadLocal<ArrayList<Map<String, Subscription>>> matchBuffer = new ThreadLocal<ArrayList<Map<String, Subscription>>>() {
+        @Override
+        protected ArrayList<Map<String, Subscription>> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+
+    private void deliverAll(IncomingMessage message) throws Exception {
+        // The match buffer is reused for every message delivered on this thread
+        ArrayList<Map<String, Subscription>> matches = matchBuffer.get();
+        matches.clear();
+        subscriptionIndex.match(message.getTopic(), matches);
 
-        Iterator<Map.Entry<String, Map<String, Subscription>>> iter = subscriptions.entrySet().iterator();
+        try {
+            for (int m = 0; m < matches.size(); m++) {
+                for (Map.Entry<String, Subscription> next : matches.get(m).entrySet()) {
+                    deliver(message, next);
+                }
+            }
+        } finally {
+            matches.clear();
+        }
+    }
 
-        while (iter.hasNext()) {
-            Map.Entry<String, Map<String, Subscription>> entry = iter.next();
+    private void dispatchPerSubscription(OrderedDispatcher dispatcher, IncomingMessage message) {
+        ArrayList<Map<String, Subscription>> matches = matchBuffer.get();
+        matches.clear();
+        subscriptionIndex.match(message.getTopic(), matches);
 
-            if (MqttTopic.isMatched(entry.getKey(), topic)) {
-                Iterator<Map.Entry<String, Subscription>> subscriptionIterator = entry.getValue().entrySet().iterator();
-                while (subscriptionIterator.hasNext()) {
-                    ret.add(subscriptionIterator.next());
+        try {
+            for (int m = 0; m < matches.size(); m++) {
+                for (Map.Entry<String, Subscription> next : matches.get(m).entrySet()) {
+                    dispatcher.dispatch(next.getKey(), new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                deliver(message, next);
+                            } catch (Exception e) {
+                                Logger.warn("delivering message on topic " + message.getTopic() + " failed", e);
+                            }
+                        }
+                    });
                 }
             }
+        } finally {
+            matches.clear();
         }
-        return ret;
     }
 
-    private IMqttMessageListener messageListener = new IMqttMessageListener() {
-        @Override
-        public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
+    private void deliver(IncomingMessage message, Map.Entry<String, Subscription> next) throws Exception {
+        String topic = message.getTopic();
+        MqttMessage mqttMessage = message.getMqttMessage();
 
-            ArrayList<Map.Entry<String, Subscription>> subscriptionsForTopic = getSubscriptionsForTopic(topic);
+        if (next.getValue().getEcPublicKeys() != null) {
+            // This is a topic where signed messages are expected, try if the signature matches some of the public keys
+            SignatureVerificationStage verificationStage = this.verificationStage;
+            if (verificationStage != null) {
+                verificationStage.submit(message, next);
+                return;
+            }
 
-            Iterator<Map.Entry<String, Subscription>> iterator = subscriptionsForTopic.iterator();
+            SignedMessage signedMessage = message.getSignedMessage();
+            if (signedMessage == null)
+                return;
 
-            while (iterator.hasNext()) {
-                Map.Entry<String, Subscription> next = iterator.next();
+            // Messages carrying a key id are checked against that key only, and messages signed with an algorithm
+            // the subscription does not accept against no key. Each key is checked once per message and the
+            // replay check is done once, however many subscriptions match the message.
+            ECPublicKey[] candidateKeys = next.getValue().getCandidatePublicKeys(signedMessage);
 
-                if (next.getValue().getEcPublicKeys() != null) {
-                    // This is a topic where signed messages are expected, try if the signature matches some of the public keys
-                    ECPublicKey[] tempKeys = next.getValue().getEcPublicKeys();
-                    for (int i=0; i< tempKeys.length; i++) {
-                        if (messageValidator.validateMessage(mqttMessage.toString(), tempKeys[i])) {
-                            next.getValue().getListener().messageArrived(topic, mqttMessage, next.getKey());
-                            break;
-                        }
-                    }
+            if (message.isSignedByAny(candidateKeys, messageValidator) && message.isFresh(messageValidator))
+                PayloadListenerAdapter.deliverSigned(next.getValue().getListener(), message, next.getKey());
+        }
+        else {
+            if (next.getValue().getDecrypters() != null) {
+                if (MultiRecipientJwe.isMultiRecipient(message.getText())) {
+                    deliverMultiRecipient(message, next);
+                    return;
                 }
-                else {
-                    if (next.getValue().getDecryptPrivateKey() != null) {
-                        for (String privateKey : next.getValue().getDecryptPrivateKey()) {
-                            try {
-                                String decryptMessage = JwsHelper.decryptMessage(mqttMessage.toString(), privateKey);
-                                mqttMessage.setPayload(decryptMessage.getBytes());
-                                next.getValue().getListener().messageArrived(topic, mqttMessage, next.getKey());
 
-                                break;
-                            } catch(RuntimeException ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-                    } else {
-                        next.getValue().getListener().messageArrived(topic, mqttMessage, next.getKey());
-                    }
+                JWEObject jwe;
+                try {
+                    jwe = JWEObject.parse(message.getText());
+                } catch (java.text.ParseException e) {
+                    Logger.warn("discarding malformed encrypted message on topic " + topic);
+                    IUbiMetrics metrics = this.metrics;
+                    if (metrics != null)
+                        metrics.increment(UbiCounter.DECRYPT_FAILURES);
+                    return;
+                }
+
+                // Messages carrying a key id are decrypted with that key only
+                ECDHDecrypter[] candidateDecrypters = next.getValue().getCandidateDecrypters(jwe.getHeader().getKeyID());
+
+                IUbiMetrics metrics = this.metrics;
+                long start = metrics != null ? System.nanoTime() : 0;
+                Payload payload = JwsHelper.decryptMessage(jwe, candidateDecrypters);
+                if (metrics != null) {
+                    metrics.recordTime(UbiTimer.DECRYPT, System.nanoTime() - start);
+                    if (payload == null)
+                        metrics.increment(UbiCounter.DECRYPT_FAILURES);
+                }
+                if (payload == null) {
+                    Logger.warn("none of the keys could decrypt message on topic " + topic);
+                    return;
                 }
+
+                // Other subscriptions may be handling the same message in parallel, so deliver a copy
+                MqttMessage decryptedMessage = new MqttMessage(payload.toBytes());
+                decryptedMessage.setQos(mqttMessage.getQos());
+                decryptedMessage.setRetained(mqttMessage.isRetained());
+                next.getValue().getListener().messageArrived(topic, decryptedMessage, next.getKey());
+            } else if (next.getValue().isAuthenticated()) {
+                deliverAuthenticated(message, next);
+            } else if (next.getValue().getGroupKeys() != null) {
+                deliverGroupEncrypted(message, next);
+            } else {
+                next.getValue().getListener().messageArrived(topic, mqttMessage, next.getKey());
             }
         }
-    };
+    }
+
+    private void deliverMultiRecipient(IncomingMessage message, Map.Entry<String, Subscription> next) throws Exception {
+        String topic = message.getTopic();
+        IUbiMetrics metrics = this.metrics;
+
+        MultiRecipientJwe jwe;
+        try {
+            jwe = MultiRecipientJwe.parse(message.getText());
+        } catch (java.text.ParseException | RuntimeException e) {
+            // Nothing thrown from here may reach the Mqtt client, which would drop the connection
+            Logger.warn("discarding malformed encrypted message on topic " + topic);
+            if (metrics != null)
+                metrics.increment(UbiCounter.DECRYPT_FAILURES);
+            return;
+        }
+
+        // Look up the entry of each of our own keys instead of trying every recipient entry
+        long start = metrics != null ? System.nanoTime() : 0;
+        byte[] payload = null;
+        for (String keyId : next.getValue().getDecrypterKeyIds()) {
+            if (!jwe.hasRecipient(keyId))
+                continue;
+
+            ECDHDecrypter decrypter = next.getValue().getCandidateDecrypters(keyId)[0];
+            try {
+                payload = jwe.decrypt(keyId, (ECPrivateKey) decrypter.getPrivateKey());
+                break;
+            } catch (JOSEException e) {
+                Logger.log(LogLevel.DEBUG, "decrypting message on topic " + topic + " with key " + keyId + " failed", e);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordTime(UbiTimer.DECRYPT, System.nanoTime() - start);
+            if (payload == null)
+                metrics.increment(UbiCounter.DECRYPT_FAILURES);
+        }
+        if (payload == null) {
+            Logger.warn("none of the keys could decrypt message on topic " + topic);
+            return;
+        }
+
+        // Other subscriptions may be handling the same message in parallel, so deliver a copy
+        MqttMessage decryptedMessage = new MqttMessage(payload);
+        decryptedMessage.setQos(message.getMqttMessage().getQos());
+        decryptedMessage.setRetained(message.getMqttMessage().isRetained());
+        next.getValue().getListener().messageArrived(topic, decryptedMessage, next.getKey());
+    }
+
+    private void deliverAuthenticated(IncomingMessage message, Map.Entry<String, Subscription> next) throws Exception {
+        String topic = message.getTopic();
+        IUbiMetrics metrics = this.metrics;
+
+        SignedMessage signedMessage = message.getSignedMessage();
+        if (signedMessage == null) {
+            if (metrics != null)
+                metrics.increment(UbiCounter.SIGNATURE_FAILURES);
+            return;
+        }
+
+        UbiGroupKey groupKey = next.getValue().getGroupKeys().get(signedMessage.getKeyId());
+        if (groupKey == null) {
+            Logger.warn("no group key " + signedMessage.getKeyId() + " for message on topic " + topic);
+            if (metrics != null)
+                metrics.increment(UbiCounter.SIGNATURE_FAILURES);
+            return;
+        }
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean authentic;
+        try {
+            authentic = groupKey.isAuthentic(signedMessage);
+        } catch (Exception e) {
+            Logger.warn("checking authentication of message on topic " + topic + " failed", e);
+            authentic = false;
+        }
+        if (metrics != null) {
+            metrics.recordTime(UbiTimer.VERIFY, System.nanoTime() - start);
+            if (!authentic)
+                metrics.increment(UbiCounter.SIGNATURE_FAILURES);
+        }
+
+        // The replay check is shared with signed messages, the headers are the same
+        if (authentic && message.isFresh(messageValidator))
+            next.getValue().getListener().messageArrived(topic, message.getMqttMessage(), next.getKey());
+    }
+
+    private void deliverGroupEncrypted(IncomingMessage message, Map.Entry<String, Subscription> next) throws Exception {
+        String topic = message.getTopic();
+        IUbiMetrics metrics = this.metrics;
+
+        JWEObject jwe;
+        try {
+            jwe = JWEObject.parse(message.getText());
+        } catch (java.text.ParseException e) {
+            Logger.warn("discarding malformed encrypted message on topic " + topic);
+            if (metrics != null)
+                metrics.increment(UbiCounter.DECRYPT_FAILURES);
+            return;
+        }
+
+        UbiGroupKey groupKey = next.getValue().getGroupKeys().get(jwe.getHeader().getKeyID());
+        if (groupKey == null) {
+            Logger.warn("no group key " + jwe.getHeader().getKeyID() + " for message on topic " + topic);
+            if (metrics != null)
+                metrics.increment(UbiCounter.DECRYPT_FAILURES);
+            return;
+        }
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        Payload payload;
+        try {
+            payload = groupKey.decrypt(jwe);
+        } catch (JOSEException e) {
+            Logger.warn("decrypting message on topic " + topic + " with group key " + groupKey.getKeyId() + " failed");
+            if (metrics != null)
+                metrics.increment(UbiCounter.DECRYPT_FAILURES);
+            return;
+        } finally {
+            if (metrics != null)
+                metrics.recordTime(UbiTimer.DECRYPT, System.nanoTime() - start);
+        }
+
+        // Other subscriptions may be handling the same message in parallel, so deliver a copy
+        MqttMessage decryptedMessage = new MqttMessage(payload.toBytes());
+        decryptedMessage.setQos(message.getMqttMessage().getQos());
+        decryptedMessage.setRetained(message.getMqttMessage().isRetained());
+        next.getValue().getListener().messageArrived(topic, decryptedMessage, next.getKey());
+    }
 
     protected void updatePublicKey(String topic, String listenerId, String publicKey) throws IOException {
         if (subscriptions.containsKey(topic) && subscriptions.get(topic).containsKey(listenerId)) {
@@ -166,42 +426,170 @@ public class UbiMqtt implements MqttCallbackExtended {
         }
     }
 
-    private void addSubscription(IUbiActionListener actionListener, String topic, String[] publicKeys, IUbiMessageListener listener) {
-        try {
-            if (!subscriptions.containsKey(topic))
-                subscriptions.put(topic, Collections.synchronizedMap(new HashMap<>()));
+    /**
+     * Adds a subscription to the local subscription registry without subscribing on the Mqtt server
+     * @param topic the topic filter of the subscription
+     * @param subscription the subscription
+     * @return the listener id of the subscription
+     */
+    synchronized String registerSubscription(String topic, Subscription subscription) {
+        if (!subscriptions.containsKey(topic)) {
+            Map<String, Subscription> topicSubscriptions = new ConcurrentHashMap<>();
+            subscriptions.put(topic, topicSubscriptions);
+            subscriptionIndex.put(topic, topicSubscriptions);
+        }
+
+        String listenerId = listenerCounter + "";
+        listenerCounter++;
 
-            String listenerId = listenerCounter + "";
-            listenerCounter++;
+        subscriptions.get(topic).put(listenerId, subscription);
 
-            subscriptions.get(topic).put(listenerId, new Subscription(topic, listener, publicKeys));
+        return listenerId;
+    }
+
+    // The broker subscription of a filter, shared by all the listeners of the filter
+    private static class FilterState {
+        private boolean subscribed = false;
+        private IMqttToken token = null;
+        private final List<IUbiActionListener> pendingListeners = new ArrayList<>();
+    }
+
+    private String addSubscription(IUbiActionListener actionListener, String topic, String[] publicKeys, IUbiMessageListener listener) {
+        return addSubscription(actionListener, topic, publicKeys, JwsHelper.SIGNATURE_ALGORITHMS, listener);
+    }
 
-            this.client.subscribe(topic, 1, null, actionListener, messageListener);
+    private String addSubscription(IUbiActionListener actionListener, String topic, String[] publicKeys, Set<JWSAlgorithm> allowedAlgorithms, IUbiMessageListener listener) {
+        try {
+            Subscription subscription = new Subscription(topic, listener, publicKeys);
+            subscription.setAllowedAlgorithms(allowedAlgorithms);
+            return addSubscription(actionListener, topic, subscription);
         } catch (Exception e) {
-            e.printStackTrace();
+            Logger.warn("subscribing to topic " + topic + " failed", e);
             actionListener.onFailure(null, e);
+            return null;
         }
     }
 
-    private void addSubscriptionEncrypted(IUbiActionListener actionListener, String topic, String[] publicKeys, String[] decryptPrivateKey, IUbiMessageListener listener) {
+    private String addSubscriptionEncrypted(IUbiActionListener actionListener, String topic, String[] publicKeys, String[] decryptPrivateKey, IUbiMessageListener listener) {
         try {
-            if (!subscriptions.containsKey(topic))
-                subscriptions.put(topic, Collections.synchronizedMap(new HashMap<>()));
+            return addSubscription(actionListener, topic, new Subscription(topic, listener, publicKeys, decryptPrivateKey));
+        } catch (Exception e) {
+            Logger.warn("subscribing to topic " + topic + " failed", e);
+            actionListener.onFailure(null, e);
+            return null;
+        }
+    }
+
+    // Only the first listener of a filter subscribes on the Mqtt server, later listeners share its subscription
+    private String addSubscription(IUbiActionListener actionListener, String topic, Subscription subscription) {
+        String listenerId;
+        FilterState state;
+        boolean subscribe = false;
+        IMqttToken subscribedToken = null;
+
+        synchronized (this) {
+            listenerId = registerSubscription(topic, subscription);
+            listenerFilters.put(listenerId, topic);
+
+            state = filterStates.get(topic);
+            if (state == null) {
+                state = new FilterState();
+                filterStates.put(topic, state);
+                subscribe = true;
+            }
+
+            if (state.subscribed)
+                subscribedToken = state.token;
+            else
+                state.pendingListeners.add(actionListener);
+        }
+
+        if (subscribedToken != null) {
+            actionListener.onSuccess(subscribedToken);
+            return listenerId;
+        }
 
-            String listenerId = listenerCounter + "";
-            listenerCounter++;
+        if (!subscribe)
+            return listenerId;
 
-            subscriptions.get(topic).put(listenerId, new Subscription(topic, listener, publicKeys, decryptPrivateKey));
+        final FilterState filterState = state;
+        try {
+            this.client.subscribe(topic, 1, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken iMqttToken) {
+                    List<IUbiActionListener> listeners;
+                    synchronized (UbiMqtt.this) {
+                        filterState.subscribed = true;
+                        filterState.token = iMqttToken;
+                        listeners = new ArrayList<>(filterState.pendingListeners);
+                        filterState.pendingListeners.clear();
+                    }
+                    for (IUbiActionListener listener : listeners)
+                        listener.onSuccess(iMqttToken);
+                }
 
-            this.client.subscribe(topic, 1, null, actionListener, messageListener);
+                @Override
+                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                    failSubscription(topic, filterState, iMqttToken, throwable);
+                }
+            });
         } catch (Exception e) {
-            e.printStackTrace();
-            actionListener.onFailure(null, e);
+            Logger.warn("subscribing to topic " + topic + " failed", e);
+            failSubscription(topic, filterState, null, e);
+        }
+        return listenerId;
+    }
+
+    // The listeners stay registered and are subscribed again on reconnect, the next listener of the filter retries now
+    private void failSubscription(String topic, FilterState filterState, IMqttToken token, Throwable throwable) {
+        List<IUbiActionListener> listeners;
+        synchronized (this) {
+            if (filterStates.get(topic) == filterState)
+                filterStates.remove(topic);
+            listeners = new ArrayList<>(filterState.pendingListeners);
+            filterState.pendingListeners.clear();
+        }
+        for (IUbiActionListener listener : listeners)
+            listener.onFailure(token, throwable);
+    }
+
+    private String signMessage(String message, UbiSigningKey signingKey, SignatureFormat format) throws JOSEException, ParseException {
+        IUbiMetrics metrics = this.metrics;
+        if (metrics == null)
+            return JwsHelper.signMessage(message, signingKey, format);
+
+        long start = System.nanoTime();
+        try {
+            return JwsHelper.signMessage(message, signingKey, format);
+        } finally {
+            metrics.recordTime(UbiTimer.SIGN, System.nanoTime() - start);
+        }
+    }
+
+    private String encryptMessage(byte[] message, ECPublicKey[] ecPublicKeys) throws JOSEException {
+        IUbiMetrics metrics = this.metrics;
+        if (metrics == null)
+            return MultiRecipientJwe.encrypt(message, ecPublicKeys);
+
+        long start = System.nanoTime();
+        try {
+            return MultiRecipientJwe.encrypt(message, ecPublicKeys);
+        } finally {
+            metrics.recordTime(UbiTimer.ENCRYPT, System.nanoTime() - start);
         }
     }
 
-    private String signMessage(String message, String privateKey) throws IOException, JOSEException, ParseException {
-        return JwsHelper.signMessage(message, privateKey);
+    private String encryptMessage(byte[] message, ECPublicKey ecPublicKey) throws JOSEException {
+        IUbiMetrics metrics = this.metrics;
+        if (metrics == null)
+            return JwsHelper.encryptMessage(message, ecPublicKey);
+
+        long start = System.nanoTime();
+        try {
+            return JwsHelper.encryptMessage(message, ecPublicKey);
+        } finally {
+            metrics.recordTime(UbiTimer.ENCRYPT, System.nanoTime() - start);
+        }
     }
 
 
@@ -214,7 +602,8 @@ public class UbiMqtt implements MqttCallbackExtended {
         this.messageValidator = new MessageValidator(DEFAULT_BUFFER_WINDOW_IN_SECONDS);
 
         this.subscriptions = Collections.synchronizedMap(new HashMap<String, Map<String, Subscription>>());
-        this.publicKeyChangeListeners = new Vector<PublicKeyChangeListener>();
+        this.subscriptionIndex = new TopicTrie<>();
+        this.publicKeyChangeListeners = new HashMap<String, PublicKeyChangeListener>();
 
         if (serverAddress.startsWith("tcp://"))
             this.serverAddress = serverAddress;
@@ -233,7 +622,8 @@ public class UbiMqtt implements MqttCallbackExtended {
         this.messageValidator = new MessageValidator(bufferWindowInSeconds);
 
         this.subscriptions = Collections.synchronizedMap(new HashMap<String, Map<String, Subscription>>());
-        this.publicKeyChangeListeners = new Vector<PublicKeyChangeListener>();
+        this.subscriptionIndex = new TopicTrie<>();
+        this.publicKeyChangeListeners = new HashMap<String, PublicKeyChangeListener>();
 
         if (serverAddress.startsWith("tcp://"))
             this.serverAddress = serverAddress;
@@ -248,11 +638,12 @@ public class UbiMqtt implements MqttCallbackExtended {
      */
     public void connect(IUbiActionListener actionListener) {
         try {
-            this.client = new MqttAsyncClient(serverAddress, clientId, new MemoryPersistence());
+            this.client = new MqttAsyncClient(serverAddress, clientId, persistence != null ? persistence : new MemoryPersistence());
 
             MqttConnectOptions mqttClientOptions = new MqttConnectOptions();
-            mqttClientOptions.setCleanSession(true);
+            mqttClientOptions.setCleanSession(cleanSession);
             mqttClientOptions.setAutomaticReconnect(true);
+            mqttClientOptions.setMaxInflight(inflightWindow.getSize());
 
             this.client.setCallback(this);
             this.client.connect(mqttClientOptions,this, actionListener);
@@ -275,6 +666,251 @@ public class UbiMqtt implements MqttCallbackExtended {
 
     }
 
+    /**
+     * Records metrics of publishing, signing, verifying, encrypting, decrypting and delivering messages.
+     * Without metrics, which is the default, nothing is measured. The gauges of this instance are registered once
+     * with the given metrics and unregistered from the previous ones.
+     * @param metrics the metrics to record to, for example a UbiMetricsRecorder, or null to stop recording
+     */
+    public void setMetrics(IUbiMetrics metrics) {
+        synchronized (this) {
+            IUbiMetrics previous = this.metrics;
+            if (previous == metrics)
+                return;
+
+            // The gauges are created once and moved from the previous metrics, so that they are not registered twice
+            // and the previous metrics do not keep this instance reachable
+            if (gauges == null)
+                gauges = createGauges();
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                if (previous != null)
+                    previous.unregisterGauge(gauge.getKey(), gauge.getValue());
+                if (metrics != null)
+                    metrics.registerGauge(gauge.getKey(), gauge.getValue());
+            }
+
+            if (merkleBatchSigner != null)
+                merkleBatchSigner.setMetrics(metrics);
+            this.metrics = metrics;
+        }
+    }
+
+    private Map<String, LongSupplier> createGauges() {
+        Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+        gauges.put(IUbiMetrics.GAUGE_DISPATCH_QUEUE_DEPTH, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                OrderedDispatcher dispatcher = UbiMqtt.this.dispatcher;
+                return dispatcher != null ? dispatcher.getQueueDepth() : 0;
+            }
+        });
+        gauges.put(IUbiMetrics.GAUGE_VERIFICATION_QUEUE_DEPTH, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                SignatureVerificationStage verificationStage = UbiMqtt.this.verificationStage;
+                return verificationStage != null ? verificationStage.getQueueDepth() : 0;
+            }
+        });
+        gauges.put(IUbiMetrics.GAUGE_PUBLISH_INFLIGHT, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return inflightWindow.getInflight();
+            }
+        });
+        gauges.put(IUbiMetrics.GAUGE_JOURNAL_PENDING, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                OutboundJournal journal = outboundJournal;
+                return journal != null ? journal.getPendingCount() : 0;
+            }
+        });
+        return gauges;
+    }
+
+    /**
+     * Delivers incoming messages to listeners on the given executor instead of the Mqtt client's callback thread.
+     * Signature verification and decryption are done on the executor as well. The executor stays owned by the caller,
+     * messages arriving after it has been shut down are dropped.
+     * @param executor the executor to run message delivery on
+     * @param lanes the maximum number of topics or subscriptions processed in parallel
+     * @param ordering which messages are guaranteed to be delivered in arrival order
+     */
+    public void setDispatchExecutor(ExecutorService executor, int lanes, DispatchOrdering ordering) {
+        replaceDispatcher(executor, lanes, ordering, false);
+    }
+
+    /**
+     * Delivers incoming messages to listeners on a fixed pool of threads owned by this instance
+     * instead of the Mqtt client's callback thread. Calling this again replaces the pool, the previous pool is shut down.
+     * @param threads the number of delivery threads
+     * @param ordering which messages are guaranteed to be delivered in arrival order
+     */
+    public void setDispatchThreads(int threads, DispatchOrdering ordering) {
+        replaceDispatcher(Executors.newFixedThreadPool(threads, new DaemonThreadFactory("ubimqtt-dispatch-")), threads, ordering, true);
+    }
+
+    private void replaceDispatcher(ExecutorService executor, int lanes, DispatchOrdering ordering, boolean owned) {
+        ExecutorService previous;
+        synchronized (this) {
+            previous = ownedDispatchExecutor;
+            ownedDispatchExecutor = owned ? executor : null;
+            this.dispatchOrdering = ordering;
+            this.dispatcher = new OrderedDispatcher(executor, lanes);
+        }
+
+        // Messages already queued on the pool created by setDispatchThreads are still delivered
+        if (previous != null && previous != executor)
+            previous.shutdown();
+    }
+
+    /**
+     * Verifies the signatures of messages on signed subscriptions on the given executor. Messages are verified
+     * in parallel but still delivered to each listener in arrival order. The executor stays owned by the caller,
+     * messages arriving after it has been shut down are dropped.
+     * @param executor the executor to verify signatures on
+     * @param queueBound the maximum number of messages waiting for verification, further messages wait for room
+     */
+    public void setVerificationExecutor(ExecutorService executor, int queueBound) {
+        replaceVerificationStage(executor, queueBound, false);
+    }
+
+    /**
+     * Verifies the signatures of messages on signed subscriptions on a fixed pool of threads owned by this instance.
+     * Calling this again replaces the pool, the previous pool is shut down.
+     * @param parallelism the number of verification threads
+     * @param queueBound the maximum number of messages waiting for verification, further messages wait for room
+     */
+    public void setVerificationParallelism(int parallelism, int queueBound) {
+        replaceVerificationStage(Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("ubimqtt-verify-")), queueBound, true);
+    }
+
+    private void replaceVerificationStage(ExecutorService executor, int queueBound, boolean owned) {
+        ExecutorService previous;
+        synchronized (this) {
+            previous = ownedVerificationExecutor;
+            ownedVerificationExecutor = owned ? executor : null;
+            this.verificationStage = new SignatureVerificationStage(executor, queueBound, messageValidator);
+        }
+
+        // Messages already queued on the pool created by setVerificationParallelism are still verified
+        if (previous != null && previous != executor)
+            previous.shutdown();
+    }
+
+    synchronized ExecutorService getOwnedVerificationExecutor() {
+        return ownedVerificationExecutor;
+    }
+
+    /**
+     * Sets the serialization of messages published with publishSigned. Subscribers accept both formats,
+     * but subscribers using older versions of the library only accept SignatureFormat.JSON.
+     * @param signatureFormat the format to publish signed messages in, SignatureFormat.JSON by default
+     */
+    public void setSignatureFormat(SignatureFormat signatureFormat) {
+        this.signatureFormat = signatureFormat;
+    }
+
+    /**
+     * Sets how messages published with publishSigned are collected into batches with SignatureFormat.MERKLE.
+     * Must be called before the first such message is published.
+     * @param windowMillis how long a batch collects messages, MerkleBatchSigner.DEFAULT_WINDOW_MILLIS by default
+     * @param maxBatchSize the number of messages closing a batch early, MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE by default
+     */
+    public synchronized void setMerkleBatching(long windowMillis, int maxBatchSize) {
+        this.merkleWindowMillis = windowMillis;
+        this.merkleMaxBatchSize = maxBatchSize;
+    }
+
+    private synchronized MerkleBatchSigner getMerkleBatchSigner() {
+        if (merkleBatchSigner == null) {
+            merkleBatchSigner = new MerkleBatchSigner(new MerkleBatchSigner.Publisher() {
+                @Override
+                public void publish(String topic, byte[] payload, int qos, boolean retained, IUbiActionListener actionListener) throws Exception {
+                    publishBytes(topic, payload, qos, retained, actionListener);
+                }
+            }, Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ubimqtt-merkle-")), merkleWindowMillis, merkleMaxBatchSize);
+            merkleBatchSigner.setMetrics(metrics);
+        }
+        return merkleBatchSigner;
+    }
+
+    /**
+     * Sets how many QoS 1 and 2 messages may wait for acknowledgement from the Mqtt server at once. Applies to the
+     * Mqtt client when connecting and to the in-flight window, so it must be called before connect. All QoS 1 and 2
+     * publishes take a slot of the window: publishAsync applies the backpressure policy when none is free, while
+     * publish, the messages of batches and the messages delivered from the journal queue for one.
+     * @param maxInflight the maximum number of unacknowledged messages, DEFAULT_MAX_INFLIGHT by default
+     * @throws IllegalStateException if connect has already been called
+     */
+    public void setMaxInflight(int maxInflight) {
+        // The Mqtt client takes its limit when connecting, a different window after that would let publishes fail
+        if (client != null)
+            throw new IllegalStateException("setMaxInflight must be called before connect");
+        inflightWindow.setSize(maxInflight);
+    }
+
+    /**
+     * Stores messages published while not connected in the given journal instead of failing, and publishes them
+     * when connected. Messages published while the journal still has undelivered messages are stored in it as
+     * well, so that they are published in order. Messages are stored with their signature or encryption, the
+     * listener of such a publish is called when the message has been stored. Batches are not stored.
+     * @param journal the journal to store messages in, or null to fail publishes while not connected
+     */
+    public void setOutboundJournal(OutboundJournal journal) {
+        this.outboundJournal = journal;
+        drainJournal();
+    }
+
+    /**
+     * Sets the persistence the Mqtt client keeps its in-flight messages in, MemoryPersistence by default.
+     * Must be called before connect.
+     * @param persistence the persistence to use, for example a JournalPersistence
+     */
+    public void setPersistence(MqttClientPersistence persistence) {
+        this.persistence = persistence;
+    }
+
+    /**
+     * Sets whether the Mqtt server and client discard the session state when connecting. Must be called before
+     * connect. Paho only resends in-flight messages from its persistence after a reconnect or restart if clean
+     * session is off.
+     * @param cleanSession true to start with a clean session, which is the default
+     */
+    public void setCleanSession(boolean cleanSession) {
+        this.cleanSession = cleanSession;
+    }
+
+    /**
+     * Sets what publishAsync does when the maximum number of messages are already waiting for acknowledgement
+     * @param policy the policy to apply, BackpressurePolicy.QUEUE by default
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        this.backpressurePolicy = policy;
+    }
+
+    /**
+     * Sets how many messages of a batch may wait for acknowledgement from the Mqtt server at once. The messages
+     * also take slots of the in-flight window shared with other publishes, see setMaxInflight.
+     * @param window the maximum number of unacknowledged messages per batch, DEFAULT_BATCH_WINDOW by default
+     */
+    public void setBatchWindow(int window) {
+        this.batchWindow = window;
+    }
+
+    /**
+     * Signs and encrypts the messages of batches on the given executor instead of a pool owned by this instance
+     * @param executor the executor to sign and encrypt messages on
+     */
+    public synchronized void setBatchExecutor(ExecutorService executor) {
+        this.batchExecutor = executor;
+    }
+
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null)
+            batchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("ubimqtt-batch-"));
+        return batchExecutor;
+    }
+
     /**
      * Publishes a message on the connected Mqtt server
      * @param topic the Mqtt topic to publish to
@@ -285,7 +921,7 @@ public class UbiMqtt implements MqttCallbackExtended {
      */
     public void publish(String topic, String message, int qos, boolean retained, IUbiActionListener actionListener) {
         try {
-            this.client.publish(topic, message.getBytes(), qos, retained, null, actionListener);
+            publishBytes(topic, message.getBytes(), qos, retained, actionListener);
         } catch (MqttException e) {
             actionListener.onFailure(null, e);
         }
@@ -303,77 +939,754 @@ public class UbiMqtt implements MqttCallbackExtended {
 
 
     /**
-     * Publishes a signed message on the connected Mqtt server
+     * Publishes a binary message on the connected Mqtt server
      * @param topic the Mqtt topic to publish to
-     * @param message the message to publish
+     * @param payload the message to publish, the array is passed to the Mqtt client without copying and must not be modified afterwards
      * @param qos the Mqtt qos to use
      * @param retained publish the message as a retained Mqtt message if true
-     * @param privateKey the private key in .pem format to sign the message with
      * @param actionListener the callback to call upon success or error
      */
-    public void publishSigned(String topic, String message, int qos, boolean retained, String privateKey, IUbiActionListener actionListener) {
+    public void publish(String topic, byte[] payload, int qos, boolean retained, IUbiActionListener actionListener) {
         try {
-            this.client.publish(topic, this.signMessage(message, privateKey).getBytes(), qos, retained, null, actionListener);
-        } catch (Exception e) {
+            publishBytes(topic, payload, qos, retained, actionListener);
+        } catch (MqttException e) {
             actionListener.onFailure(null, e);
         }
     }
 
     /**
-     * Publishes a signed message on the connected Mqtt server with default qos=1 and retained = false
+     * Publishes a binary message on the connected Mqtt server with default qos=1 and retained = false
      * @param topic the Mqtt topic to publish to
-     * @param message the message to publish
-     * @param privateKey the private key in .pem format to sign the message with
+     * @param payload the message to publish, the array is passed to the Mqtt client without copying and must not be modified afterwards
      * @param actionListener the callback to call upon success or error
      */
-    public void publishSigned(String topic, String message, String privateKey, IUbiActionListener actionListener) {
-        publishSigned(topic, message,  1, false, privateKey,actionListener);
+    public void publish(String topic, byte[] payload, IUbiActionListener actionListener) {
+        publish(topic, payload, 1, false, actionListener);
     }
 
     /**
-     * Publishes a message on the connected Mqtt server.
-     * Encrypting all the messages which are going to be published.
-     *
+     * Publishes the remaining bytes of a buffer as a message on the connected Mqtt server. A heap buffer covering
+     * its whole backing array is published without copying.
      * @param topic the Mqtt topic to publish to
-     * @param message the message to publish
+     * @param payload the message to publish
      * @param qos the Mqtt qos to use
      * @param retained publish the message as a retained Mqtt message if true
-     * @param encryptPublicKey public key for the encryption
      * @param actionListener the callback to call upon success or error
      */
-    public void publishEncrypted(String topic, String message, int qos, boolean retained, String encryptPublicKey, IUbiActionListener actionListener) {
-        try {
-            this.client.publish(topic, this.encryptMessage(message, encryptPublicKey).getBytes(), qos, retained, null, actionListener);
-        } catch (Exception e) {
-            actionListener.onFailure(null, e);
+    public void publish(String topic, ByteBuffer payload, int qos, boolean retained, IUbiActionListener actionListener) {
+        byte[] bytes;
+
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0 && payload.remaining() == payload.array().length) {
+            bytes = payload.array();
+        } else {
+            bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
         }
+        publish(topic, bytes, qos, retained, actionListener);
     }
 
     /**
-     * Publishes a message on the connected Mqtt server with default qos=1 and retained = false.
-     * Encrypting all the messages which are going to be published.
-     *
+     * Publishes the remaining bytes of a buffer as a message on the connected Mqtt server with default qos=1 and retained = false
      * @param topic the Mqtt topic to publish to
-     * @param message the message to publish
-     * @param encryptPublicKey public key for the encryption
+     * @param payload the message to publish
      * @param actionListener the callback to call upon success or error
      */
-    public void publishEncrypted(String topic, String message, String encryptPublicKey, IUbiActionListener actionListener) {
-        publishEncrypted(topic, message, 1,false, encryptPublicKey, actionListener);
+    public void publish(String topic, ByteBuffer payload, IUbiActionListener actionListener) {
+        publish(topic, payload, 1, false, actionListener);
     }
 
-    private String encryptMessage(String message, String publicKey) throws IOException, JOSEException {
-        return JwsHelper.encryptMessage(message, publicKey);
+    private IMqttActionListener timed(String topic, IMqttActionListener actionListener) {
+        IUbiMetrics metrics = this.metrics;
+        return metrics != null ? new TimedActionListener(metrics, topic, actionListener) : actionListener;
     }
 
-    /**
-     * Subscribes to a Mqtt topic on the connected Mqtt server
-     * @param topic the Mqtt topic to subscribe to
-     * @param listener the listener function to call whenever a message matching the topic arrives
-     * @param actionListener the listener to be called upon successful subscription or error
-     */
-    public void subscribe(String topic, IUbiMessageListener listener, IUbiActionListener actionListener) {
-        addSubscription(actionListener, topic, null, listener);
+    private BatchPublisher newBatchPublisher(List<UbiBatchMessage> messages, int qos, boolean retained, IUbiBatchListener batchListener) {
+        BatchPublisher publisher = new BatchPublisher(client, messages, qos, retained, batchWindow, inflightWindow, batchListener);
+        publisher.setMetrics(metrics);
+        return publisher;
+    }
+
+    private boolean isJournaling() {
+        OutboundJournal journal = this.outboundJournal;
+        return journal != null && (client == null || !client.isConnected() || journal.getPendingCount() > 0);
+    }
+
+    private void publishBytes(String topic, byte[] payload, int qos, boolean retained, IUbiActionListener actionListener) throws MqttException {
+        if (!isJournaling()) {
+            // Acknowledged messages take a slot of the in-flight window, queueing for one instead of failing when
+            // publishAsync and batches have taken them all
+            if (qos > 0) {
+                publishWindowed(topic, payload, qos, retained, BackpressurePolicy.QUEUE, true, actionListener);
+                return;
+            }
+
+            try {
+                this.client.publish(topic, payload, qos, retained, null, timed(topic, actionListener));
+                return;
+            } catch (MqttException e) {
+                // The connection may have been lost after checking
+                if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_NOT_CONNECTED || outboundJournal == null)
+                    throw e;
+            }
+        }
+        appendToJournal(topic, payload, qos, retained, actionListener);
+    }
+
+    private void appendToJournal(String topic, byte[] payload, int qos, boolean retained, IUbiActionListener actionListener) {
+        try {
+            outboundJournal.append(topic, payload, qos, retained);
+        } catch (IOException e) {
+            actionListener.onFailure(null, e);
+            return;
+        }
+        actionListener.onSuccess(null);
+        drainJournal();
+    }
+
+    // Starts enough chains of deliveries from the journal to fill the in-flight window
+    private void drainJournal() {
+        OutboundJournal journal = this.outboundJournal;
+        if (journal == null)
+            return;
+
+        int generation;
+        int chains;
+        synchronized (journalLock) {
+            // Delivery starts from connectComplete, which rewinds the journal first
+            if (!journalConnected)
+                return;
+
+            generation = journalGeneration;
+            chains = inflightWindow.getSize() - journalDrainers;
+            if (chains <= 0)
+                return;
+            journalDrainers += chains;
+        }
+
+        for (int i = 0; i < chains; i++)
+            drainNext(journal, generation);
+    }
+
+    // Publishes the next message of the journal, and the next one when it has been acknowledged
+    private void drainNext(OutboundJournal journal, int generation) {
+        synchronized (journalLock) {
+            OutboundJournal.Entry entry = null;
+            if (generation == journalGeneration && journalConnected)
+                entry = journal.next();
+
+            if (entry == null) {
+                if (generation == journalGeneration)
+                    journalDrainers--;
+                return;
+            }
+
+            // Taking the message and queueing for the window under the same lock keeps the journal order
+            final OutboundJournal.Entry published = entry;
+            publishWindowed(entry.getTopic(), entry.getPayload(), entry.getQos(), entry.isRetained(), BackpressurePolicy.QUEUE, false, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken iMqttToken) {
+                    journal.markDelivered(published);
+                    drainNext(journal, generation);
+                }
+
+                @Override
+                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                    // The message stays in the journal and is published again after reconnecting. The chain ends
+                    // here, so that losing the connection does not run through the whole journal.
+                    Logger.warn("publishing journaled message on topic " + published.getTopic() + " failed", throwable);
+                    synchronized (journalLock) {
+                        if (generation == journalGeneration)
+                            journalDrainers--;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Publishes a binary message on the connected Mqtt server, applying the backpressure policy when the maximum
+     * number of messages are already waiting for acknowledgement instead of failing
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish, the array is passed to the Mqtt client without copying and must not be modified afterwards
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @return a future completed with the Mqtt token when the message has been acknowledged, or completed exceptionally on error
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        CompletableFuture<IMqttToken> future = new CompletableFuture<>();
+
+        // QoS 0 messages are not acknowledged, so they do not take a slot. Messages going to the journal complete
+        // when they have been stored.
+        if (qos == 0 || isJournaling())
+            publish(topic, payload, qos, retained, completing(future));
+        else
+            publishWindowed(topic, payload, qos, retained, backpressurePolicy, false, completing(future));
+        return future;
+    }
+
+    private static IUbiActionListener completing(final CompletableFuture<IMqttToken> future) {
+        return new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken iMqttToken) {
+                future.complete(iMqttToken);
+            }
+
+            @Override
+            public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    // Publishes a message once it has been given a slot of the in-flight window. With journalIfDisconnected, a
+    // message that finds the connection lost goes to the journal if there is one, as in publishBytes.
+    private void publishWindowed(String topic, byte[] payload, int qos, boolean retained, BackpressurePolicy policy, final boolean journalIfDisconnected, final IUbiActionListener actionListener) {
+        final InflightWindow window = inflightWindow;
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.publish(topic, payload, qos, retained, null, timed(topic, new IUbiActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken iMqttToken) {
+                            window.release();
+                            if (actionListener != null)
+                                actionListener.onSuccess(iMqttToken);
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                            window.release();
+                            if (actionListener != null)
+                                actionListener.onFailure(iMqttToken, throwable);
+                        }
+                    }));
+                } catch (Exception e) {
+                    window.release();
+                    if (journalIfDisconnected && e instanceof MqttException && ((MqttException) e).getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED && outboundJournal != null)
+                        appendToJournal(topic, payload, qos, retained, actionListener);
+                    else if (actionListener != null)
+                        actionListener.onFailure(null, e);
+                }
+            }
+        };
+
+        switch (policy) {
+            case QUEUE:
+                window.acquire(task);
+                break;
+            case BLOCK:
+                try {
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    actionListener.onFailure(null, e);
+                    return;
+                }
+                task.run();
+                break;
+            case FAIL:
+                if (window.tryAcquire())
+                    task.run();
+                else
+                    actionListener.onFailure(null, new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+                break;
+        }
+    }
+
+    /**
+     * Publishes a binary message on the connected Mqtt server with default qos=1 and retained = false, applying the
+     * backpressure policy when the maximum number of messages are already waiting for acknowledgement
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish, the array is passed to the Mqtt client without copying and must not be modified afterwards
+     * @return a future completed with the Mqtt token when the message has been acknowledged, or completed exceptionally on error
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, byte[] payload) {
+        return publishAsync(topic, payload, 1, false);
+    }
+
+    /**
+     * Publishes a message on the connected Mqtt server, applying the backpressure policy when the maximum
+     * number of messages are already waiting for acknowledgement instead of failing
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @return a future completed with the Mqtt token when the message has been acknowledged, or completed exceptionally on error
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, String message, int qos, boolean retained) {
+        return publishAsync(topic, message.getBytes(), qos, retained);
+    }
+
+    /**
+     * Publishes a message on the connected Mqtt server with default qos=1 and retained = false, applying the
+     * backpressure policy when the maximum number of messages are already waiting for acknowledgement
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @return a future completed with the Mqtt token when the message has been acknowledged, or completed exceptionally on error
+     */
+    public CompletableFuture<IMqttToken> publishAsync(String topic, String message) {
+        return publishAsync(topic, message.getBytes(), 1, false);
+    }
+
+    /**
+     * Publishes a signed message on the connected Mqtt server
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param privateKey the private key in .pem format to sign the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishSigned(String topic, String message, int qos, boolean retained, String privateKey, IUbiActionListener actionListener) {
+        UbiSigningKey signingKey;
+        try {
+            signingKey = new UbiSigningKey(privateKey);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+            return;
+        }
+        publishSigned(topic, message, qos, retained, signingKey, actionListener);
+    }
+
+    /**
+     * Publishes a signed message on the connected Mqtt server with default qos=1 and retained = false
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param privateKey the private key in .pem format to sign the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishSigned(String topic, String message, String privateKey, IUbiActionListener actionListener) {
+        publishSigned(topic, message,  1, false, privateKey,actionListener);
+    }
+
+    /**
+     * Publishes a message signed with a pre-parsed key on the connected Mqtt server. With SignatureFormat.MERKLE
+     * the message is signed and published with the other messages of its batch once the batch window has passed.
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param signingKey the key to sign the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishSigned(String topic, String message, int qos, boolean retained, UbiSigningKey signingKey, IUbiActionListener actionListener) {
+        if (signatureFormat == SignatureFormat.MERKLE) {
+            getMerkleBatchSigner().add(topic, message, qos, retained, signingKey, actionListener);
+            return;
+        }
+
+        try {
+            publishBytes(topic, signMessage(message, signingKey, signatureFormat).getBytes(), qos, retained, actionListener);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Publishes a message signed with a pre-parsed key on the connected Mqtt server with default qos=1 and retained = false
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param signingKey the key to sign the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishSigned(String topic, String message, UbiSigningKey signingKey, IUbiActionListener actionListener) {
+        publishSigned(topic, message, 1, false, signingKey, actionListener);
+    }
+
+    /**
+     * Publishes a message on the connected Mqtt server.
+     * Encrypting all the messages which are going to be published.
+     *
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKey public key for the encryption
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, int qos, boolean retained, String encryptPublicKey, IUbiActionListener actionListener) {
+        try {
+            publishBytes(topic, this.encryptMessage(message, encryptPublicKey).getBytes(), qos, retained, actionListener);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Publishes a message on the connected Mqtt server with default qos=1 and retained = false.
+     * Encrypting all the messages which are going to be published.
+     *
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param encryptPublicKey public key for the encryption
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, String encryptPublicKey, IUbiActionListener actionListener) {
+        publishEncrypted(topic, message, 1,false, encryptPublicKey, actionListener);
+    }
+
+    /**
+     * Publishes an encrypted binary message on the connected Mqtt server.
+     *
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKey public key for the encryption
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishEncrypted(String topic, byte[] payload, int qos, boolean retained, String encryptPublicKey, IUbiActionListener actionListener) {
+        try {
+            publishBytes(topic, encryptMessage(payload, JwsHelper.createEcPublicKey(encryptPublicKey)).getBytes(), qos, retained, actionListener);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Publishes a message encrypted for several recipients on the connected Mqtt server.
+     * The message is encrypted once and only the content key is encrypted separately for each recipient,
+     * see MultiRecipientJwe. Subscribers receive it with subscribeEncrypted using any one of the private keys.
+     *
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKeys public keys of the recipients in .pem format
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, int qos, boolean retained, String[] encryptPublicKeys, IUbiActionListener actionListener) {
+        publishEncrypted(topic, message.getBytes(StandardCharsets.UTF_8), qos, retained, encryptPublicKeys, actionListener);
+    }
+
+    /**
+     * Publishes a message encrypted for several recipients on the connected Mqtt server with default qos=1 and retained = false.
+     *
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param encryptPublicKeys public keys of the recipients in .pem format
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishEncrypted(String topic, String message, String[] encryptPublicKeys, IUbiActionListener actionListener) {
+        publishEncrypted(topic, message, 1, false, encryptPublicKeys, actionListener);
+    }
+
+    /**
+     * Publishes a binary message encrypted for several recipients on the connected Mqtt server.
+     *
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param encryptPublicKeys public keys of the recipients in .pem format
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishEncrypted(String topic, byte[] payload, int qos, boolean retained, String[] encryptPublicKeys, IUbiActionListener actionListener) {
+        try {
+            ECPublicKey[] ecPublicKeys = new ECPublicKey[encryptPublicKeys.length];
+            for (int i = 0; i < encryptPublicKeys.length; i++)
+                ecPublicKeys[i] = JwsHelper.createEcPublicKey(encryptPublicKeys[i]);
+
+            publishBytes(topic, encryptMessage(payload, ecPublicKeys).getBytes(StandardCharsets.UTF_8), qos, retained, actionListener);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Sends a group key to the members of the group. The key is encrypted for the public key of each member, signed
+     * with the key of the distributor and published as a retained message on groupkeys/groupname/keyid, where keyid
+     * identifies the public key of the member. Members only accept keys signed by the distributor they subscribed
+     * with. Rotating the key is done by sending the next version of it, see UbiGroupKey.rotate.
+     * @param groupKey the key to send
+     * @param memberPublicKeys the public keys of the members in .pem format
+     * @param distributorKey the key of the distributor of the group keys to sign the key messages with
+     * @param actionListener the callback to call when the key has been published for all members, or with the first error
+     */
+    public void publishGroupKey(UbiGroupKey groupKey, String[] memberPublicKeys, UbiSigningKey distributorKey, IUbiActionListener actionListener) {
+        IUbiActionListener combined = new CombinedActionListener(memberPublicKeys.length, actionListener);
+        String serializedKey = groupKey.toJson();
+
+        for (int i = 0; i < memberPublicKeys.length; i++) {
+            try {
+                ECPublicKey memberKey = JwsHelper.createEcPublicKey(memberPublicKeys[i]);
+                String keyTopic = GROUP_KEYS_PREFIX + groupKey.getGroup() + "/" + JwsHelper.computeKeyId(memberKey);
+                String encrypted = encryptMessage(serializedKey.getBytes(StandardCharsets.UTF_8), memberKey);
+                publishBytes(keyTopic, JwsHelper.signMessageToCompact(encrypted, distributorKey).getBytes(), 1, true, combined);
+            } catch (Exception e) {
+                combined.onFailure(null, e);
+            }
+        }
+    }
+
+    /**
+     * Sends a group key to the members of the group, see publishGroupKey
+     * @param groupKey the key to send
+     * @param memberPublicKeys the public keys of the members in .pem format
+     * @param distributorPrivateKey the private key of the distributor of the group keys in .pem format
+     * @param actionListener the callback to call when the key has been published for all members, or with the first error
+     */
+    public void publishGroupKey(UbiGroupKey groupKey, String[] memberPublicKeys, String distributorPrivateKey, IUbiActionListener actionListener) {
+        UbiSigningKey distributorKey;
+        try {
+            distributorKey = new UbiSigningKey(distributorPrivateKey);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+            return;
+        }
+        publishGroupKey(groupKey, memberPublicKeys, distributorKey, actionListener);
+    }
+
+    /**
+     * Publishes a message encrypted with a group key on the connected Mqtt server. Only symmetric encryption is
+     * done per message, members of the group decrypt the message with the key sent to them with publishGroupKey.
+     * @param topic the Mqtt topic to publish to
+     * @param payload the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param groupKey the key to encrypt the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishGroupEncrypted(String topic, byte[] payload, int qos, boolean retained, UbiGroupKey groupKey, IUbiActionListener actionListener) {
+        try {
+            IUbiMetrics metrics = this.metrics;
+            long start = metrics != null ? System.nanoTime() : 0;
+            String encrypted = groupKey.encrypt(payload);
+            if (metrics != null)
+                metrics.recordTime(UbiTimer.ENCRYPT, System.nanoTime() - start);
+
+            publishBytes(topic, encrypted.getBytes(), qos, retained, actionListener);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Publishes a message encrypted with a group key on the connected Mqtt server
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param groupKey the key to encrypt the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishGroupEncrypted(String topic, String message, int qos, boolean retained, UbiGroupKey groupKey, IUbiActionListener actionListener) {
+        publishGroupEncrypted(topic, message.getBytes(StandardCharsets.UTF_8), qos, retained, groupKey, actionListener);
+    }
+
+    /**
+     * Publishes a message encrypted with a group key on the connected Mqtt server with default qos=1 and retained = false
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param groupKey the key to encrypt the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishGroupEncrypted(String topic, String message, UbiGroupKey groupKey, IUbiActionListener actionListener) {
+        publishGroupEncrypted(topic, message, 1, false, groupKey, actionListener);
+    }
+
+    /**
+     * Publishes a message authenticated with a group key on the connected Mqtt server. The message carries an HS256
+     * HMAC instead of a signature, which is much cheaper to compute and check but only shows that the message comes
+     * from a member of the group. Members receive it with subscribeAuthenticated using the key sent with publishGroupKey.
+     * The message is published in the compact serialization if that is the signature format, as JSON otherwise.
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param qos the Mqtt qos to use
+     * @param retained publish the message as a retained Mqtt message if true
+     * @param groupKey the key to authenticate the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishAuthenticated(String topic, String message, int qos, boolean retained, UbiGroupKey groupKey, IUbiActionListener actionListener) {
+        try {
+            IUbiMetrics metrics = this.metrics;
+            long start = metrics != null ? System.nanoTime() : 0;
+            String authenticated = groupKey.authenticate(message);
+            if (signatureFormat != SignatureFormat.COMPACT)
+                authenticated = JwsHelper.compactToJson(authenticated);
+            if (metrics != null)
+                metrics.recordTime(UbiTimer.SIGN, System.nanoTime() - start);
+
+            publishBytes(topic, authenticated.getBytes(), qos, retained, actionListener);
+        } catch (Exception e) {
+            actionListener.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Publishes a message authenticated with a group key on the connected Mqtt server with default qos=1 and retained = false
+     * @param topic the Mqtt topic to publish to
+     * @param message the message to publish
+     * @param groupKey the key to authenticate the message with
+     * @param actionListener the callback to call upon success or error
+     */
+    public void publishAuthenticated(String topic, String message, UbiGroupKey groupKey, IUbiActionListener actionListener) {
+        publishAuthenticated(topic, message, 1, false, groupKey, actionListener);
+    }
+
+    /**
+     * Publishes a batch of messages on the connected Mqtt server. Up to the batch window of messages are
+     * published at once without waiting for earlier ones to be acknowledged.
+     * @param messages the messages to publish, in the order they are published
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatch(List<UbiBatchMessage> messages, int qos, boolean retained, IUbiBatchListener batchListener) {
+        newBatchPublisher(messages, qos, retained, batchListener).start(null, null);
+    }
+
+    /**
+     * Publishes a batch of messages on the connected Mqtt server with default qos=1 and retained = false
+     * @param messages the messages to publish, in the order they are published
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatch(List<UbiBatchMessage> messages, IUbiBatchListener batchListener) {
+        publishBatch(messages, 1, false, batchListener);
+    }
+
+    /**
+     * Publishes a batch of signed messages on the connected Mqtt server. The messages are signed in parallel
+     * and published in order as soon as they are signed. With SignatureFormat.MERKLE the whole batch is
+     * signed with one signature before it is published.
+     * @param messages the messages to publish, in the order they are published
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param signingKey the key to sign the messages with
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchSigned(final List<UbiBatchMessage> messages, final int qos, final boolean retained, final UbiSigningKey signingKey, final IUbiBatchListener batchListener) {
+        final SignatureFormat format = signatureFormat;
+
+        if (format == SignatureFormat.MERKLE && !messages.isEmpty()) {
+            // The whole batch is signed at once, then published like an unsigned batch
+            getBatchExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    String[] texts = new String[messages.size()];
+                    for (int i = 0; i < texts.length; i++)
+                        texts[i] = messages.get(i).getText();
+
+                    String[] signed;
+                    try {
+                        signed = MerkleBatchSigner.sign(texts, signingKey, metrics);
+                    } catch (Exception e) {
+                        batchListener.onComplete(failedBatch(messages, e));
+                        return;
+                    }
+
+                    List<UbiBatchMessage> signedMessages = new ArrayList<>(signed.length);
+                    for (int i = 0; i < signed.length; i++)
+                        signedMessages.add(new UbiBatchMessage(messages.get(i).getTopic(), signed[i]));
+                    publishBatch(signedMessages, qos, retained, batchListener);
+                }
+            });
+            return;
+        }
+
+        newBatchPublisher(messages, qos, retained, batchListener).start(new BatchPublisher.Encoder() {
+            @Override
+            public byte[] encode(UbiBatchMessage message) throws Exception {
+                return signMessage(message.getText(), signingKey, format).getBytes();
+            }
+        }, getBatchExecutor());
+    }
+
+    /**
+     * Publishes a batch of signed messages on the connected Mqtt server with default qos=1 and retained = false
+     * @param messages the messages to publish, in the order they are published
+     * @param signingKey the key to sign the messages with
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchSigned(List<UbiBatchMessage> messages, UbiSigningKey signingKey, IUbiBatchListener batchListener) {
+        publishBatchSigned(messages, 1, false, signingKey, batchListener);
+    }
+
+    /**
+     * Publishes a batch of signed messages on the connected Mqtt server, the key is parsed once for the whole batch
+     * @param messages the messages to publish, in the order they are published
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param privateKey the private key in .pem format to sign the messages with
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchSigned(List<UbiBatchMessage> messages, int qos, boolean retained, String privateKey, IUbiBatchListener batchListener) {
+        UbiSigningKey signingKey;
+        try {
+            signingKey = new UbiSigningKey(privateKey);
+        } catch (IOException e) {
+            batchListener.onComplete(failedBatch(messages, e));
+            return;
+        }
+        publishBatchSigned(messages, qos, retained, signingKey, batchListener);
+    }
+
+    /**
+     * Publishes a batch of signed messages on the connected Mqtt server with default qos=1 and retained = false
+     * @param messages the messages to publish, in the order they are published
+     * @param privateKey the private key in .pem format to sign the messages with
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchSigned(List<UbiBatchMessage> messages, String privateKey, IUbiBatchListener batchListener) {
+        publishBatchSigned(messages, 1, false, privateKey, batchListener);
+    }
+
+    /**
+     * Publishes a batch of encrypted messages on the connected Mqtt server. The messages are encrypted in parallel
+     * and published in order as soon as they are encrypted.
+     * @param messages the messages to publish, in the order they are published
+     * @param qos the Mqtt qos to use
+     * @param retained publish the messages as retained Mqtt messages if true
+     * @param encryptPublicKey public key in .pem format for the encryption, parsed once for the whole batch
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchEncrypted(List<UbiBatchMessage> messages, int qos, boolean retained, String encryptPublicKey, IUbiBatchListener batchListener) {
+        final ECPublicKey ecPublicKey;
+        try {
+            ecPublicKey = JwsHelper.createEcPublicKey(encryptPublicKey);
+        } catch (Exception e) {
+            batchListener.onComplete(failedBatch(messages, e));
+            return;
+        }
+
+        newBatchPublisher(messages, qos, retained, batchListener).start(new BatchPublisher.Encoder() {
+            @Override
+            public byte[] encode(UbiBatchMessage message) throws Exception {
+                return encryptMessage(message.getPayload(), ecPublicKey).getBytes();
+            }
+        }, getBatchExecutor());
+    }
+
+    /**
+     * Publishes a batch of encrypted messages on the connected Mqtt server with default qos=1 and retained = false
+     * @param messages the messages to publish, in the order they are published
+     * @param encryptPublicKey public key in .pem format for the encryption, parsed once for the whole batch
+     * @param batchListener the callback to call with the results of all messages once they are done
+     */
+    public void publishBatchEncrypted(List<UbiBatchMessage> messages, String encryptPublicKey, IUbiBatchListener batchListener) {
+        publishBatchEncrypted(messages, 1, false, encryptPublicKey, batchListener);
+    }
+
+    private static UbiBatchResult failedBatch(List<UbiBatchMessage> messages, Throwable error) {
+        Throwable[] errors = new Throwable[messages.size()];
+        Arrays.fill(errors, error);
+        return new UbiBatchResult(errors);
+    }
+
+    private String encryptMessage(String message, String publicKey) throws IOException, JOSEException {
+        return encryptMessage(message.getBytes(StandardCharsets.UTF_8), JwsHelper.createEcPublicKey(publicKey));
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the connected Mqtt server
+     * @param topic the Mqtt topic to subscribe to
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribe(String topic, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        return addSubscription(actionListener, topic, null, listener);
     }
 
     /**
@@ -383,9 +1696,10 @@ public class UbiMqtt implements MqttCallbackExtended {
      * @param decryptPrivateKey the private keys the messages is decrypted against
      * @param listener the listener function to call whenever a message matching the topic arrives
      * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
      */
-    public void subscribeEncrypted(String topic, String[] decryptPrivateKey, IUbiMessageListener listener, IUbiActionListener actionListener) {
-        addSubscriptionEncrypted(actionListener, topic, null, decryptPrivateKey, listener);
+    public String subscribeEncrypted(String topic, String[] decryptPrivateKey, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        return addSubscriptionEncrypted(actionListener, topic, null, decryptPrivateKey, listener);
     }
 
     /**
@@ -394,9 +1708,62 @@ public class UbiMqtt implements MqttCallbackExtended {
      * @param publicKeys the public keys the messages are checked against
      * @param listener the listener function to call whenever a message matching the topic and signed with one of the publicKeys arrives
      * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
      */
-    public void subscribeSigned(String topic, String[] publicKeys, IUbiMessageListener listener, IUbiActionListener actionListener) {
-        addSubscription(actionListener, topic, publicKeys, listener);
+    public String subscribeSigned(String topic, String[] publicKeys, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        return addSubscription(actionListener, topic, publicKeys, listener);
+    }
+
+    /**
+     * Subscribes to messages signed by particular keypairs with particular algorithms on a Mqtt topic on the connected
+     * Mqtt server. Messages signed with other algorithms are rejected before their signature is checked.
+     * @param topic the Mqtt topic to subscribe to
+     * @param publicKeys the public keys the messages are checked against
+     * @param allowedAlgorithms the accepted signature algorithms, for example only JWSAlgorithm.ES256
+     * @param listener the listener function to call whenever a message matching the topic and signed with one of the publicKeys arrives
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeSigned(String topic, String[] publicKeys, Set<JWSAlgorithm> allowedAlgorithms, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        return addSubscription(actionListener, topic, publicKeys, allowedAlgorithms, listener);
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the connected Mqtt server, delivering the payloads of messages as read-only buffers
+     * @param topic the Mqtt topic to subscribe to
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribePayload(String topic, IUbiPayloadListener listener, IUbiActionListener actionListener) {
+        return addSubscription(actionListener, topic, null, new PayloadListenerAdapter(listener));
+    }
+
+    /**
+     * Subscribes to a Mqtt topic on the connected Mqtt server decrypting all the messages that arrive, delivering
+     * the decrypted payloads as read-only buffers
+     * @param topic the Mqtt topic to subscribe to
+     * @param decryptPrivateKey the private keys the messages is decrypted against
+     * @param listener the listener function to call whenever a message matching the topic arrives
+     * @param actionListener the listener to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeEncryptedPayload(String topic, String[] decryptPrivateKey, IUbiPayloadListener listener, IUbiActionListener actionListener) {
+        return addSubscriptionEncrypted(actionListener, topic, null, decryptPrivateKey, new PayloadListenerAdapter(listener));
+    }
+
+    /**
+     * Subscribes to messages signed by particular keypairs on a Mqtt topic on the connected Mqtt server, delivering
+     * the payloads inside the verified envelopes as read-only buffers. The envelope, headers and signature are not
+     * delivered.
+     * @param topic the Mqtt topic to subscribe to
+     * @param publicKeys the public keys the messages are checked against
+     * @param listener the listener function to call whenever a message matching the topic and signed with one of the publicKeys arrives
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing it with unsubscribe
+     */
+    public String subscribeSignedPayload(String topic, String[] publicKeys, IUbiPayloadListener listener, IUbiActionListener actionListener) {
+        return addSubscription(actionListener, topic, publicKeys, new PayloadListenerAdapter(listener, true));
     }
 
     /**
@@ -407,15 +1774,85 @@ public class UbiMqtt implements MqttCallbackExtended {
      * @param publisherName the name of the known publisher
      * @param listener the listener to call whenever a message matching the topic and signed with the publicKey arrives
      * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing both the key and the main subscription with unsubscribe
      */
-    public void subscribeFromPublisher(String topic, String publisherName, IUbiMessageListener listener, IUbiActionListener actionListener) {
+    public String subscribeFromPublisher(String topic, String publisherName, IUbiMessageListener listener, IUbiActionListener actionListener) {
         PublicKeyChangeListener publicKeyChangeListener = new PublicKeyChangeListener(this, topic, listener, actionListener);
-        publicKeyChangeListeners.add(publicKeyChangeListener);
 
         //subscribe to the public key of the publisher
         String publicKeyTopic = PUBLISHERS_PREFIX + publisherName + "/publicKey";
 
-        this.subscribe(publicKeyTopic, publicKeyChangeListener, new IUbiActionListener() {
+        String listenerId = this.subscribe(publicKeyTopic, publicKeyChangeListener, new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken iMqttToken) {
+            }
+
+            @Override
+            public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                actionListener.onFailure(iMqttToken, throwable);
+            }
+        });
+
+        if (listenerId != null) {
+            synchronized (this) {
+                publicKeyChangeListeners.put(listenerId, publicKeyChangeListener);
+            }
+        }
+        return listenerId;
+    }
+
+    /**
+     * Subscribes to messages encrypted with the key of a group on the connected Mqtt server. The key of the group is
+     * received on the key topic of this member, groupkeys/groupname/keyid, and kept up-to-date with the help of a
+     * regular Mqtt subscription. The main topic is subscribed to when the first key arrives.
+     * @param topic the Mqtt topic to subscribe to
+     * @param group the name of the group
+     * @param decryptPrivateKey the private key of this member in .pem format, used for decrypting the group keys
+     * @param distributorPublicKey the public key of the distributor of the group keys in .pem format, keys not signed
+     *                             with it are discarded
+     * @param listener the listener function to call with the decrypted messages
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing both the key and the main subscription with unsubscribe
+     */
+    public String subscribeGroupEncrypted(String topic, String group, String decryptPrivateKey, String distributorPublicKey, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        return subscribeGroup(topic, group, decryptPrivateKey, distributorPublicKey, false, listener, actionListener);
+    }
+
+    /**
+     * Subscribes to messages authenticated with the key of a group on the connected Mqtt server, see publishAuthenticated.
+     * The key of the group is received as with subscribeGroupEncrypted, signed by the distributor. Messages with an invalid HMAC, and messages
+     * that are too old or have been received before, are discarded.
+     * @param topic the Mqtt topic to subscribe to
+     * @param group the name of the group
+     * @param decryptPrivateKey the private key of this member in .pem format, used for decrypting the group keys
+     * @param distributorPublicKey the public key of the distributor of the group keys in .pem format, keys not signed
+     *                             with it are discarded
+     * @param listener the listener function to call with the authenticated messages
+     * @param actionListener the callback to be called upon successful subscription or error
+     * @return the listener id of the subscription, for removing both the key and the main subscription with unsubscribe
+     */
+    public String subscribeAuthenticated(String topic, String group, String decryptPrivateKey, String distributorPublicKey, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        return subscribeGroup(topic, group, decryptPrivateKey, distributorPublicKey, true, listener, actionListener);
+    }
+
+    private String subscribeGroup(String topic, String group, String decryptPrivateKey, String distributorPublicKey, boolean authenticated, IUbiMessageListener listener, IUbiActionListener actionListener) {
+        String keyTopic;
+        GroupKeyListener groupKeyListener;
+        try {
+            KeyPair keyPair = JwsHelper.createEcKeyPair(decryptPrivateKey);
+            keyTopic = GROUP_KEYS_PREFIX + group + "/" + JwsHelper.computeKeyId((ECPublicKey) keyPair.getPublic());
+
+            GroupKeyRing keyRing = new GroupKeyRing(group, GroupKeyRing.DEFAULT_MAX_VERSIONS);
+            groupKeyListener = new GroupKeyListener(this, topic, listener, actionListener, JwsHelper.createEcDecrypter(keyPair),
+                    JwsHelper.createEcPublicKey(distributorPublicKey), keyRing, authenticated);
+        } catch (Exception e) {
+            Logger.warn("subscribing to group " + group + " failed", e);
+            actionListener.onFailure(null, e);
+            return null;
+        }
+
+        //subscribe to the key of the group
+        String listenerId = this.subscribe(keyTopic, groupKeyListener, new IUbiActionListener() {
             @Override
             public void onSuccess(IMqttToken iMqttToken) {
             }
@@ -425,5 +1862,82 @@ public class UbiMqtt implements MqttCallbackExtended {
                 actionListener.onFailure(iMqttToken, throwable);
             }
         });
+
+        if (listenerId != null) {
+            synchronized (this) {
+                groupKeyListeners.put(listenerId, groupKeyListener);
+            }
+        }
+        return listenerId;
+    }
+
+    String addGroupSubscription(String topic, GroupKeyRing keyRing, IUbiMessageListener listener, IUbiActionListener actionListener, boolean authenticated) {
+        return addSubscription(actionListener, topic, new Subscription(topic, keyRing, listener, authenticated));
+    }
+
+    /**
+     * Removes a listener added with one of the subscribe methods. The topic is unsubscribed on the connected
+     * Mqtt server only when the last listener of the topic is removed.
+     * @param listenerId the listener id returned by the subscribe method
+     * @param actionListener the callback to be called upon successful unsubscription or error
+     */
+    public void unsubscribe(String listenerId, IUbiActionListener actionListener) {
+        GroupKeyListener groupKeyListener;
+        PublicKeyChangeListener publicKeyChangeListener;
+        synchronized (this) {
+            groupKeyListener = groupKeyListeners.remove(listenerId);
+            publicKeyChangeListener = publicKeyChangeListeners.remove(listenerId);
+        }
+
+        // Group and publisher subscriptions also have a subscription to the main topic once the first key has arrived
+        String mainListenerId = null;
+        if (groupKeyListener != null)
+            mainListenerId = groupKeyListener.cancel();
+        else if (publicKeyChangeListener != null)
+            mainListenerId = publicKeyChangeListener.cancel();
+        if (mainListenerId != null) {
+            IUbiActionListener combined = new CombinedActionListener(2, actionListener);
+            unsubscribeListener(mainListenerId, combined);
+            unsubscribeListener(listenerId, combined);
+            return;
+        }
+
+        unsubscribeListener(listenerId, actionListener);
+    }
+
+    private void unsubscribeListener(String listenerId, IUbiActionListener actionListener) {
+        String topic;
+        boolean last = false;
+
+        synchronized (this) {
+            topic = listenerFilters.remove(listenerId);
+            if (topic != null) {
+                Map<String, Subscription> topicSubscriptions = subscriptions.get(topic);
+                topicSubscriptions.remove(listenerId);
+                if (topicSubscriptions.isEmpty()) {
+                    subscriptions.remove(topic);
+                    subscriptionIndex.remove(topic);
+                    filterStates.remove(topic);
+                    last = true;
+                }
+            }
+        }
+
+        if (topic == null) {
+            actionListener.onFailure(null, new IllegalArgumentException("no subscription with listener id " + listenerId));
+            return;
+        }
+
+        if (!last) {
+            actionListener.onSuccess(null);
+            return;
+        }
+
+        try {
+            this.client.unsubscribe(topic, null, actionListener);
+        } catch (Exception e) {
+            Logger.warn("unsubscribing from topic " + topic + " failed", e);
+            actionListener.onFailure(null, e);
+        }
     }
 }
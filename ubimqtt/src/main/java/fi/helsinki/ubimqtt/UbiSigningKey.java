@@ -0,0 +1,80 @@
+package fi.helsinki.ubimqtt;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * A private key parsed once for signing many messages. Parsing a .pem key is more expensive than
+ * signing a message, so publishers sending signed messages frequently should load the key into a
+ * UbiSigningKey once and pass it to UbiMqtt.publishSigned instead of the .pem string.
+ * Instances are immutable and can be shared between threads.
+ *
+ * The signature algorithm follows the curve of the key: ES256 for P-256, ES384 for P-384 and ES512 for P-521.
+ */
+public class UbiSigningKey {
+    private final ECPrivateKey privateKey;
+    private final ECPublicKey publicKey;
+    private final JWSSigner signer;
+    private final JWSAlgorithm algorithm;
+    private final String keyId;
+
+    /**
+     * Constructs a signing key from an EC key pair in .pem format
+     * @param privateKey the private key in .pem format
+     * @throws IOException if the key cannot be parsed
+     */
+    public UbiSigningKey(String privateKey) throws IOException {
+        this(JwsHelper.createEcKeyPair(privateKey));
+    }
+
+    /**
+     * Constructs a signing key from an EC key pair
+     * @param keyPair the key pair
+     * @throws IOException if the key is not an EC key usable for signing
+     */
+    public UbiSigningKey(KeyPair keyPair) throws IOException {
+        try {
+            this.privateKey = (ECPrivateKey) keyPair.getPrivate();
+            this.publicKey = (ECPublicKey) keyPair.getPublic();
+            this.signer = new ECDSASigner(privateKey);
+            this.algorithm = JwsHelper.signatureAlgorithmFor(publicKey.getParams());
+            this.keyId = JwsHelper.computeKeyId(publicKey);
+        } catch (Exception e) {
+            throw new IOException("not a usable EC signing key", e);
+        }
+    }
+
+    public ECPrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    public ECPublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public JWSSigner getSigner() {
+        return signer;
+    }
+
+    /**
+     * Returns the algorithm messages are signed with
+     * @return ES256, ES384 or ES512 depending on the curve of the key
+     */
+    public JWSAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the id stamped into the "kid" header of messages signed with this key
+     * @return the key id
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+}
@@ -0,0 +1,31 @@
+package fi.helsinki.ubimqtt;
+
+/**
+ * The operations whose durations are recorded in the metrics
+ */
+public enum UbiTimer {
+    /**
+     * From handing a message to the Mqtt client until the server acknowledges it
+     */
+    PUBLISH,
+
+    /**
+     * Signing a message
+     */
+    SIGN,
+
+    /**
+     * Checking the signature of a received message against one public key
+     */
+    VERIFY,
+
+    /**
+     * Encrypting a message
+     */
+    ENCRYPT,
+
+    /**
+     * Decrypting a received message
+     */
+    DECRYPT
+}
@@ -0,0 +1,85 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchPublisherTest {
+
+    // A client recording the messages it is asked to publish, acknowledged by the test
+    private static IMqttAsyncClient stubClient(final List<String> topics, final List<IMqttActionListener> listeners, final boolean fail) {
+        return (IMqttAsyncClient) Proxy.newProxyInstance(IMqttAsyncClient.class.getClassLoader(), new Class<?>[] {IMqttAsyncClient.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("publish") && args.length == 6) {
+                    if (fail)
+                        throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                    topics.add((String) args[0]);
+                    listeners.add((IMqttActionListener) args[5]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static List<UbiBatchMessage> messages(int count) {
+        List<UbiBatchMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            messages.add(new UbiBatchMessage("test/topic" + i, "Message " + i));
+        return messages;
+    }
+
+    @Test
+    public void testBatchPublisher_WaitsForSharedInflightWindow() {
+        List<String> topics = Collections.synchronizedList(new ArrayList<>());
+        List<IMqttActionListener> listeners = Collections.synchronizedList(new ArrayList<>());
+        List<UbiBatchResult> results = new ArrayList<>();
+
+        // Another publish holds one of the two slots
+        InflightWindow window = new InflightWindow(2);
+        assertTrue(window.tryAcquire());
+
+        new BatchPublisher(stubClient(topics, listeners, false), messages(4), 1, false, 10, window, results::add).start(null, null);
+        assertEquals(1, topics.size());
+        assertEquals(3, window.getWaiting());
+
+        // The slot released by the other publish goes to the batch, in batch order
+        window.release();
+        assertEquals(2, topics.size());
+
+        listeners.get(0).onSuccess(null);
+        listeners.get(1).onSuccess(null);
+        listeners.get(2).onSuccess(null);
+        listeners.get(3).onSuccess(null);
+
+        assertEquals(4, topics.size());
+        for (int i = 0; i < 4; i++)
+            assertEquals("test/topic" + i, topics.get(i));
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(0, window.getInflight());
+    }
+
+    @Test
+    public void testBatchPublisher_ReleasesSlotsOfFailedPublishes() {
+        List<UbiBatchResult> results = new ArrayList<>();
+        InflightWindow window = new InflightWindow(2);
+
+        new BatchPublisher(stubClient(new ArrayList<>(), new ArrayList<>(), true), messages(5), 1, false, 10, window, results::add).start(null, null);
+
+        assertEquals(1, results.size());
+        assertEquals(5, results.get(0).getFailureCount());
+        assertEquals(0, window.getInflight());
+        assertEquals(0, window.getWaiting());
+    }
+}
@@ -0,0 +1,130 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BulkSubscriberTest {
+
+    // A SUBSCRIBE packet sent to the stub client, acknowledged by the test
+    private static class Subscribe {
+        private final String[] filters;
+        private final IMqttActionListener listener;
+
+        private Subscribe(String[] filters, IMqttActionListener listener) {
+            this.filters = filters;
+            this.listener = listener;
+        }
+
+        private void acknowledge(int[] grantedQos) {
+            listener.onSuccess(token(grantedQos));
+        }
+
+        private void acknowledge() {
+            int[] grantedQos = new int[filters.length];
+            Arrays.fill(grantedQos, 1);
+            acknowledge(grantedQos);
+        }
+    }
+
+    private static IMqttToken token(final int[] grantedQos) {
+        return (IMqttToken) Proxy.newProxyInstance(IMqttToken.class.getClassLoader(), new Class<?>[] {IMqttToken.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getGrantedQos"))
+                    return grantedQos;
+                return null;
+            }
+        });
+    }
+
+    // A client recording the multi-topic SUBSCRIBE packets it is asked to send
+    private static IMqttAsyncClient stubClient(final List<Subscribe> sent) {
+        return (IMqttAsyncClient) Proxy.newProxyInstance(IMqttAsyncClient.class.getClassLoader(), new Class<?>[] {IMqttAsyncClient.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("subscribe") && args.length == 4 && args[0] instanceof String[])
+                    sent.add(new Subscribe((String[]) args[0], (IMqttActionListener) args[3]));
+                return null;
+            }
+        });
+    }
+
+    private static List<String> filters(int count) {
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            filters.add("test/topic" + i);
+        return filters;
+    }
+
+    @Test
+    public void testBulkSubscriber_SendsChunksWithBoundedConcurrency() {
+        List<Subscribe> sent = Collections.synchronizedList(new ArrayList<>());
+        new BulkSubscriber(stubClient(sent), filters(950), 1, 100, 4).start();
+
+        // Only four SUBSCRIBE packets wait for their SUBACK at a time
+        assertEquals(4, sent.size());
+        for (Subscribe subscribe : sent)
+            assertEquals(100, subscribe.filters.length);
+
+        // Each SUBACK lets the next chunk be sent
+        for (int i = 0; i < sent.size(); i++) {
+            sent.get(i).acknowledge();
+            assertTrue(sent.size() - (i + 1) <= 4);
+        }
+
+        assertEquals(10, sent.size());
+        assertEquals(50, sent.get(9).filters.length);
+
+        Set<String> subscribed = new HashSet<>();
+        for (Subscribe subscribe : sent)
+            subscribed.addAll(Arrays.asList(subscribe.filters));
+        assertEquals(new HashSet<>(filters(950)), subscribed);
+    }
+
+    @Test
+    public void testBulkSubscriber_SubscribesEachFilterOnce() {
+        List<String> filters = new ArrayList<>(filters(3));
+        // A filter with several listeners is listed once per listener
+        filters.add("test/topic1");
+        filters.add("test/topic1");
+
+        List<Subscribe> sent = Collections.synchronizedList(new ArrayList<>());
+        new BulkSubscriber(stubClient(sent), filters, 1, 100, 4).start();
+
+        assertEquals(1, sent.size());
+        assertArrayEquals(new String[] {"test/topic0", "test/topic1", "test/topic2"}, sent.get(0).filters);
+    }
+
+    @Test
+    public void testBulkSubscriber_ContinuesAfterRefusedFilters() {
+        List<Subscribe> sent = Collections.synchronizedList(new ArrayList<>());
+        BulkSubscriber subscriber = new BulkSubscriber(stubClient(sent), filters(9), 1, 3, 1);
+        subscriber.start();
+        assertEquals(1, sent.size());
+
+        // The server refuses the second filter of the first chunk
+        sent.get(0).acknowledge(new int[] {1, 0x80, 1});
+        assertEquals(2, sent.size());
+
+        // A failed SUBSCRIBE does not stop the rest either
+        sent.get(1).listener.onFailure(token(null), new Exception("test failure"));
+        assertEquals(3, sent.size());
+        sent.get(2).acknowledge();
+
+        assertEquals(Collections.singletonList("test/topic1"), subscriber.getRefusedFilters());
+    }
+}
@@ -0,0 +1,72 @@
+package fi.helsinki.ubimqtt;
+
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class EnvelopeScannerTest {
+
+    @Test
+    public void testEnvelopeScanner_ExtractsPartsVerbatim() {
+        try {
+            String header = "{ \"alg\":\"ES512\", \"timestamp\":1550000000000, \"messageid\":\"abc\" }";
+            String json = "{\"extra\":[1,{\"a\":\"]}\"},null], \"signatures\": [{\"protected\":" + header +
+                    ",\"signature\":\"c2ln\"}, {\"protected\":{},\"signature\":\"other\"}], \"payload\":\"line\\nwith \\\"quotes\\\" \\u00e4\\/\"}";
+
+            EnvelopeScanner envelope = EnvelopeScanner.scanEnvelope(json);
+            assertEquals("line\nwith \"quotes\" \u00e4/", envelope.getPayload());
+            assertEquals(header, envelope.getProtectedHeader());
+            assertEquals("c2ln", envelope.getSignature());
+
+            EnvelopeScanner headerScanner = EnvelopeScanner.scanHeader(envelope.getProtectedHeader());
+            assertEquals(1550000000000L, headerScanner.getTimestamp());
+            assertEquals("abc", headerScanner.getMessageId());
+            assertNull(headerScanner.getKeyId());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testEnvelopeScanner_RejectsMalformedEnvelopes() {
+        String[] malformed = {
+                "",
+                "{\"payload\":\"x\"}",
+                "{\"payload\":\"x\",\"signatures\":[{\"protected\":{\"a\":1},\"signature\":\"s\"}]",
+                "{\"payload\":\"x\",\"signatures\":[{\"protected\":\"e30\",\"signature\":\"s\"}]}",
+                "{\"payload\":\"x\",\"signatures\":[{\"protected\":{\"a\":1},\"signature\":\"s\"}]} trailing",
+                "{\"payload\":\"\\q\",\"signatures\":[{\"protected\":{\"a\":1},\"signature\":\"s\"}]}"
+        };
+
+        for (String json : malformed) {
+            try {
+                EnvelopeScanner.scanEnvelope(json);
+                fail("accepted " + json);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testEnvelopeScanner_RoundTripsSignedMessages() {
+        try {
+            java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
+
+            UbiSigningKey signingKey = new UbiSigningKey(JwsHelper.createEcKeyPair(new String(java.nio.file.Files.readAllBytes(
+                    java.nio.file.Paths.get(System.getProperty("user.home") + "/.private/ubimqtt-testing-key.pem")), "UTF-8")));
+
+            String compact = JwsHelper.signMessageToCompact("{\"path\":\"a/b\",\"text\":\"tab\\there\"}", signingKey);
+            assertEquals(compact, JwsHelper.jsonToCompact(JwsHelper.compactToJson(compact)));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GroupKeyRingTest {
+
+    @Test
+    public void testGroupKeyRing_KeepsNewestVersions() {
+        try {
+            GroupKeyRing keyRing = new GroupKeyRing("testgroup", 3);
+            UbiGroupKey key = UbiGroupKey.generate("testgroup");
+            assertTrue(keyRing.add(key));
+
+            UbiGroupKey newest = key;
+            for (int i = 0; i < 4; i++) {
+                newest = newest.rotate();
+                assertTrue(keyRing.add(newest));
+            }
+
+            assertEquals(3, keyRing.size());
+            assertNull(keyRing.get(key.getKeyId()));
+            assertSame(newest, keyRing.get(newest.getKeyId()));
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testGroupKeyRing_RefusesConflictingAndFarAheadVersions() {
+        try {
+            GroupKeyRing keyRing = new GroupKeyRing("testgroup", 3, 16);
+            UbiGroupKey key = UbiGroupKey.generate("testgroup");
+            assertTrue(keyRing.add(key));
+
+            // The same version again is accepted, the same version with other key material is not
+            assertTrue(keyRing.add(UbiGroupKey.fromJson(key.toJson())));
+            assertFalse(keyRing.add(UbiGroupKey.generate("testgroup")));
+            assertSame(key, keyRing.get(key.getKeyId()));
+
+            // Versions far ahead of the newest one cannot push the real keys out
+            assertFalse(keyRing.add(new UbiGroupKey("testgroup", 18, new byte[UbiGroupKey.KEY_LENGTH_BYTES])));
+            assertFalse(keyRing.add(new UbiGroupKey("testgroup", Integer.MAX_VALUE, new byte[UbiGroupKey.KEY_LENGTH_BYTES])));
+            assertTrue(keyRing.add(new UbiGroupKey("testgroup", 17, new byte[UbiGroupKey.KEY_LENGTH_BYTES])));
+            assertSame(key, keyRing.get(key.getKeyId()));
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InflightWindowTest {
+
+    @Test
+    public void testInflightWindow_QueuesTasksInOrderWhenFull() {
+        InflightWindow window = new InflightWindow(2);
+        List<Integer> started = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            final int index = i;
+            window.acquire(() -> started.add(index));
+        }
+
+        assertEquals(2, started.size());
+        assertEquals(3, window.getWaiting());
+        assertFalse(window.tryAcquire());
+
+        // Each release hands the slot to the next queued task
+        window.release();
+        window.release();
+        assertEquals(4, started.size());
+        assertEquals(2, window.getInflight());
+
+        window.release();
+        window.release();
+        window.release();
+        assertEquals(5, started.size());
+        assertEquals(0, window.getInflight());
+        assertTrue(window.tryAcquire());
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(i, (int) started.get(i));
+    }
+
+    @Test
+    public void testInflightWindow_HandlesLongQueueOfImmediateFailures() {
+        InflightWindow window = new InflightWindow(1);
+        int[] completed = {0};
+
+        window.acquire(() -> { });
+        for (int i = 0; i < 100000; i++) {
+            window.acquire(() -> {
+                // Failing right away releases the slot from inside release()
+                completed[0]++;
+                window.release();
+            });
+        }
+
+        window.release();
+        assertEquals(100000, completed[0]);
+        assertEquals(0, window.getInflight());
+    }
+
+    @Test
+    public void testInflightWindow_BlocksUntilReleased() {
+        try {
+            InflightWindow window = new InflightWindow(1);
+            window.acquire();
+
+            Thread releaser = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Release anyway
+                }
+                window.release();
+            });
+            releaser.start();
+
+            window.acquire();
+            assertEquals(1, window.getInflight());
+            releaser.join();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testInflightWindow_Resizes() {
+        InflightWindow window = new InflightWindow(1);
+        List<Integer> started = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            final int index = i;
+            window.acquire(() -> started.add(index));
+        }
+        assertEquals(1, started.size());
+
+        // Added slots go to the queued tasks
+        window.setSize(3);
+        assertEquals(3, started.size());
+        assertEquals(3, window.getInflight());
+
+        // Slots taken beyond a smaller size are not handed over when released
+        window.setSize(1);
+        window.release();
+        window.release();
+        assertEquals(3, started.size());
+        window.release();
+        assertEquals(4, started.size());
+        assertEquals(1, window.getInflight());
+    }
+}
@@ -4,6 +4,7 @@ import com.nimbusds.jose.EncryptionMethod;
 import com.nimbusds.jose.JWEAlgorithm;
 import com.nimbusds.jose.JWEHeader;
 import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.Payload;
 import com.nimbusds.jose.crypto.ECDHDecrypter;
 import com.nimbusds.jose.crypto.ECDHEncrypter;
@@ -22,8 +23,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Collections;
 
 import static org.junit.Assert.*;
 
@@ -112,6 +116,47 @@ public class JwsHelperTest {
         }
     }
 
+    @Test
+    public void testJwsHelper_CanSignWithPreParsedKey() {
+        java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            String path = home + "/.private/ubimqtt-testing-key.pem";
+
+            byte[] encoded = Files.readAllBytes(Paths.get(path));
+            privateKey = new String(encoded, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+
+        try {
+            String home = System.getProperty("user.home");
+            String path = home + "/.private/ubimqtt-testing-key-public.pem";
+
+            byte[] encoded = Files.readAllBytes(Paths.get(path));
+            publicKey = new String(encoded, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+
+        try {
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+
+            for (int i = 0; i < 3; i++) {
+                String jsonResult = JwsHelper.signMessage("Hello world " + i, signingKey);
+                System.out.println(jsonResult);
+
+                assertTrue(JwsHelper.verifySignature(jsonResult, publicKey));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
     @Test
     public void testJwsHelper_CanDetectFalseSignature() {
         java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
@@ -163,6 +208,90 @@ public class JwsHelperTest {
         }
     }
 
+    @Test
+    public void testJwsHelper_StampsKeyId() {
+        java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            String path = home + "/.private/ubimqtt-testing-key.pem";
+
+            byte[] encoded = Files.readAllBytes(Paths.get(path));
+            privateKey = new String(encoded, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+
+        try {
+            String home = System.getProperty("user.home");
+            String path = home + "/.private/ubimqtt-testing-key-public.pem";
+
+            byte[] encoded = Files.readAllBytes(Paths.get(path));
+            publicKey = new String(encoded, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+
+        try {
+            String keyId = JwsHelper.computeKeyId(JwsHelper.createEcPublicKey(publicKey));
+
+            SignedMessage signedMessage = SignedMessage.parse(JwsHelper.signMessage("Hello world", privateKey));
+            assertEquals(keyId, signedMessage.getKeyId());
+
+            Subscription subscription = new Subscription("test/topic", null, new String[] {publicKey}, new String[] {privateKey});
+            assertEquals(1, subscription.getCandidatePublicKeys(keyId).length);
+            assertEquals(0, subscription.getCandidatePublicKeys("unknown").length);
+            assertTrue(signedMessage.isSignedByAny(subscription.getCandidatePublicKeys(signedMessage.getKeyId())));
+
+            JWEObject jwe = JWEObject.parse(JwsHelper.encryptMessage("Hello world", publicKey));
+            assertEquals(keyId, jwe.getHeader().getKeyID());
+            assertEquals("Hello world", JwsHelper.decryptMessage(jwe, subscription.getCandidateDecrypters(keyId)).toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testJwsHelper_ChoosesAlgorithmByCurve() {
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            String path = home + "/.private/ubimqtt-testing-key-public.pem";
+
+            byte[] encoded = Files.readAllBytes(Paths.get(path));
+            publicKey = new String(encoded, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            UbiSigningKey signingKey = new UbiSigningKey(generator.generateKeyPair());
+            assertEquals(JWSAlgorithm.ES256, signingKey.getAlgorithm());
+
+            SignedMessage signedMessage = SignedMessage.parse(JwsHelper.signMessage("Hello world", signingKey));
+            assertEquals(JWSAlgorithm.ES256, signedMessage.getAlgorithm());
+            assertTrue(signedMessage.isSignedBy(signingKey.getPublicKey()));
+
+            // A key of another curve cannot have signed the message
+            assertFalse(signedMessage.isSignedBy(JwsHelper.createEcPublicKey(publicKey)));
+
+            Subscription subscription = new Subscription("test/topic", null, new String[0]);
+            subscription.setEcPublicKeys(new ECPublicKey[] {signingKey.getPublicKey()});
+            assertEquals(1, subscription.getCandidatePublicKeys(signedMessage).length);
+
+            subscription.setAllowedAlgorithms(Collections.singleton(JWSAlgorithm.ES512));
+            assertEquals(0, subscription.getCandidatePublicKeys(signedMessage).length);
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
     @Test
     public void testJwsHelper_canEncryptMessage() {
         java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
@@ -0,0 +1,45 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoggerTest {
+
+    @Test
+    public void testLogger_DropsMessagesBelowLevelWithoutBuildingThem() {
+        List<String> logged = new ArrayList<>();
+        AtomicInteger built = new AtomicInteger();
+
+        Logger.setSink((level, message, throwable) -> logged.add(level + " " + message));
+        Logger.setLevel(LogLevel.WARN);
+        try {
+            Logger.debug(() -> {
+                built.incrementAndGet();
+                return "debug";
+            });
+            Logger.info("info");
+            Logger.warn(() -> {
+                built.incrementAndGet();
+                return "warn";
+            });
+            Logger.error("error", new Exception());
+
+            assertEquals(1, built.get());
+            assertEquals(2, logged.size());
+            assertEquals("WARN warn", logged.get(0));
+            assertEquals("ERROR error", logged.get(1));
+
+            Logger.setLevel(LogLevel.OFF);
+            Logger.error("error");
+            assertEquals(2, logged.size());
+        } finally {
+            Logger.setSink(null);
+            Logger.setLevel(LogLevel.INFO);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+
+    @Test
+    public void testMerkleTree_ProofsLeadToRoot() {
+        for (int size = 1; size <= 33; size++) {
+            byte[][] leafHashes = new byte[size][];
+            for (int i = 0; i < size; i++)
+                leafHashes[i] = MerkleTree.leafHash(i, "Message " + i);
+
+            MerkleTree tree = new MerkleTree(leafHashes);
+
+            for (int i = 0; i < size; i++) {
+                byte[][] proof = tree.getProof(i);
+                assertArrayEquals(tree.getRoot(), MerkleTree.computeRoot(leafHashes[i], i, size, proof));
+
+                // Another message or the same message under another index does not lead to the root
+                assertFalse(Arrays.equals(tree.getRoot(), MerkleTree.computeRoot(MerkleTree.leafHash(i, "Other"), i, size, proof)));
+                if (size > 1) {
+                    int other = (i + 1) % size;
+                    byte[] root = MerkleTree.computeRoot(MerkleTree.leafHash(other, "Message " + i), other, size, proof);
+                    assertFalse(Arrays.equals(tree.getRoot(), root));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMerkleBatchSigner_SignsVerifiableBatch() {
+        String privateKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+
+        try {
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+
+            String[] messages = new String[5];
+            for (int i = 0; i < messages.length; i++)
+                messages[i] = "Message \"" + i + "\"";
+
+            String[] signed = MerkleBatchSigner.sign(messages, signingKey, null);
+
+            MessageValidator messageValidator = new MessageValidator(60);
+            Set<String> messageIds = new HashSet<>();
+            for (int i = 0; i < signed.length; i++) {
+                SignedMessage signedMessage = SignedMessage.parse(signed[i]);
+                assertEquals(signingKey.getKeyId(), signedMessage.getKeyId());
+                messageIds.add(signedMessage.getMessageId());
+
+                assertTrue(messageValidator.validateMessage(signed[i], signingKey.getPublicKey()));
+                assertFalse(messageValidator.validateMessage(signed[i], signingKey.getPublicKey()));
+            }
+            assertEquals(messages.length, messageIds.size());
+
+            // The root was checked once for the whole batch
+            assertEquals(1, messageValidator.getRootCache().size());
+
+            // A message moved to another index or with another payload is rejected
+            SignedMessage first = SignedMessage.parse(signed[0]);
+            try {
+                SignedMessage.parse(signed[0].replace("\"index\":0", "\"index\":1"));
+                fail("moved message was accepted");
+            } catch (org.json.simple.parser.ParseException e) {
+                // Expected
+            }
+            try {
+                SignedMessage.parse(signed[0].replace("Message", "Massage"));
+                fail("altered message was accepted");
+            } catch (org.json.simple.parser.ParseException e) {
+                // Expected
+            }
+
+            // The signed root is not a message by itself
+            try {
+                SignedMessage.parse(first.getCompact());
+                fail("root was accepted as a message");
+            } catch (org.json.simple.parser.ParseException e) {
+                // Expected
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+}
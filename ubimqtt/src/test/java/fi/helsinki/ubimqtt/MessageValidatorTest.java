@@ -110,5 +110,34 @@ public class MessageValidatorTest {
             assertEquals(null, e);
         }
     }
-}
 
+    @Test
+    public void testMessageValidator_CanValidateCompactMessage() {
+        try {
+            java.security.Security.addProvider(com.nimbusds.jose.crypto.bc.BouncyCastleProviderSingleton.getInstance());
+
+            String home = System.getProperty("user.home");
+            String privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            String publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+
+            String signedMessage = JwsHelper.signMessage("Testjee", new UbiSigningKey(privateKey), SignatureFormat.COMPACT);
+            assertEquals(true, JwsHelper.isCompact(signedMessage));
+
+            MessageValidator messageValidator = new MessageValidator(60);
+
+            boolean firstResult = messageValidator.validateMessage(signedMessage, JwsHelper.createEcPublicKey(publicKey));
+            assertEquals(true, firstResult);
+
+            boolean secondResult = messageValidator.validateMessage(signedMessage, JwsHelper.createEcPublicKey(publicKey));
+            assertEquals(false, secondResult);
+
+            // The JSON serialization of another message is still accepted by the same validator
+            boolean jsonResult = messageValidator.validateMessage(this.signMessage("Testjee"), JwsHelper.createEcPublicKey(publicKey));
+            assertEquals(true, jsonResult);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+public class MultiRecipientJweTest {
+
+    @Test
+    public void testMultiRecipientJwe_RejectsMalformedMessages() {
+        try {
+            String home = System.getProperty("user.home");
+            String privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            KeyPair keyPair = JwsHelper.createEcKeyPair(privateKey);
+            String keyId = JwsHelper.computeKeyId((ECPublicKey) keyPair.getPublic());
+
+            String encrypted = MultiRecipientJwe.encrypt("Hello".getBytes(StandardCharsets.UTF_8), new ECPublicKey[] {(ECPublicKey) keyPair.getPublic()});
+            MultiRecipientJwe jwe = MultiRecipientJwe.parse(encrypted);
+            assertEquals("Hello", new String(jwe.decrypt(keyId, (ECPrivateKey) keyPair.getPrivate()), StandardCharsets.UTF_8));
+
+            String protectedHeader = encrypted.substring(encrypted.indexOf("\"protected\":\"") + 13);
+            protectedHeader = protectedHeader.substring(0, protectedHeader.indexOf('"'));
+
+            String[] malformed = {
+                    "{}",
+                    "[]",
+                    "{\"protected\":\"" + protectedHeader + "\",\"recipients\":[]}",
+                    "{\"protected\":\"" + protectedHeader + "\",\"recipients\":[],\"iv\":\"AAAA\",\"ciphertext\":\"AAAA\"}",
+                    "{\"protected\":\"" + protectedHeader + "\",\"recipients\":[1],\"iv\":\"AAAA\",\"ciphertext\":\"AAAA\",\"tag\":\"AAAA\"}",
+                    "{\"protected\":1,\"recipients\":[]}",
+                    "{\"protected\":\"" + protectedHeader + "\""
+            };
+            for (String message : malformed) {
+                try {
+                    MultiRecipientJwe.parse(message);
+                    fail("malformed message was accepted: " + message);
+                } catch (ParseException e) {
+                    // Expected
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+}
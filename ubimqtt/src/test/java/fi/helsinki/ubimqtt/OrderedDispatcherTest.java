@@ -0,0 +1,80 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedDispatcherTest {
+
+    private static final int KEYS = 8;
+    private static final int TASKS_PER_KEY = 1000;
+
+    @Test
+    public void testOrderedDispatcher_KeepsOrderPerKey() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        OrderedDispatcher dispatcher = new OrderedDispatcher(executor, 4);
+
+        List<List<Integer>> results = new ArrayList<>();
+        for (int k = 0; k < KEYS; k++)
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+
+        CountDownLatch latch = new CountDownLatch(KEYS * TASKS_PER_KEY);
+
+        for (int i = 0; i < TASKS_PER_KEY; i++) {
+            for (int k = 0; k < KEYS; k++) {
+                final int key = k;
+                final int sequence = i;
+                dispatcher.dispatch("test/topic" + key, () -> {
+                    results.get(key).add(sequence);
+                    latch.countDown();
+                });
+            }
+        }
+
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            assertEquals(null, e);
+        }
+
+        for (int k = 0; k < KEYS; k++) {
+            List<Integer> received = results.get(k);
+            assertEquals(TASKS_PER_KEY, received.size());
+            for (int i = 0; i < TASKS_PER_KEY; i++)
+                assertEquals(i, (int) received.get(i));
+        }
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrderedDispatcher_DropsTasksRejectedByExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        OrderedDispatcher dispatcher = new OrderedDispatcher(executor, 2);
+
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (int i = 0; i < 10; i++) {
+                final int sequence = i;
+                dispatcher.dispatch("test/topic" + i, () -> results.add(sequence));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+
+        assertTrue(results.isEmpty());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+}
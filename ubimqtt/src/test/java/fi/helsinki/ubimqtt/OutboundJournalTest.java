@@ -0,0 +1,134 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Enumeration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOutboundJournal_RecoversUndeliveredMessagesInOrder() {
+        try {
+            File directory = folder.newFolder("journal");
+
+            OutboundJournal journal = new OutboundJournal(directory, 4096, 1024 * 1024, 60000);
+            for (int i = 0; i < 100; i++)
+                journal.append("test/journal", ("message " + i).getBytes(), 1, i % 2 == 0);
+
+            // Small segments, so the messages span several segment files
+            assertTrue(directory.listFiles().length > 1);
+
+            for (int i = 0; i < 40; i++) {
+                OutboundJournal.Entry entry = journal.next();
+                assertEquals("message " + i, new String(entry.getPayload()));
+                assertEquals(i % 2 == 0, entry.isRetained());
+                journal.markDelivered(entry);
+            }
+            assertEquals(60, journal.getPendingCount());
+            journal.close();
+
+            journal = new OutboundJournal(directory, 4096, 1024 * 1024, 60000);
+            assertEquals(60, journal.getPendingCount());
+
+            // Messages handed out but not delivered are returned again after a rewind
+            OutboundJournal.Entry first = journal.next();
+            assertEquals("message 40", new String(first.getPayload()));
+            journal.rewind();
+
+            for (int i = 40; i < 100; i++) {
+                OutboundJournal.Entry entry = journal.next();
+                assertEquals("message " + i, new String(entry.getPayload()));
+                assertEquals("test/journal", entry.getTopic());
+                assertEquals(1, entry.getQos());
+                journal.markDelivered(entry);
+            }
+            assertNull(journal.next());
+            assertEquals(0, journal.getPendingCount());
+
+            // Delivered segments are deleted, except the one being appended to
+            assertEquals(1, directory.listFiles().length);
+            journal.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testOutboundJournal_DropsOldestSegmentsAndExpiredMessages() {
+        try {
+            OutboundJournal journal = new OutboundJournal(folder.newFolder("capped"), 1024, 2048, 60000);
+            for (int i = 0; i < 100; i++)
+                journal.append("test/journal", ("message " + i).getBytes(), 1, false);
+
+            // Only the newest two segments are kept
+            assertTrue(journal.getPendingCount() < 100);
+            OutboundJournal.Entry entry = journal.next();
+            assertFalse("message 0".equals(new String(entry.getPayload())));
+
+            int count = 1;
+            while (journal.next() != null)
+                count++;
+            assertEquals(journal.getPendingCount(), count);
+            journal.close();
+
+            OutboundJournal expiring = new OutboundJournal(folder.newFolder("expiring"), 4096, 8192, 50);
+            expiring.append("test/journal", "old".getBytes(), 1, false);
+            Thread.sleep(100);
+            expiring.append("test/journal", "new".getBytes(), 1, false);
+
+            assertEquals("new", new String(expiring.next().getPayload()));
+            assertEquals(1, expiring.getPendingCount());
+            expiring.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testJournalPersistence_ReplaysLog() {
+        try {
+            File directory = folder.newFolder("persistence");
+
+            JournalPersistence persistence = new JournalPersistence(directory);
+            persistence.open("client", "tcp://localhost:1883");
+            for (int i = 0; i < 10; i++)
+                persistence.put("s-" + i, new MqttPersistentData("s-" + i, new byte[] {1, 2, (byte) i}, 0, 3, ("payload " + i).getBytes(), 0, 9));
+            for (int i = 0; i < 10; i += 2)
+                persistence.remove("s-" + i);
+            persistence.close();
+
+            persistence = new JournalPersistence(directory);
+            persistence.open("client", "tcp://localhost:1883");
+            assertFalse(persistence.containsKey("s-0"));
+            assertTrue(persistence.containsKey("s-1"));
+            assertEquals("payload 7", new String(persistence.get("s-7").getPayloadBytes()));
+            assertEquals(7, persistence.get("s-7").getHeaderBytes()[2]);
+
+            int count = 0;
+            for (Enumeration<?> keys = persistence.keys(); keys.hasMoreElements(); keys.nextElement())
+                count++;
+            assertEquals(5, count);
+            persistence.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+}
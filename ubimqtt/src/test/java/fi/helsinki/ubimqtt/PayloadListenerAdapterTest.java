@@ -0,0 +1,72 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PayloadListenerAdapterTest {
+
+    @Test
+    public void testPayloadListenerAdapter_DeliversInnerPayloadOfSignedMessages() {
+        try {
+            String home = System.getProperty("user.home");
+            String privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+
+            List<String> received = new ArrayList<>();
+            IUbiPayloadListener listener = (topic, payload, listenerId) -> {
+                assertTrue(payload.isReadOnly());
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                received.add(new String(bytes, StandardCharsets.UTF_8));
+            };
+
+            PayloadListenerAdapter signed = new PayloadListenerAdapter(listener, true);
+            signed.messageArrived("test", new MqttMessage(JwsHelper.signMessage("Hello \"world\"", signingKey).getBytes()), "1");
+            signed.messageArrived("test", new MqttMessage(JwsHelper.signMessageToCompact("Hello compact", signingKey).getBytes()), "1");
+
+            // Unsigned messages are delivered as they are
+            new PayloadListenerAdapter(listener).messageArrived("test", new MqttMessage("Plain".getBytes()), "2");
+
+            assertEquals("Hello \"world\"", received.get(0));
+            assertEquals("Hello compact", received.get(1));
+            assertEquals("Plain", received.get(2));
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testPayloadListenerAdapter_DeliversPayloadOfParsedMessage() {
+        try {
+            String home = System.getProperty("user.home");
+            String privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+
+            List<ByteBuffer> received = new ArrayList<>();
+            PayloadListenerAdapter signed = new PayloadListenerAdapter((topic, payload, listenerId) -> received.add(payload), true);
+
+            IncomingMessage message = new IncomingMessage("test", new MqttMessage(JwsHelper.signMessage("Hello", signingKey).getBytes()));
+            byte[] parsed = message.getSignedMessage().getPayload();
+            PayloadListenerAdapter.deliverSigned(signed, message, "1");
+
+            // The payload decoded when the message was parsed is delivered, not a copy decoded again
+            assertEquals(1, received.size());
+            assertTrue(received.get(0).isReadOnly());
+            assertEquals(ByteBuffer.wrap(parsed), received.get(0));
+            assertSame(parsed, message.getSignedMessage().getPayload());
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+}
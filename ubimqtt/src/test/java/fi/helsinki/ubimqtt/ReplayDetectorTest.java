@@ -0,0 +1,78 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayDetectorTest {
+
+    @Test
+    public void testReplayDetector_RejectsReplaysAndOldMessages() {
+        ReplayDetector replayDetector = new ReplayDetector(60);
+        long now = System.currentTimeMillis();
+
+        assertTrue(replayDetector.isValid(now, "message1"));
+        assertFalse(replayDetector.isValid(now, "message1"));
+
+        // Same id with a different timestamp is a different message
+        assertTrue(replayDetector.isValid(now + 1, "message1"));
+        assertTrue(replayDetector.isValid(now, "message2"));
+
+        assertFalse(replayDetector.isValid(now - 61000, "message3"));
+        assertFalse(replayDetector.isValid(now + 61000, "message3"));
+        assertTrue(replayDetector.isValid(now + 30000, "message3"));
+        assertFalse(replayDetector.isValid(now + 30000, "message3"));
+    }
+
+    @Test
+    public void testReplayDetector_CapsMessagesPerSecond() {
+        ReplayDetector replayDetector = new ReplayDetector(60, 100);
+        long second = (System.currentTimeMillis() / 1000) * 1000;
+
+        for (int i = 0; i < 100; i++)
+            assertTrue(replayDetector.isValid(second, "message" + i));
+
+        assertFalse(replayDetector.isValid(second, "message100"));
+    }
+
+    @Test
+    public void testReplayDetector_AcceptsEachMessageOnceUnderConcurrency() {
+        ReplayDetector replayDetector = new ReplayDetector(60);
+        long now = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(() -> {
+                    int accepted = 0;
+                    for (int i = 0; i < 5000; i++) {
+                        if (replayDetector.isValid(now + (i % 2000), "message" + i))
+                            accepted++;
+                    }
+                    return accepted;
+                }));
+            }
+
+            int accepted = 0;
+            for (Future<Integer> result : results)
+                accepted += result.get(10, TimeUnit.SECONDS);
+
+            assertEquals(5000, accepted);
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
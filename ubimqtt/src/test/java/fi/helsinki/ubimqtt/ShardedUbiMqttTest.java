@@ -0,0 +1,108 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Make sure that a MQTT server answers at localhost:1883 before running these tests
+
+public class ShardedUbiMqttTest {
+
+    private static final String TOPIC = "test/javashardedtesttopic";
+
+    private static IUbiActionListener completing(CompletableFuture<String> future) {
+        return new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        };
+    }
+
+    @Test
+    public void testShardedUbiMqtt_KeepsPerTopicOrder() {
+        Logger.log("testShardedUbiMqtt_KeepsPerTopicOrder()");
+
+        ShardedUbiMqtt ubiMqtt = new ShardedUbiMqtt("localhost:1883", 4);
+
+        try {
+            CompletableFuture<String> connectFuture = new CompletableFuture<>();
+            ubiMqtt.connect(completing(connectFuture));
+            assertEquals("success", connectFuture.get(5, TimeUnit.SECONDS));
+
+            int topicCount = 8;
+            int messagesPerTopic = 50;
+
+            Map<String, List<String>> received = new ConcurrentHashMap<>();
+            AtomicInteger receivedCount = new AtomicInteger();
+            CompletableFuture<String> allReceivedFuture = new CompletableFuture<>();
+            List<String> listenerIds = new ArrayList<>();
+
+            for (int t = 0; t < topicCount; t++) {
+                String topic = TOPIC + "/" + t;
+                received.put(topic, Collections.synchronizedList(new ArrayList<>()));
+
+                CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+                String listenerId = ubiMqtt.subscribe(topic, (messageTopic, mqttMessage, id) -> {
+                    received.get(messageTopic).add(mqttMessage.toString());
+                    if (receivedCount.incrementAndGet() == topicCount * messagesPerTopic)
+                        allReceivedFuture.complete("success");
+                }, completing(subscribeFuture));
+                assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+                assertTrue(listenerId.startsWith(ubiMqtt.getShardIndex(topic) + "/"));
+                listenerIds.add(listenerId);
+            }
+
+            List<UbiBatchMessage> messages = new ArrayList<>();
+            for (int i = 0; i < messagesPerTopic; i++) {
+                for (int t = 0; t < topicCount; t++)
+                    messages.add(new UbiBatchMessage(TOPIC + "/" + t, "Message " + i));
+            }
+
+            CompletableFuture<UbiBatchResult> batchFuture = new CompletableFuture<>();
+            ubiMqtt.publishBatch(messages, batchFuture::complete);
+
+            UbiBatchResult result = batchFuture.get(10, TimeUnit.SECONDS);
+            assertEquals(messages.size(), result.getMessageCount());
+            assertEquals(true, result.isSuccess());
+
+            assertEquals("success", allReceivedFuture.get(10, TimeUnit.SECONDS));
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < messagesPerTopic; i++)
+                expected.add("Message " + i);
+            for (List<String> topicMessages : received.values())
+                assertEquals(expected, new ArrayList<>(topicMessages));
+
+            for (String listenerId : listenerIds) {
+                CompletableFuture<String> unsubscribeFuture = new CompletableFuture<>();
+                ubiMqtt.unsubscribe(listenerId, completing(unsubscribeFuture));
+                assertEquals("success", unsubscribeFuture.get(5, TimeUnit.SECONDS));
+            }
+
+            CompletableFuture<String> disconnectFuture = new CompletableFuture<>();
+            ubiMqtt.disconnect(completing(disconnectFuture));
+            assertEquals("success", disconnectFuture.get(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+}
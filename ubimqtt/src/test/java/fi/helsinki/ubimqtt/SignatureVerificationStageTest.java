@@ -0,0 +1,212 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SignatureVerificationStageTest {
+
+    private static final String TOPIC = "test/signed";
+
+    private String privateKey;
+    private String publicKey;
+
+    public SignatureVerificationStageTest() {
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertNull(e);
+        }
+    }
+
+    // Collects the tasks of the stage so the test decides when and in which order they run
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+    }
+
+    private IncomingMessage signedMessage(UbiSigningKey signingKey, String message) throws Exception {
+        return new IncomingMessage(TOPIC, new MqttMessage(JwsHelper.signMessage(message, signingKey).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testSignatureVerificationStage_DeliversInSubmissionOrder() {
+        try {
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+            ManualExecutor executor = new ManualExecutor();
+            SignatureVerificationStage stage = new SignatureVerificationStage(executor, 16, new MessageValidator(60));
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            Subscription subscription = new Subscription(TOPIC, (topic, mqttMessage, listenerId) -> {
+                received.add(EnvelopeScanner.scanEnvelope(mqttMessage.toString()).getPayload());
+            }, new String[] {publicKey});
+
+            for (int i = 0; i < 5; i++)
+                stage.submit(signedMessage(signingKey, "Message " + i), new AbstractMap.SimpleEntry<>("listener", subscription));
+            assertEquals(5, stage.getQueueDepth());
+
+            // The last verifications finish first, nothing is delivered until the first one is done
+            for (int i = 4; i > 0; i--)
+                executor.tasks.get(i).run();
+            assertTrue(received.isEmpty());
+
+            executor.tasks.get(0).run();
+            assertEquals(5, received.size());
+            for (int i = 0; i < 5; i++)
+                assertEquals("Message " + i, received.get(i));
+            assertEquals(0, stage.getQueueDepth());
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testSignatureVerificationStage_BlocksWhenQueueIsFull() {
+        try {
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+            ManualExecutor executor = new ManualExecutor();
+            SignatureVerificationStage stage = new SignatureVerificationStage(executor, 2, new MessageValidator(60));
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            Subscription subscription = new Subscription(TOPIC, (topic, mqttMessage, listenerId) -> {
+                received.add(mqttMessage.toString());
+            }, new String[] {publicKey});
+
+            stage.submit(signedMessage(signingKey, "Message 0"), new AbstractMap.SimpleEntry<>("listener", subscription));
+            stage.submit(signedMessage(signingKey, "Message 1"), new AbstractMap.SimpleEntry<>("listener", subscription));
+
+            IncomingMessage third = signedMessage(signingKey, "Message 2");
+            CountDownLatch submitted = new CountDownLatch(1);
+            Thread submitter = new Thread(() -> {
+                try {
+                    stage.submit(third, new AbstractMap.SimpleEntry<>("listener", subscription));
+                    submitted.countDown();
+                } catch (InterruptedException e) {
+                    // The test failed and interrupted the thread
+                }
+            });
+            submitter.start();
+
+            assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+            // Delivering the first message makes room for the third
+            executor.tasks.get(0).run();
+            assertTrue(submitted.await(5, TimeUnit.SECONDS));
+            assertEquals(1, received.size());
+
+            executor.tasks.get(1).run();
+            executor.tasks.get(2).run();
+            assertEquals(3, received.size());
+
+            submitter.interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testSignatureVerificationStage_ChecksReplayOncePerMessage() {
+        try {
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+            ManualExecutor executor = new ManualExecutor();
+            SignatureVerificationStage stage = new SignatureVerificationStage(executor, 16, new MessageValidator(60));
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            IUbiMessageListener listener = (topic, mqttMessage, listenerId) -> received.add(listenerId);
+            Subscription first = new Subscription(TOPIC, listener, new String[] {publicKey});
+            Subscription second = new Subscription(TOPIC, listener, new String[] {publicKey});
+
+            // The same message for two subscriptions is delivered to both
+            IncomingMessage message = signedMessage(signingKey, "Message");
+            stage.submit(message, new AbstractMap.SimpleEntry<>("first", first));
+            stage.submit(message, new AbstractMap.SimpleEntry<>("second", second));
+
+            // A copy of the message arriving again is a replay
+            IncomingMessage replay = new IncomingMessage(TOPIC, new MqttMessage(message.getMqttMessage().getPayload()));
+            stage.submit(replay, new AbstractMap.SimpleEntry<>("first", first));
+
+            for (Runnable task : new ArrayList<>(executor.tasks))
+                task.run();
+
+            assertEquals(2, received.size());
+            assertTrue(received.contains("first"));
+            assertTrue(received.contains("second"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testSignatureVerificationStage_DropsMessagesRejectedByExecutor() {
+        try {
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executor.shutdown();
+            SignatureVerificationStage stage = new SignatureVerificationStage(executor, 2, new MessageValidator(60));
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            Subscription subscription = new Subscription(TOPIC, (topic, mqttMessage, listenerId) -> {
+                received.add(mqttMessage.toString());
+            }, new String[] {publicKey});
+
+            // More messages than the queue bound, the rejected ones must not keep their slots
+            for (int i = 0; i < 3; i++)
+                stage.submit(signedMessage(signingKey, "Message " + i), new AbstractMap.SimpleEntry<>("listener", subscription));
+
+            assertTrue(received.isEmpty());
+            assertEquals(0, stage.getQueueDepth());
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertNull(e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_ShutsDownReplacedVerificationPool() {
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        ubiMqtt.setVerificationParallelism(2, 16);
+        ExecutorService first = ubiMqtt.getOwnedVerificationExecutor();
+        assertNotNull(first);
+
+        ubiMqtt.setVerificationParallelism(2, 16);
+        ExecutorService second = ubiMqtt.getOwnedVerificationExecutor();
+        assertTrue(first.isShutdown());
+        assertFalse(second.isShutdown());
+
+        // An executor supplied by the caller is left to the caller
+        ExecutorService supplied = Executors.newSingleThreadExecutor();
+        ubiMqtt.setVerificationExecutor(supplied, 16);
+        assertTrue(second.isShutdown());
+        assertNull(ubiMqtt.getOwnedVerificationExecutor());
+
+        ubiMqtt.setVerificationParallelism(2, 16);
+        assertFalse(supplied.isShutdown());
+
+        supplied.shutdown();
+        ubiMqtt.getOwnedVerificationExecutor().shutdown();
+    }
+}
@@ -0,0 +1,96 @@
+package fi.helsinki.ubimqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TopicTrieTest {
+
+    private static final String[] FILTERS = {
+            "sensors/room1/temperature",
+            "sensors/+/temperature",
+            "sensors/#",
+            "sensors/room1/+",
+            "+/room1/#",
+            "#",
+            "sensors/+",
+            "+",
+            "publishers/javatestpublisher/publicKey"
+    };
+
+    private static final String[] TOPICS = {
+            "sensors/room1/temperature",
+            "sensors/room2/temperature",
+            "sensors",
+            "sensors/room1",
+            "sensors/room1/humidity/raw",
+            "actuators/room1/door",
+            "publishers/javatestpublisher/publicKey",
+            "other"
+    };
+
+    // Straightforward matcher following the Mqtt 3.1.1 specification, "a/#" also matches "a"
+    private static boolean isMatched(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (filterLevels[i].equals("#"))
+                return true;
+            if (i >= topicLevels.length)
+                return false;
+            if (!filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i]))
+                return false;
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    private List<String> match(TopicTrie<String> trie, String topic) {
+        List<String> result = new ArrayList<>();
+        trie.match(topic, result);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testTopicTrie_MatchesAccordingToSpecification() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String filter : FILTERS)
+            trie.put(filter, filter);
+
+        assertEquals(FILTERS.length, trie.size());
+
+        for (String topic : TOPICS) {
+            List<String> expected = new ArrayList<>();
+            for (String filter : FILTERS) {
+                if (isMatched(filter, topic))
+                    expected.add(filter);
+            }
+            Collections.sort(expected);
+
+            assertEquals("topic " + topic, expected, match(trie, topic));
+        }
+    }
+
+    @Test
+    public void testTopicTrie_CanRemoveFilters() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String filter : FILTERS)
+            trie.put(filter, filter);
+
+        for (String filter : FILTERS) {
+            assertEquals(filter, trie.get(filter));
+            assertEquals(filter, trie.remove(filter));
+            assertNull(trie.get(filter));
+        }
+
+        assertEquals(0, trie.size());
+        for (String topic : TOPICS)
+            assertEquals(0, match(trie, topic).size());
+    }
+}
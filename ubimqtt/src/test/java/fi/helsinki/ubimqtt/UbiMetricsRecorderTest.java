@@ -0,0 +1,142 @@
+package fi.helsinki.ubimqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UbiMetricsRecorderTest {
+
+    @Test
+    public void testLatencyHistogram_PercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500.0, snapshot.getMean(), 0.001);
+
+        long p50 = snapshot.getPercentile(0.5);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = snapshot.getPercentile(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+    }
+
+    @Test
+    public void testUbiMetricsRecorder_LimitsTopicsAndSumsGauges() {
+        UbiMetricsRecorder recorder = new UbiMetricsRecorder(2);
+
+        recorder.messageReceived("a");
+        recorder.messageReceived("b");
+        recorder.messageReceived("c");
+        recorder.messageReceived("a");
+        recorder.increment(UbiCounter.REPLAY_REJECTIONS);
+        recorder.registerGauge("depth", () -> 3);
+        recorder.registerGauge("depth", () -> 4);
+
+        UbiMetricsSnapshot snapshot = recorder.snapshot();
+        assertEquals(Long.valueOf(2), snapshot.getReceivedCounts().get("a"));
+        assertEquals(Long.valueOf(1), snapshot.getReceivedCounts().get(UbiMetricsRecorder.OTHER_TOPICS));
+        assertEquals(4, snapshot.getReceivedCount());
+        assertEquals(1, snapshot.getCount(UbiCounter.REPLAY_REJECTIONS));
+        assertEquals(7, snapshot.getGauge("depth"));
+    }
+
+    // A recorder counting the gauges registered with it
+    private static class GaugeCountingRecorder extends UbiMetricsRecorder {
+        private final Set<LongSupplier> registered = Collections.newSetFromMap(new IdentityHashMap<>());
+        private int registrations = 0;
+
+        @Override
+        public void registerGauge(String name, LongSupplier gauge) {
+            super.registerGauge(name, gauge);
+            registered.add(gauge);
+            registrations++;
+        }
+
+        @Override
+        public void unregisterGauge(String name, LongSupplier gauge) {
+            super.unregisterGauge(name, gauge);
+            registered.remove(gauge);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_MovesGaugesBetweenMetrics() {
+        GaugeCountingRecorder first = new GaugeCountingRecorder();
+        GaugeCountingRecorder second = new GaugeCountingRecorder();
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        // Setting the same metrics again does not register the gauges again
+        ubiMqtt.setMetrics(first);
+        ubiMqtt.setMetrics(first);
+        assertEquals(4, first.registrations);
+        assertEquals(4, first.registered.size());
+
+        ubiMqtt.setMetrics(second);
+        assertEquals(0, first.registered.size());
+        assertEquals(4, second.registered.size());
+
+        ubiMqtt.setMetrics(null);
+        assertEquals(0, second.registered.size());
+
+        // The same gauges are registered again
+        ubiMqtt.setMetrics(first);
+        assertEquals(4, first.registered.size());
+    }
+
+    // Make sure that a MQTT server answers at localhost:1883 before running this test
+    @Test
+    public void testUbiMqtt_RecordsPublishMetrics() {
+        UbiMetricsRecorder recorder = new UbiMetricsRecorder();
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+        ubiMqtt.setMetrics(recorder);
+
+        try {
+            CompletableFuture<String> connectFuture = new CompletableFuture<>();
+            ubiMqtt.connect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    connectFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    connectFuture.complete("failure");
+                }
+            });
+            assertEquals("success", connectFuture.get(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 10; i++)
+                ubiMqtt.publishAsync("test/javametricstopic", "Message " + i).get(5, TimeUnit.SECONDS);
+
+            UbiMetricsSnapshot snapshot = recorder.snapshot();
+            assertEquals(Long.valueOf(10), snapshot.getPublishedCounts().get("test/javametricstopic"));
+            assertEquals(10, snapshot.getTimer(UbiTimer.PUBLISH).getCount());
+            assertEquals(0, snapshot.getGauge(IUbiMetrics.GAUGE_PUBLISH_INFLIGHT));
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+}
@@ -7,6 +7,13 @@ import org.junit.Test;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -658,4 +665,897 @@ public class UbiMqttTest {
         }
 
     }
+
+    @Test
+    public void testUbiMqtt_CanPublishBatchSigned() {
+        Logger.log("testUbiMqtt_CanPublishBatchSigned()");
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertEquals(null, e);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            int messageCount = 50;
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> allReceivedFuture = new CompletableFuture<>();
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+
+            ubiMqtt.subscribeSigned(SIGNED_TOPIC + "/batch", new String[] {publicKey}, (topic, mqttMessage, listenerId) -> {
+                // Signed subscriptions receive the whole signed message
+                received.add(EnvelopeScanner.scanEnvelope(mqttMessage.toString()).getPayload());
+                if (received.size() == messageCount)
+                    allReceivedFuture.complete("success");
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+            List<UbiBatchMessage> messages = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < messageCount; i++) {
+                messages.add(new UbiBatchMessage(SIGNED_TOPIC + "/batch", "Batch message " + i));
+                expected.add("Batch message " + i);
+            }
+
+            CompletableFuture<UbiBatchResult> batchFuture = new CompletableFuture<>();
+            ubiMqtt.publishBatchSigned(messages, privateKey, batchFuture::complete);
+
+            UbiBatchResult result = batchFuture.get(10, TimeUnit.SECONDS);
+            assertEquals(messageCount, result.getMessageCount());
+            assertEquals(true, result.isSuccess());
+
+            assertEquals("success", allReceivedFuture.get(10, TimeUnit.SECONDS));
+            assertEquals(expected, new ArrayList<>(received));
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_CanUnsubscribe() {
+        Logger.log("testUbiMqtt_CanUnsubscribe()");
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            String topic = TOPIC + "/unsubscribe";
+            List<String> receivedFirst = Collections.synchronizedList(new ArrayList<>());
+            List<String> receivedSecond = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> firstFuture = new CompletableFuture<>();
+            CompletableFuture<String> secondFuture = new CompletableFuture<>();
+
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+            String firstListenerId = ubiMqtt.subscribe(topic, (t, mqttMessage, listenerId) -> {
+                receivedFirst.add(mqttMessage.toString());
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+            // The second listener shares the subscription of the first one
+            CompletableFuture<String> secondSubscribeFuture = new CompletableFuture<>();
+            String secondListenerId = ubiMqtt.subscribe(topic, (t, mqttMessage, listenerId) -> {
+                receivedSecond.add(mqttMessage.toString());
+                if (receivedSecond.size() == 1)
+                    firstFuture.complete("success");
+                else if (receivedSecond.size() == 2)
+                    secondFuture.complete("success");
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    secondSubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    secondSubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", secondSubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publish(topic, "first", null);
+            assertEquals("success", firstFuture.get(5, TimeUnit.SECONDS));
+
+            CompletableFuture<String> unsubscribeFuture = new CompletableFuture<>();
+            ubiMqtt.unsubscribe(firstListenerId, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    unsubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    unsubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", unsubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publish(topic, "second", null);
+            assertEquals("success", secondFuture.get(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("first"), new ArrayList<>(receivedFirst));
+
+            CompletableFuture<String> secondUnsubscribeFuture = new CompletableFuture<>();
+            ubiMqtt.unsubscribe(secondListenerId, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    secondUnsubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    secondUnsubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", secondUnsubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            // The listener is gone, so removing it again fails
+            CompletableFuture<String> repeatedUnsubscribeFuture = new CompletableFuture<>();
+            ubiMqtt.unsubscribe(secondListenerId, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    repeatedUnsubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    repeatedUnsubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("failure", repeatedUnsubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            // A subscription from a publisher is removed together with the subscription to the key of the publisher
+            String home = System.getProperty("user.home");
+            String privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            String publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+            String publisherTopic = TOPIC + "/unsubscribe/publisher";
+
+            CompletableFuture<String> publishKeyFuture = new CompletableFuture<>();
+            ubiMqtt.publish(KEY_TOPIC, publicKey, 1, true, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    publishKeyFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    publishKeyFuture.complete("failure");
+                }
+            });
+            assertEquals("success", publishKeyFuture.get(5, TimeUnit.SECONDS));
+
+            List<String> receivedPublisher = Collections.synchronizedList(new ArrayList<>());
+            List<String> publisherListenerIds = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> publisherFuture = new CompletableFuture<>();
+            CompletableFuture<String> publisherSubscribeFuture = new CompletableFuture<>();
+            String publisherListenerId = ubiMqtt.subscribeFromPublisher(publisherTopic, JAVA_TEST_PUBLISHER, (t, mqttMessage, listenerId) -> {
+                receivedPublisher.add(mqttMessage.toString());
+                publisherListenerIds.add(listenerId);
+                publisherFuture.complete("success");
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    publisherSubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    publisherSubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", publisherSubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            // The key arriving again updates the existing subscription instead of adding another one
+            CompletableFuture<String> republishKeyFuture = new CompletableFuture<>();
+            ubiMqtt.publish(KEY_TOPIC, publicKey, 1, true, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    republishKeyFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    republishKeyFuture.complete("failure");
+                }
+            });
+            assertEquals("success", republishKeyFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishSigned(publisherTopic, "from publisher", privateKey, null);
+            assertEquals("success", publisherFuture.get(5, TimeUnit.SECONDS));
+            Thread.sleep(500);
+            assertEquals(Collections.singletonList(publisherListenerId), new ArrayList<>(publisherListenerIds));
+
+            CompletableFuture<String> publisherUnsubscribeFuture = new CompletableFuture<>();
+            ubiMqtt.unsubscribe(publisherListenerId, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    publisherUnsubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    publisherUnsubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", publisherUnsubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            // A plain listener tells when the next message has arrived, the removed one must not get it
+            CompletableFuture<String> plainFuture = new CompletableFuture<>();
+            CompletableFuture<String> plainSubscribeFuture = new CompletableFuture<>();
+            ubiMqtt.subscribe(publisherTopic, (t, mqttMessage, listenerId) -> plainFuture.complete("success"), new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    plainSubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    plainSubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", plainSubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishSigned(publisherTopic, "after unsubscribe", privateKey, null);
+            assertEquals("success", plainFuture.get(5, TimeUnit.SECONDS));
+            assertEquals(1, receivedPublisher.size());
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_CanPublishAndSubscribeGroupEncrypted() {
+        Logger.log("testUbiMqtt_CanPublishAndSubscribeGroupEncrypted()");
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertEquals(null, e);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            UbiGroupKey groupKey = UbiGroupKey.generate("javatestgroup");
+
+            CompletableFuture<String> keyFuture = new CompletableFuture<>();
+            ubiMqtt.publishGroupKey(groupKey, new String[] {publicKey}, privateKey, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    keyFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    keyFuture.complete("failure");
+                }
+            });
+            assertEquals("success", keyFuture.get(5, TimeUnit.SECONDS));
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> firstFuture = new CompletableFuture<>();
+            CompletableFuture<String> secondFuture = new CompletableFuture<>();
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+
+            List<String> listenerIds = Collections.synchronizedList(new ArrayList<>());
+
+            String groupListenerId = ubiMqtt.subscribeGroupEncrypted(ENCRYPTED_TOPIC + "/group", "javatestgroup", privateKey, publicKey, (topic, mqttMessage, listenerId) -> {
+                listenerIds.add(listenerId);
+                received.add(mqttMessage.toString());
+                if (received.size() == 1)
+                    firstFuture.complete("success");
+                else if (received.size() == 2)
+                    secondFuture.complete("success");
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishGroupEncrypted(ENCRYPTED_TOPIC + "/group", "Group message 1", groupKey, null);
+            assertEquals("success", firstFuture.get(5, TimeUnit.SECONDS));
+
+            // Messages encrypted with the next version are decrypted once the member has received it
+            UbiGroupKey rotatedKey = groupKey.rotate();
+            CompletableFuture<String> rotatedKeyFuture = new CompletableFuture<>();
+            ubiMqtt.publishGroupKey(rotatedKey, new String[] {publicKey}, privateKey, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    rotatedKeyFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    rotatedKeyFuture.complete("failure");
+                }
+            });
+            assertEquals("success", rotatedKeyFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishGroupEncrypted(ENCRYPTED_TOPIC + "/group", "Group message 2", rotatedKey, null);
+            assertEquals("success", secondFuture.get(5, TimeUnit.SECONDS));
+
+            assertEquals("Group message 1", received.get(0));
+            assertEquals("Group message 2", received.get(1));
+            assertEquals(Arrays.asList(groupListenerId, groupListenerId), listenerIds);
+
+            // Unsubscribing removes both the key and the main subscription
+            CompletableFuture<String> unsubscribeFuture = new CompletableFuture<>();
+            ubiMqtt.unsubscribe(groupListenerId, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    unsubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    unsubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", unsubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishGroupEncrypted(ENCRYPTED_TOPIC + "/group", "Group message 3", rotatedKey, null);
+            Thread.sleep(500);
+            assertEquals(2, received.size());
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_CanPublishAndSubscribeEncryptedToSeveralRecipients() {
+        Logger.log("testUbiMqtt_CanPublishAndSubscribeEncryptedToSeveralRecipients()");
+
+        String privateKey = "";
+        String publicKey = "";
+        String otherPublicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            otherPublicKey = "-----BEGIN PUBLIC KEY-----\n"
+                    + Base64.getMimeEncoder().encodeToString(generator.generateKeyPair().getPublic().getEncoded())
+                    + "\n-----END PUBLIC KEY-----\n";
+        } catch (Exception e) {
+            assertEquals(null, e);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            CompletableFuture<String> messageFuture = new CompletableFuture<>();
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+
+            ubiMqtt.subscribeEncrypted(ENCRYPTED_TOPIC + "/multi", new String[] {privateKey}, (topic, mqttMessage, listenerId) -> {
+                messageFuture.complete(mqttMessage.toString());
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+            // The subscriber's key is the second recipient, so it has to find its own entry
+            CompletableFuture<String> publishFuture = new CompletableFuture<>();
+            ubiMqtt.publishEncrypted(ENCRYPTED_TOPIC + "/multi", "Multi-recipient message", new String[] {otherPublicKey, publicKey}, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    publishFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    publishFuture.complete("failure");
+                }
+            });
+            assertEquals("success", publishFuture.get(5, TimeUnit.SECONDS));
+
+            assertEquals("Multi-recipient message", messageFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_CanPublishAndSubscribeMerkleSigned() {
+        Logger.log("testUbiMqtt_CanPublishAndSubscribeMerkleSigned()");
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertEquals(null, e);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+        ubiMqtt.setSignatureFormat(SignatureFormat.MERKLE);
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            int messageCount = 20;
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> batchFuture = new CompletableFuture<>();
+            CompletableFuture<String> lastFuture = new CompletableFuture<>();
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+
+            ubiMqtt.subscribeSigned(SIGNED_TOPIC + "/merkle", new String[] {publicKey}, (topic, mqttMessage, listenerId) -> {
+                received.add(mqttMessage.toString());
+                if (received.size() == messageCount)
+                    batchFuture.complete("success");
+                if (mqttMessage.toString().contains("Last message"))
+                    lastFuture.complete("success");
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+            UbiSigningKey signingKey = new UbiSigningKey(privateKey);
+            for (int i = 0; i < messageCount; i++)
+                ubiMqtt.publishSigned(SIGNED_TOPIC + "/merkle", "Message " + i, signingKey, null);
+            assertEquals("success", batchFuture.get(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < messageCount; i++)
+                assertEquals("Message " + i, EnvelopeScanner.scanEnvelope(received.get(i)).getPayload());
+
+            // A replayed message of the batch is rejected, the next batch is accepted
+            ubiMqtt.publish(SIGNED_TOPIC + "/merkle", received.get(0), null);
+            ubiMqtt.publishSigned(SIGNED_TOPIC + "/merkle", "Last message", signingKey, null);
+            assertEquals("success", lastFuture.get(5, TimeUnit.SECONDS));
+            assertEquals(messageCount + 1, received.size());
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_CanPublishAndSubscribeAuthenticated() {
+        Logger.log("testUbiMqtt_CanPublishAndSubscribeAuthenticated()");
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertEquals(null, e);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            UbiGroupKey groupKey = UbiGroupKey.generate("javatestauthgroup");
+
+            CompletableFuture<String> keyFuture = new CompletableFuture<>();
+            ubiMqtt.publishGroupKey(groupKey, new String[] {publicKey}, privateKey, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    keyFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    keyFuture.complete("failure");
+                }
+            });
+            assertEquals("success", keyFuture.get(5, TimeUnit.SECONDS));
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> firstFuture = new CompletableFuture<>();
+            CompletableFuture<String> lastFuture = new CompletableFuture<>();
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+
+            ubiMqtt.subscribeAuthenticated(SIGNED_TOPIC + "/authenticated", "javatestauthgroup", privateKey, publicKey, (topic, mqttMessage, listenerId) -> {
+                received.add(mqttMessage.toString());
+                if (received.size() == 1)
+                    firstFuture.complete("success");
+                if (mqttMessage.toString().contains("Last message"))
+                    lastFuture.complete("success");
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishAuthenticated(SIGNED_TOPIC + "/authenticated", "Authenticated message", groupKey, null);
+            assertEquals("success", firstFuture.get(5, TimeUnit.SECONDS));
+            assertEquals("Authenticated message", EnvelopeScanner.scanEnvelope(received.get(0)).getPayload());
+
+            // A key sent by someone else than the distributor is not accepted
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(256);
+            UbiSigningKey impostorKey = new UbiSigningKey(generator.generateKeyPair());
+            UbiGroupKey injectedKey = new UbiGroupKey("javatestauthgroup", 2, new byte[UbiGroupKey.KEY_LENGTH_BYTES]);
+
+            CompletableFuture<String> injectedKeyFuture = new CompletableFuture<>();
+            ubiMqtt.publishGroupKey(injectedKey, new String[] {publicKey}, impostorKey, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    injectedKeyFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    injectedKeyFuture.complete("failure");
+                }
+            });
+            assertEquals("success", injectedKeyFuture.get(5, TimeUnit.SECONDS));
+
+            // Replayed messages, messages authenticated with the injected key and messages authenticated with
+            // a key that was never sent are rejected
+            ubiMqtt.publish(SIGNED_TOPIC + "/authenticated", received.get(0), null);
+            ubiMqtt.publishAuthenticated(SIGNED_TOPIC + "/authenticated", "Injected key", injectedKey, null);
+            ubiMqtt.publishAuthenticated(SIGNED_TOPIC + "/authenticated", "Other group", UbiGroupKey.generate("javatestauthgroup"), null);
+            ubiMqtt.publishAuthenticated(SIGNED_TOPIC + "/authenticated", "Last message", groupKey, null);
+            assertEquals("success", lastFuture.get(5, TimeUnit.SECONDS));
+            assertEquals(2, received.size());
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_OverlappingSignedSubscriptionsBothReceive() {
+        Logger.log("testUbiMqtt_OverlappingSignedSubscriptionsBothReceive()");
+
+        String privateKey = "";
+        String publicKey = "";
+        try {
+            String home = System.getProperty("user.home");
+            privateKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key.pem")), StandardCharsets.UTF_8);
+            publicKey = new String(Files.readAllBytes(Paths.get(home + "/.private/ubimqtt-testing-key-public.pem")), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            assertEquals(null, e);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+        UbiMetricsRecorder metrics = new UbiMetricsRecorder();
+        ubiMqtt.setMetrics(metrics);
+        ubiMqtt.setVerificationParallelism(4, 64);
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            CompletableFuture<String> wildcardFuture = new CompletableFuture<>();
+            CompletableFuture<String> roomFuture = new CompletableFuture<>();
+            CompletableFuture<String> subscribeFuture = new CompletableFuture<>();
+            CompletableFuture<String> otherSubscribeFuture = new CompletableFuture<>();
+
+            ubiMqtt.subscribeSigned(SIGNED_TOPIC + "/sensors/#", new String[] {publicKey}, (topic, mqttMessage, listenerId) -> {
+                wildcardFuture.complete(EnvelopeScanner.scanEnvelope(mqttMessage.toString()).getPayload());
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    subscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    subscribeFuture.complete("failure");
+                }
+            });
+            ubiMqtt.subscribeSigned(SIGNED_TOPIC + "/sensors/room1/+", new String[] {publicKey}, (topic, mqttMessage, listenerId) -> {
+                roomFuture.complete(EnvelopeScanner.scanEnvelope(mqttMessage.toString()).getPayload());
+            }, new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    otherSubscribeFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    otherSubscribeFuture.complete("failure");
+                }
+            });
+            assertEquals("success", subscribeFuture.get(5, TimeUnit.SECONDS));
+            assertEquals("success", otherSubscribeFuture.get(5, TimeUnit.SECONDS));
+
+            ubiMqtt.publishSigned(SIGNED_TOPIC + "/sensors/room1/temperature", "21.5", new UbiSigningKey(privateKey), null);
+
+            // Neither copy is dropped as a replay of the other, and the signature is checked once
+            assertEquals("21.5", wildcardFuture.get(5, TimeUnit.SECONDS));
+            assertEquals("21.5", roomFuture.get(5, TimeUnit.SECONDS));
+            assertEquals(1, metrics.snapshot().getTimer(UbiTimer.VERIFY).getCount());
+            assertEquals(0, metrics.snapshot().getCount(UbiCounter.REPLAY_REJECTIONS));
+
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
+
+    @Test
+    public void testUbiMqtt_RejectsMaxInflightAfterConnect() {
+        Logger.log("testUbiMqtt_RejectsMaxInflightAfterConnect()");
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        UbiMqtt ubiMqtt = new UbiMqtt("localhost:1883");
+        ubiMqtt.setMaxInflight(20);
+
+        ubiMqtt.connect(new IUbiActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                future.complete("success");
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                future.complete("failure");
+            }
+        });
+        try {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+
+            // The Mqtt client already took its limit, so the window cannot change any more
+            boolean rejected = false;
+            try {
+                ubiMqtt.setMaxInflight(5);
+            } catch (IllegalStateException e) {
+                rejected = true;
+            }
+            assertEquals(true, rejected);
+
+            CompletableFuture<String> disconnectFuture = new CompletableFuture<>();
+            ubiMqtt.disconnect(new IUbiActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    disconnectFuture.complete("success");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    disconnectFuture.complete("failure");
+                }
+            });
+            assertEquals("success", disconnectFuture.get(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            e.printStackTrace();
+            assertEquals(null, e);
+        }
+    }
 }